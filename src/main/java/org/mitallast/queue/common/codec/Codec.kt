@@ -4,8 +4,13 @@ import com.google.common.base.Preconditions
 import gnu.trove.map.hash.TIntObjectHashMap
 import gnu.trove.map.hash.TObjectIntHashMap
 import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufInputStream
+import io.netty.buffer.ByteBufOutputStream
+import io.netty.buffer.CompositeByteBuf
 import io.netty.buffer.PooledByteBufAllocator
 import io.netty.buffer.Unpooled
+import io.netty.util.ByteProcessor
+import io.netty.util.CharsetUtil
 import io.vavr.collection.HashSet
 import io.vavr.collection.Seq
 import io.vavr.collection.Set
@@ -21,6 +26,30 @@ interface Codec<T> {
 
     fun write(stream: DataOutput, value: T)
 
+    /**
+     * Reads value directly from buffer, default implementation reads through stream view of buffer.
+     * Encoding is the same as of [read] from stream.
+     */
+    fun read(buffer: ByteBuf): T {
+        return read(ByteBufInputStream(buffer) as DataInput)
+    }
+
+    /**
+     * Writes value directly to buffer, default implementation writes through stream view of buffer.
+     * Encoding is the same as of [write] to stream.
+     */
+    fun write(buffer: ByteBuf, value: T) {
+        write(ByteBufOutputStream(buffer) as DataOutput, value)
+    }
+
+    /**
+     * Encoded size of value in bytes, or -1 if it is not known without encoding.
+     * Encoders allocate buffer of exact size for values of known size.
+     */
+    fun size(value: T): Int {
+        return -1
+    }
+
 //    fun opt(): Codec<Option<T>> = Codec.optionCodec(this)
 //    fun vector(): Codec<Vector<T>> = Codec.vectorCodec(this)
 //    fun set(): Codec<Set<T>> = Codec.setCodec(this)
@@ -32,6 +61,14 @@ interface Codec<T> {
             AnyCodec.register(code, type, codec)
         }
 
+        /**
+         * Registers decoder of previous encoding of a message, values are read by this code,
+         * but written with code of current registration of the type.
+         */
+        fun <T : Message> registerLegacy(code: Int, codec: Codec<T>) {
+            AnyCodec.registerLegacy(code, codec)
+        }
+
         fun booleanCodec(): Codec<Boolean> = BooleanCodec
         fun intCodec(): Codec<Int> = IntCodec
         fun longCodec(): Codec<Long> = LongCodec
@@ -39,7 +76,25 @@ interface Codec<T> {
         fun bytesCodec(): Codec<ByteArray> = ByteArrayCodec
         fun byteBufCodec(): Codec<ByteBuf> = ByteBufCodec
 
-        fun <T : Message> anyCodec(): Codec<T> = AnyCodec()
+        /**
+         * Unsigned varint, for ids, indexes and sizes which are small and non negative.
+         */
+        fun varIntCodec(): Codec<Int> = VarIntCodec
+        fun varLongCodec(): Codec<Long> = VarLongCodec
+
+        /**
+         * Zigzag varint, for signed values which are small by absolute value.
+         */
+        fun zigZagIntCodec(): Codec<Int> = ZigZagIntCodec
+        fun zigZagLongCodec(): Codec<Long> = ZigZagLongCodec
+
+        fun <T : Message> anyCodec(): Codec<T> = AnyCodec(false)
+
+        /**
+         * Type id is written as varint, ids below 128 take 1 byte and ids below 16384 take 2 bytes.
+         * Messages are registered once and may be written by both any codecs.
+         */
+        fun <T : Message> compactAnyCodec(): Codec<T> = AnyCodec(true)
         fun <T : Enum<T>> enumCodec(enumClass: Class<T>): Codec<T> = EnumCodec(enumClass)
         fun <T> optionCodec(codec: Codec<T>): Codec<Option<T>> = OptionCodec(codec)
         fun <T> vectorCodec(codec: Codec<T>): Codec<Vector<T>> = VectorCodec(codec)
@@ -129,6 +184,28 @@ interface Codec<T> {
                     lens1, lens2, lens3, lens4, lens5, lens6,
                     codec1, codec2, codec3, codec4, codec5, codec6)
         }
+
+        fun <Type, Param1, Param2, Param3, Param4, Param5, Param6, Param7> of(
+                builder: Function7<Param1, Param2, Param3, Param4, Param5, Param6, Param7, Type>,
+                lens1: Function1<Type, Param1>,
+                lens2: Function1<Type, Param2>,
+                lens3: Function1<Type, Param3>,
+                lens4: Function1<Type, Param4>,
+                lens5: Function1<Type, Param5>,
+                lens6: Function1<Type, Param6>,
+                lens7: Function1<Type, Param7>,
+                codec1: Codec<Param1>,
+                codec2: Codec<Param2>,
+                codec3: Codec<Param3>,
+                codec4: Codec<Param4>,
+                codec5: Codec<Param5>,
+                codec6: Codec<Param6>,
+                codec7: Codec<Param7>
+        ): Codec<Type> {
+            return Codec7(builder,
+                    lens1, lens2, lens3, lens4, lens5, lens6, lens7,
+                    codec1, codec2, codec3, codec4, codec5, codec6, codec7)
+        }
     }
 }
 
@@ -140,6 +217,18 @@ internal object BooleanCodec : Codec<Boolean> {
     override fun write(stream: DataOutput, value: Boolean) {
         stream.writeBoolean(value)
     }
+
+    override fun read(buffer: ByteBuf): Boolean {
+        return buffer.readBoolean()
+    }
+
+    override fun write(buffer: ByteBuf, value: Boolean) {
+        buffer.writeBoolean(value)
+    }
+
+    override fun size(value: Boolean): Int {
+        return 1
+    }
 }
 
 internal object IntCodec : Codec<Int> {
@@ -150,6 +239,18 @@ internal object IntCodec : Codec<Int> {
     override fun write(stream: DataOutput, value: Int) {
         stream.writeInt(value)
     }
+
+    override fun read(buffer: ByteBuf): Int {
+        return buffer.readInt()
+    }
+
+    override fun write(buffer: ByteBuf, value: Int) {
+        buffer.writeInt(value)
+    }
+
+    override fun size(value: Int): Int {
+        return Integer.BYTES
+    }
 }
 
 internal object LongCodec : Codec<Long> {
@@ -160,6 +261,106 @@ internal object LongCodec : Codec<Long> {
     override fun write(stream: DataOutput, value: Long) {
         stream.writeLong(value)
     }
+
+    override fun read(buffer: ByteBuf): Long {
+        return buffer.readLong()
+    }
+
+    override fun write(buffer: ByteBuf, value: Long) {
+        buffer.writeLong(value)
+    }
+
+    override fun size(value: Long): Int {
+        return java.lang.Long.BYTES
+    }
+}
+
+internal object VarIntCodec : Codec<Int> {
+    override fun read(stream: DataInput): Int {
+        return VarInt.readInt(stream)
+    }
+
+    override fun write(stream: DataOutput, value: Int) {
+        VarInt.writeInt(stream, value)
+    }
+
+    override fun read(buffer: ByteBuf): Int {
+        return VarInt.readInt(buffer)
+    }
+
+    override fun write(buffer: ByteBuf, value: Int) {
+        VarInt.writeInt(buffer, value)
+    }
+
+    override fun size(value: Int): Int {
+        return VarInt.size(value)
+    }
+}
+
+internal object VarLongCodec : Codec<Long> {
+    override fun read(stream: DataInput): Long {
+        return VarInt.readLong(stream)
+    }
+
+    override fun write(stream: DataOutput, value: Long) {
+        VarInt.writeLong(stream, value)
+    }
+
+    override fun read(buffer: ByteBuf): Long {
+        return VarInt.readLong(buffer)
+    }
+
+    override fun write(buffer: ByteBuf, value: Long) {
+        VarInt.writeLong(buffer, value)
+    }
+
+    override fun size(value: Long): Int {
+        return VarInt.size(value)
+    }
+}
+
+internal object ZigZagIntCodec : Codec<Int> {
+    override fun read(stream: DataInput): Int {
+        return VarInt.unZigZag(VarInt.readInt(stream))
+    }
+
+    override fun write(stream: DataOutput, value: Int) {
+        VarInt.writeInt(stream, VarInt.zigZag(value))
+    }
+
+    override fun read(buffer: ByteBuf): Int {
+        return VarInt.unZigZag(VarInt.readInt(buffer))
+    }
+
+    override fun write(buffer: ByteBuf, value: Int) {
+        VarInt.writeInt(buffer, VarInt.zigZag(value))
+    }
+
+    override fun size(value: Int): Int {
+        return VarInt.size(VarInt.zigZag(value))
+    }
+}
+
+internal object ZigZagLongCodec : Codec<Long> {
+    override fun read(stream: DataInput): Long {
+        return VarInt.unZigZag(VarInt.readLong(stream))
+    }
+
+    override fun write(stream: DataOutput, value: Long) {
+        VarInt.writeLong(stream, VarInt.zigZag(value))
+    }
+
+    override fun read(buffer: ByteBuf): Long {
+        return VarInt.unZigZag(VarInt.readLong(buffer))
+    }
+
+    override fun write(buffer: ByteBuf, value: Long) {
+        VarInt.writeLong(buffer, VarInt.zigZag(value))
+    }
+
+    override fun size(value: Long): Int {
+        return VarInt.size(VarInt.zigZag(value))
+    }
 }
 
 internal object StringCodec : Codec<String> {
@@ -170,6 +371,54 @@ internal object StringCodec : Codec<String> {
     override fun write(stream: DataOutput, value: String) {
         stream.writeUTF(value)
     }
+
+    /**
+     * Ascii string is read as is, modified UTF-8 of other strings is read by stream.
+     */
+    override fun read(buffer: ByteBuf): String {
+        val length = buffer.getUnsignedShort(buffer.readerIndex())
+        if (buffer.forEachByte(buffer.readerIndex() + 2, length, ascii) == -1) {
+            buffer.skipBytes(2)
+            return buffer.readCharSequence(length, CharsetUtil.US_ASCII).toString()
+        }
+        return read(ByteBufInputStream(buffer) as DataInput)
+    }
+
+    override fun write(buffer: ByteBuf, value: String) {
+        if (value.length <= 0xFFFF && isAscii(value)) {
+            buffer.writeShort(value.length)
+            buffer.writeCharSequence(value, CharsetUtil.US_ASCII)
+        } else {
+            write(ByteBufOutputStream(buffer) as DataOutput, value)
+        }
+    }
+
+    /**
+     * Length prefix and modified UTF-8 length of string.
+     */
+    override fun size(value: String): Int {
+        var size = value.length
+        for (i in 0 until value.length) {
+            val c = value[i]
+            if (c == '\u0000' || c > '\u007F') {
+                size += if (c > '\u07FF') 2 else 1
+            }
+        }
+        return java.lang.Short.BYTES + size
+    }
+
+    // zero is encoded by two bytes in modified UTF-8
+    private val ascii = ByteProcessor { it > 0 }
+
+    private fun isAscii(value: String): Boolean {
+        for (i in 0 until value.length) {
+            val c = value[i]
+            if (c == '\u0000' || c > '\u007F') {
+                return false
+            }
+        }
+        return true
+    }
 }
 
 internal object ByteArrayCodec : Codec<ByteArray> {
@@ -192,6 +441,36 @@ internal object ByteArrayCodec : Codec<ByteArray> {
             stream.write(value)
         }
     }
+
+    override fun read(buffer: ByteBuf): ByteArray {
+        val size = buffer.readInt()
+        return if (size > 0) {
+            val data = ByteArray(size)
+            buffer.readBytes(data)
+            data
+        } else {
+            empty
+        }
+    }
+
+    /**
+     * Composite buffer references array as component instead of copy.
+     */
+    override fun write(buffer: ByteBuf, value: ByteArray) {
+        buffer.writeInt(value.size)
+        if (value.isEmpty()) {
+            return
+        }
+        if (buffer is CompositeByteBuf) {
+            appendComponent(buffer, Unpooled.wrappedBuffer(value))
+        } else {
+            buffer.writeBytes(value)
+        }
+    }
+
+    override fun size(value: ByteArray): Int {
+        return Integer.BYTES + value.size
+    }
 }
 
 internal object ByteBufCodec : Codec<ByteBuf> {
@@ -229,6 +508,63 @@ internal object ByteBufCodec : Codec<ByteBuf> {
             }
         }
     }
+
+    /**
+     * Payload is retained slice of buffer, it is not copied.
+     */
+    override fun read(buffer: ByteBuf): ByteBuf {
+        val size = buffer.readInt()
+        if (size == 0) {
+            return Unpooled.EMPTY_BUFFER
+        }
+        return buffer.readRetainedSlice(size)
+    }
+
+    /**
+     * Composite buffer references payload as component instead of copy.
+     */
+    override fun write(buffer: ByteBuf, value: ByteBuf) {
+        val size = value.readableBytes()
+        buffer.writeInt(size)
+        if (size == 0) {
+            return
+        }
+        if (buffer is CompositeByteBuf) {
+            appendComponent(buffer, value.retainedSlice())
+            value.skipBytes(size)
+        } else {
+            buffer.writeBytes(value)
+        }
+    }
+
+    override fun size(value: ByteBuf): Int {
+        return Integer.BYTES + value.readableBytes()
+    }
+}
+
+// sum of sizes, -1 if any of them is not known
+private infix fun Int.plusSize(other: Int): Int = if (this < 0 || other < 0) -1 else this + other
+
+private fun <T> sizeOf(codec: Codec<T>, values: Iterable<T>): Int {
+    var size = 0
+    for (value in values) {
+        val s = codec.size(value)
+        if (s < 0) {
+            return -1
+        }
+        size += s
+    }
+    return size
+}
+
+/**
+ * Unused capacity of composite buffer is trimmed first, so component follows written bytes.
+ */
+private fun appendComponent(buffer: CompositeByteBuf, component: ByteBuf) {
+    if (buffer.writerIndex() != buffer.capacity()) {
+        buffer.capacity(buffer.writerIndex())
+    }
+    buffer.addComponent(true, component)
 }
 
 internal class EnumCodec<T : Enum<T>>(private val enumClass: Class<T>) : Codec<T> {
@@ -241,6 +577,18 @@ internal class EnumCodec<T : Enum<T>>(private val enumClass: Class<T>) : Codec<T
     override fun write(stream: DataOutput, value: T) {
         stream.writeShort(value.ordinal)
     }
+
+    override fun read(buffer: ByteBuf): T {
+        return enumClass.enumConstants[buffer.readUnsignedShort()]
+    }
+
+    override fun write(buffer: ByteBuf, value: T) {
+        buffer.writeShort(value.ordinal)
+    }
+
+    override fun size(value: T): Int {
+        return java.lang.Short.BYTES
+    }
 }
 
 internal class OptionCodec<T>(private val codec: Codec<T>) : Codec<Option<T>> {
@@ -257,6 +605,23 @@ internal class OptionCodec<T>(private val codec: Codec<T>) : Codec<Option<T>> {
         stream.writeBoolean(value.isDefined)
         value.forEach { i -> codec.write(stream, i) }
     }
+
+    override fun read(buffer: ByteBuf): Option<T> {
+        return if (buffer.readBoolean()) {
+            Option.of(codec.read(buffer))
+        } else {
+            Option.none()
+        }
+    }
+
+    override fun write(buffer: ByteBuf, value: Option<T>) {
+        buffer.writeBoolean(value.isDefined)
+        value.forEach { i -> codec.write(buffer, i) }
+    }
+
+    override fun size(value: Option<T>): Int {
+        return if (value.isDefined) 1 plusSize codec.size(value.get()) else 1
+    }
 }
 
 internal class VectorCodec<T>(private val codec: Codec<T>) : Codec<Vector<T>> {
@@ -270,6 +635,20 @@ internal class VectorCodec<T>(private val codec: Codec<T>) : Codec<Vector<T>> {
         stream.writeInt(value.size())
         value.forEach { i -> codec.write(stream, i) }
     }
+
+    override fun read(buffer: ByteBuf): Vector<T> {
+        val size = buffer.readInt()
+        return Vector.fill(size) { codec.read(buffer) }
+    }
+
+    override fun write(buffer: ByteBuf, value: Vector<T>) {
+        buffer.writeInt(value.size())
+        value.forEach { i -> codec.write(buffer, i) }
+    }
+
+    override fun size(value: Vector<T>): Int {
+        return Integer.BYTES plusSize sizeOf(codec, value)
+    }
 }
 
 internal class SetCodec<Type>(private val codec: Codec<Type>) : Codec<Set<Type>> {
@@ -283,6 +662,20 @@ internal class SetCodec<Type>(private val codec: Codec<Type>) : Codec<Set<Type>>
         stream.writeInt(value.size())
         value.forEach { i -> codec.write(stream, i) }
     }
+
+    override fun read(buffer: ByteBuf): Set<Type> {
+        val size = buffer.readInt()
+        return HashSet.fill(size) { codec.read(buffer) }
+    }
+
+    override fun write(buffer: ByteBuf, value: Set<Type>) {
+        buffer.writeInt(value.size())
+        value.forEach { i -> codec.write(buffer, i) }
+    }
+
+    override fun size(value: Set<Type>): Int {
+        return Integer.BYTES plusSize sizeOf(codec, value)
+    }
 }
 
 internal class SeqCodec<Type>(private val codec: Codec<Type>) : Codec<Seq<Type>> {
@@ -296,6 +689,20 @@ internal class SeqCodec<Type>(private val codec: Codec<Type>) : Codec<Seq<Type>>
         stream.writeInt(value.size())
         value.forEach { i -> codec.write(stream, i) }
     }
+
+    override fun read(buffer: ByteBuf): Seq<Type> {
+        val size = buffer.readInt()
+        return Vector.fill(size) { codec.read(buffer) }
+    }
+
+    override fun write(buffer: ByteBuf, value: Seq<Type>) {
+        buffer.writeInt(value.size())
+        value.forEach { i -> codec.write(buffer, i) }
+    }
+
+    override fun size(value: Seq<Type>): Int {
+        return Integer.BYTES plusSize sizeOf(codec, value)
+    }
 }
 
 internal class Codec1<Type, Param1>(
@@ -312,6 +719,19 @@ internal class Codec1<Type, Param1>(
     override fun write(stream: DataOutput, value: Type) {
         codec1.write(stream, lens1.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        return builder.invoke(param1)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value))
+    }
 }
 
 internal class Codec2<Type, Param1, Param2>(
@@ -332,6 +752,22 @@ internal class Codec2<Type, Param1, Param2>(
         codec1.write(stream, lens1.invoke(value))
         codec2.write(stream, lens2.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        return builder.invoke(param1, param2)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value))
+    }
 }
 
 internal class Codec3<Type, Param1, Param2, Param3>(
@@ -356,6 +792,25 @@ internal class Codec3<Type, Param1, Param2, Param3>(
         codec2.write(stream, lens2.invoke(value))
         codec3.write(stream, lens3.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        val param3 = codec3.read(buffer)
+        return builder.invoke(param1, param2, param3)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+        codec3.write(buffer, lens3.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value)) plusSize
+                codec3.size(lens3.invoke(value))
+    }
 }
 
 internal class Codec4<Type, Param1, Param2, Param3, Param4>(
@@ -384,6 +839,28 @@ internal class Codec4<Type, Param1, Param2, Param3, Param4>(
         codec3.write(stream, lens3.invoke(value))
         codec4.write(stream, lens4.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        val param3 = codec3.read(buffer)
+        val param4 = codec4.read(buffer)
+        return builder.invoke(param1, param2, param3, param4)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+        codec3.write(buffer, lens3.invoke(value))
+        codec4.write(buffer, lens4.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value)) plusSize
+                codec3.size(lens3.invoke(value)) plusSize
+                codec4.size(lens4.invoke(value))
+    }
 }
 
 internal class Codec5<Type, Param1, Param2, Param3, Param4, Param5>(
@@ -416,6 +893,31 @@ internal class Codec5<Type, Param1, Param2, Param3, Param4, Param5>(
         codec4.write(stream, lens4.invoke(value))
         codec5.write(stream, lens5.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        val param3 = codec3.read(buffer)
+        val param4 = codec4.read(buffer)
+        val param5 = codec5.read(buffer)
+        return builder.invoke(param1, param2, param3, param4, param5)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+        codec3.write(buffer, lens3.invoke(value))
+        codec4.write(buffer, lens4.invoke(value))
+        codec5.write(buffer, lens5.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value)) plusSize
+                codec3.size(lens3.invoke(value)) plusSize
+                codec4.size(lens4.invoke(value)) plusSize
+                codec5.size(lens5.invoke(value))
+    }
 }
 
 internal class Codec6<Type, Param1, Param2, Param3, Param4, Param5, Param6>(
@@ -452,6 +954,105 @@ internal class Codec6<Type, Param1, Param2, Param3, Param4, Param5, Param6>(
         codec5.write(stream, lens5.invoke(value))
         codec6.write(stream, lens6.invoke(value))
     }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        val param3 = codec3.read(buffer)
+        val param4 = codec4.read(buffer)
+        val param5 = codec5.read(buffer)
+        val param6 = codec6.read(buffer)
+        return builder.invoke(param1, param2, param3, param4, param5, param6)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+        codec3.write(buffer, lens3.invoke(value))
+        codec4.write(buffer, lens4.invoke(value))
+        codec5.write(buffer, lens5.invoke(value))
+        codec6.write(buffer, lens6.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value)) plusSize
+                codec3.size(lens3.invoke(value)) plusSize
+                codec4.size(lens4.invoke(value)) plusSize
+                codec5.size(lens5.invoke(value)) plusSize
+                codec6.size(lens6.invoke(value))
+    }
+}
+
+internal class Codec7<Type, Param1, Param2, Param3, Param4, Param5, Param6, Param7>(
+        private val builder: Function7<Param1, Param2, Param3, Param4, Param5, Param6, Param7, Type>,
+        private val lens1: Function1<Type, Param1>,
+        private val lens2: Function1<Type, Param2>,
+        private val lens3: Function1<Type, Param3>,
+        private val lens4: Function1<Type, Param4>,
+        private val lens5: Function1<Type, Param5>,
+        private val lens6: Function1<Type, Param6>,
+        private val lens7: Function1<Type, Param7>,
+        private val codec1: Codec<Param1>,
+        private val codec2: Codec<Param2>,
+        private val codec3: Codec<Param3>,
+        private val codec4: Codec<Param4>,
+        private val codec5: Codec<Param5>,
+        private val codec6: Codec<Param6>,
+        private val codec7: Codec<Param7>
+) : Codec<Type> {
+
+    override fun read(stream: DataInput): Type {
+        val param1 = codec1.read(stream)
+        val param2 = codec2.read(stream)
+        val param3 = codec3.read(stream)
+        val param4 = codec4.read(stream)
+        val param5 = codec5.read(stream)
+        val param6 = codec6.read(stream)
+        val param7 = codec7.read(stream)
+        return builder.invoke(param1, param2, param3, param4, param5, param6, param7)
+    }
+
+    override fun write(stream: DataOutput, value: Type) {
+        codec1.write(stream, lens1.invoke(value))
+        codec2.write(stream, lens2.invoke(value))
+        codec3.write(stream, lens3.invoke(value))
+        codec4.write(stream, lens4.invoke(value))
+        codec5.write(stream, lens5.invoke(value))
+        codec6.write(stream, lens6.invoke(value))
+        codec7.write(stream, lens7.invoke(value))
+    }
+
+    override fun read(buffer: ByteBuf): Type {
+        val param1 = codec1.read(buffer)
+        val param2 = codec2.read(buffer)
+        val param3 = codec3.read(buffer)
+        val param4 = codec4.read(buffer)
+        val param5 = codec5.read(buffer)
+        val param6 = codec6.read(buffer)
+        val param7 = codec7.read(buffer)
+        return builder.invoke(param1, param2, param3, param4, param5, param6, param7)
+    }
+
+    override fun write(buffer: ByteBuf, value: Type) {
+        codec1.write(buffer, lens1.invoke(value))
+        codec2.write(buffer, lens2.invoke(value))
+        codec3.write(buffer, lens3.invoke(value))
+        codec4.write(buffer, lens4.invoke(value))
+        codec5.write(buffer, lens5.invoke(value))
+        codec6.write(buffer, lens6.invoke(value))
+        codec7.write(buffer, lens7.invoke(value))
+    }
+
+    override fun size(value: Type): Int {
+        return codec1.size(lens1.invoke(value)) plusSize
+                codec2.size(lens2.invoke(value)) plusSize
+                codec3.size(lens3.invoke(value)) plusSize
+                codec4.size(lens4.invoke(value)) plusSize
+                codec5.size(lens5.invoke(value)) plusSize
+                codec6.size(lens6.invoke(value)) plusSize
+                codec7.size(lens7.invoke(value))
+    }
 }
 
 internal class StaticCodec<T>(private val value: T) : Codec<T> {
@@ -461,13 +1062,21 @@ internal class StaticCodec<T>(private val value: T) : Codec<T> {
     }
 
     override fun write(stream: DataOutput, value: T) {}
+
+    override fun read(buffer: ByteBuf): T {
+        return value
+    }
+
+    override fun write(buffer: ByteBuf, value: T) {}
+
+    override fun size(value: T): Int = 0
 }
 
 @Suppress("UNCHECKED_CAST")
-internal class AnyCodec<T : Message> : Codec<T> {
+internal class AnyCodec<T : Message>(private val compact: Boolean) : Codec<T> {
 
     override fun read(stream: DataInput): T {
-        val id = stream.readInt()
+        val id = if (compact) VarInt.readInt(stream) else stream.readInt()
         Preconditions.checkArgument(id >= 0)
         val codec = idToCodecMap.get(id) as Codec<T>
         Preconditions.checkNotNull(codec)
@@ -478,10 +1087,33 @@ internal class AnyCodec<T : Message> : Codec<T> {
         val id = classToIdMap.get(value.javaClass)
         Preconditions.checkArgument(id >= 0, "class not registered %s", value.javaClass)
         val codec = idToCodecMap.get(id) as Codec<T>
-        stream.writeInt(id)
+        if (compact) VarInt.writeInt(stream, id) else stream.writeInt(id)
         codec.write(stream, value)
     }
 
+    override fun read(buffer: ByteBuf): T {
+        val id = if (compact) VarInt.readInt(buffer) else buffer.readInt()
+        Preconditions.checkArgument(id >= 0)
+        val codec = idToCodecMap.get(id) as Codec<T>
+        Preconditions.checkNotNull(codec)
+        return codec.read(buffer)
+    }
+
+    override fun write(buffer: ByteBuf, value: T) {
+        val id = classToIdMap.get(value.javaClass)
+        Preconditions.checkArgument(id >= 0, "class not registered %s", value.javaClass)
+        val codec = idToCodecMap.get(id) as Codec<T>
+        if (compact) VarInt.writeInt(buffer, id) else buffer.writeInt(id)
+        codec.write(buffer, value)
+    }
+
+    override fun size(value: T): Int {
+        val id = classToIdMap.get(value.javaClass)
+        Preconditions.checkArgument(id >= 0, "class not registered %s", value.javaClass)
+        val codec = idToCodecMap.get(id) as Codec<T>
+        return (if (compact) VarInt.size(id) else Integer.BYTES) plusSize codec.size(value)
+    }
+
     companion object {
         private val idToCodecMap = TIntObjectHashMap<Codec<*>>(100, 0.5f, -1)
         private val classToIdMap = TObjectIntHashMap<Class<*>>(100, 0.5f, -1)
@@ -493,5 +1125,10 @@ internal class AnyCodec<T : Message> : Codec<T> {
             val i = classToIdMap.putIfAbsent(type, code)
             Preconditions.checkArgument(i < 0, "class already registered: " + type)
         }
+
+        fun <T : Message> registerLegacy(code: Int, codec: Codec<T>) {
+            val c = idToCodecMap.putIfAbsent(code, codec)
+            Preconditions.checkArgument(c == null, "code already registered: " + code)
+        }
     }
 }
\ No newline at end of file
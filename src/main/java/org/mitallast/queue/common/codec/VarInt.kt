@@ -0,0 +1,118 @@
+package org.mitallast.queue.common.codec
+
+import io.netty.buffer.ByteBuf
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Unsigned LEB128 varint: 7 bits per byte, low bits first, high bit marks continuation.
+ * Values are always written in the shortest form, so size of encoding is [size] of decoded value.
+ *
+ * Negative values take 5 bytes as int and 10 bytes as long, signed values are written
+ * with zigzag mapping which keeps small negative values short.
+ */
+object VarInt {
+    const val MAX_INT_SIZE = 5
+    const val MAX_LONG_SIZE = 10
+
+    fun size(value: Int): Int = size(value.toLong() and 0xFFFFFFFFL)
+
+    fun size(value: Long): Int {
+        var v = value
+        var size = 1
+        while (v and 0x7FL.inv() != 0L) {
+            v = v ushr 7
+            size++
+        }
+        return size
+    }
+
+    fun zigZag(value: Int): Int = (value shl 1) xor (value shr 31)
+
+    fun zigZag(value: Long): Long = (value shl 1) xor (value shr 63)
+
+    fun unZigZag(value: Int): Int = (value ushr 1) xor -(value and 1)
+
+    fun unZigZag(value: Long): Long = (value ushr 1) xor -(value and 1)
+
+    fun writeInt(buffer: ByteBuf, value: Int) = writeLong(buffer, value.toLong() and 0xFFFFFFFFL)
+
+    fun writeLong(buffer: ByteBuf, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            buffer.writeByte((v.toInt() and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        buffer.writeByte(v.toInt())
+    }
+
+    fun writeInt(stream: DataOutput, value: Int) = writeLong(stream, value.toLong() and 0xFFFFFFFFL)
+
+    fun writeLong(stream: DataOutput, value: Long) {
+        var v = value
+        while (v and 0x7FL.inv() != 0L) {
+            stream.writeByte((v.toInt() and 0x7F) or 0x80)
+            v = v ushr 7
+        }
+        stream.writeByte(v.toInt())
+    }
+
+    fun readInt(buffer: ByteBuf): Int = checkInt(readLong(buffer))
+
+    fun readLong(buffer: ByteBuf): Long {
+        var value = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = buffer.readByte().toInt()
+            value = value or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+        throw IOException("malformed varint")
+    }
+
+    fun readInt(stream: DataInput): Int = checkInt(readLong(stream))
+
+    fun readLong(stream: DataInput): Long {
+        var value = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = stream.readByte().toInt()
+            value = value or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+        throw IOException("malformed varint")
+    }
+
+    /**
+     * Reads value at absolute index, buffer position is not changed.
+     */
+    fun getLong(buffer: ByteBuffer, index: Int): Long {
+        var value = 0L
+        var shift = 0
+        var i = index
+        while (shift < 64) {
+            val b = buffer.get(i++).toInt()
+            value = value or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) {
+                return value
+            }
+            shift += 7
+        }
+        throw IOException("malformed varint")
+    }
+
+    private fun checkInt(value: Long): Int {
+        if (value ushr 32 != 0L) {
+            throw IOException("varint overflows int")
+        }
+        return value.toInt()
+    }
+}
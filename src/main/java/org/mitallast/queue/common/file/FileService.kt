@@ -5,6 +5,7 @@ import com.google.inject.Inject
 import com.typesafe.config.Config
 
 import java.io.*
+import java.nio.channels.FileChannel
 import java.nio.file.*
 import java.util.stream.Stream
 
@@ -99,6 +100,13 @@ constructor(config: Config) {
         Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING)
     }
 
+    /**
+     * Forces directory entries, so created or renamed files survive crash.
+     */
+    fun sync(directory: File) {
+        FileChannel.open(directory.toPath(), StandardOpenOption.READ).use { it.force(true) }
+    }
+
     fun output(file: File, append: Boolean = false): DataOutputStream {
         try {
             val outputStream = FileOutputStream(file, append)
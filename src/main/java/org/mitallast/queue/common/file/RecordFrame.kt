@@ -0,0 +1,56 @@
+package org.mitallast.queue.common.file
+
+import com.google.common.hash.Hashing
+import java.nio.ByteBuffer
+
+/**
+ * Log record frame: `[int length][int crc32c][int type][payload]`.
+ *
+ * Length is the payload size, checksum covers type and payload bytes. Writers put
+ * length last, so zero length marks the end of data and a torn write fails checksum.
+ */
+object RecordFrame {
+    const val HEADER_SIZE = 3 * Integer.BYTES
+    const val LENGTH_OFFSET = 0
+    const val CHECKSUM_OFFSET = Integer.BYTES
+    const val TYPE_OFFSET = 2 * Integer.BYTES
+
+    // log entry in fixed width encoding
+    const val TYPE_ENTRY = 1
+    // log entry in compact varint encoding
+    const val TYPE_ENTRY_COMPACT = 2
+
+    private val crc32c = Hashing.crc32c()
+
+    /**
+     * Checksum of type and payload, buffer position..limit must cover them
+     */
+    fun checksum(buffer: ByteBuffer): Int {
+        return crc32c.hashBytes(buffer).asInt()
+    }
+
+    fun checksum(bytes: ByteArray, offset: Int, length: Int): Int {
+        return crc32c.hashBytes(bytes, offset, length).asInt()
+    }
+
+    /**
+     * Validates frame at position of buffer without decoding payload.
+     * Returns frame size including header, or -1 if frame is empty, torn or corrupted.
+     */
+    fun validate(buffer: ByteBuffer, position: Int, limit: Int): Int {
+        if (position + HEADER_SIZE > limit) {
+            return -1
+        }
+        val length = buffer.getInt(position + LENGTH_OFFSET)
+        if (length <= 0 || length > limit - position - HEADER_SIZE) {
+            return -1
+        }
+        val slice = buffer.duplicate()
+        slice.limit(position + HEADER_SIZE + length)
+        slice.position(position + TYPE_OFFSET)
+        if (checksum(slice) != buffer.getInt(position + CHECKSUM_OFFSET)) {
+            return -1
+        }
+        return HEADER_SIZE + length
+    }
+}
@@ -3,16 +3,28 @@ package org.mitallast.queue.crdt.log
 import com.google.inject.Inject
 import com.google.inject.assistedinject.Assisted
 import com.typesafe.config.Config
+import io.netty.buffer.Unpooled
 import io.vavr.collection.Vector
 import org.apache.logging.log4j.LogManager
 import org.mitallast.queue.common.codec.Message
 import org.mitallast.queue.common.file.FileService
+import org.mitallast.queue.common.file.RecordFrame
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.file.Files
 import java.util.ArrayList
+import java.util.Arrays
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantLock
 import java.util.function.Predicate
+import java.util.stream.Collectors
 
 class FileReplicatedLog @Inject constructor(
     config: Config,
@@ -33,6 +45,9 @@ class FileReplicatedLog @Inject constructor(
     private val index = AtomicLong(0)
 
     init {
+        // temporary files of interrupted segment migration
+        fileService.resources(serviceName, "glob:*.tmp").forEach { fileService.delete(fileService.resource(serviceName, it.toString())) }
+
         val offsets = fileService.resources(serviceName, "regex:event.[0-9]+.log")
             .map { it.fileName.toString() }
             .map { it.substring(6, it.length - 4) }
@@ -40,9 +55,11 @@ class FileReplicatedLog @Inject constructor(
             .sorted()
             .toArray()
 
-        for (i in offsets.indices) {
-            segments = segments.append(Segment(i.toLong()))
-        }
+        // segments are validated and loaded in parallel
+        segments = Vector.ofAll(Arrays.stream(offsets)
+            .parallel()
+            .mapToObj { Segment(it) }
+            .collect(Collectors.toList()))
         if (segments.isEmpty) {
             segments = segments.append(Segment(this.index.get()))
         }
@@ -146,32 +163,121 @@ class FileReplicatedLog @Inject constructor(
     private inner class Segment constructor(val offset: Long) {
         val entries = ArrayList<LogEntry>()
         val logFile = fileService.resource(serviceName, "event.$offset.log")
-        private val logOutput = fileService.output(logFile, true)
+        private val logOutput: DataOutputStream
+        private val frame = Unpooled.buffer(4096)
         private val added = AtomicInteger(0)
 
         init {
             if (logFile.length() > 0) {
-                fileService.input(logFile).use { stream ->
-                    if (stream.available() > 0) {
-                        while (stream.available() > 0) {
-                            entries.add(LogEntry.codec.read(stream))
-                        }
-                    }
-                    if (!entries.isEmpty()) {
-                        index.set(entries[entries.size - 1].index + 1)
-                    }
-                    added.set(entries.size)
+                recover()
+                if (!entries.isEmpty()) {
+                    val last = entries[entries.size - 1].index + 1
+                    index.accumulateAndGet(last) { a, b -> Math.max(a, b) }
+                }
+                added.set(entries.size)
+            }
+            logOutput = fileService.output(logFile, true)
+        }
+
+        /**
+         * Validates frame checksums first, cuts torn tail, then decodes valid frames.
+         * Segment written by previous version without frames is migrated before, so it is not cut.
+         */
+        private fun recover() {
+            var bytes = Files.readAllBytes(logFile.toPath())
+            if (isUnframed(bytes)) {
+                bytes = migrate(bytes)
+            }
+            val buffer = ByteBuffer.wrap(bytes)
+            val positions = ArrayList<Int>()
+            var position = 0
+            while (true) {
+                val frame = RecordFrame.validate(buffer, position, bytes.size)
+                if (frame < 0) {
+                    break
+                }
+                positions.add(position)
+                position += frame
+            }
+            if (position < bytes.size) {
+                logger.warn("segment {} has torn tail at {}, truncate {} bytes", offset, position, bytes.size - position)
+                RandomAccessFile(logFile, "rw").use { it.setLength(position.toLong()) }
+            }
+            for (start in positions) {
+                val length = buffer.getInt(start + RecordFrame.LENGTH_OFFSET)
+                val stream = DataInputStream(ByteArrayInputStream(bytes, start + RecordFrame.HEADER_SIZE, length))
+                if (buffer.getInt(start + RecordFrame.TYPE_OFFSET) == RecordFrame.TYPE_ENTRY_COMPACT) {
+                    entries.add(LogEntry.compactCodec.read(stream))
+                } else {
+                    entries.add(LogEntry.codec.read(stream))
                 }
             }
         }
 
+        /**
+         * Previous versions wrote [LogEntry] records in fixed width encoding without frames,
+         * such segment starts with high bytes of the first index, which are zero length of frame.
+         * Torn first frame of framed segment has non zero length, it is written with the frame.
+         */
+        private fun isUnframed(bytes: ByteArray): Boolean {
+            val buffer = ByteBuffer.wrap(bytes)
+            if (bytes.size < Integer.BYTES || buffer.getInt(0) != 0 || RecordFrame.validate(buffer, 0, bytes.size) > 0) {
+                return false
+            }
+            return bytes.any { it != 0.toByte() }
+        }
+
+        /**
+         * Re-frames entries of unframed segment to temporary file which replaces segment,
+         * unreadable segment is not changed.
+         */
+        private fun migrate(bytes: ByteArray): ByteArray {
+            logger.info("migrate legacy segment {}", logFile)
+            val legacy = ArrayList<LogEntry>()
+            try {
+                val stream = DataInputStream(ByteArrayInputStream(bytes))
+                while (stream.available() > 0) {
+                    legacy.add(LogEntry.codec.read(stream))
+                }
+            } catch (e: Exception) {
+                throw IOException("legacy segment $logFile can not be read, log is not migrated", e)
+            }
+            val migrated = ByteArrayOutputStream(bytes.size + legacy.size * RecordFrame.HEADER_SIZE)
+            for (logEntry in legacy) {
+                encode(logEntry)
+                frame.readBytes(migrated, frame.readableBytes())
+            }
+            val framed = migrated.toByteArray()
+            val tmp = fileService.temporary(serviceName, "event.$offset.", ".tmp")
+            Files.write(tmp.toPath(), framed)
+            fileService.move(tmp, logFile)
+            logger.info("migrated {} entries of legacy segment {}", legacy.size, logFile)
+            return framed
+        }
+
+        private fun encode(logEntry: LogEntry) {
+            frame.clear()
+            // frame grows once to exact size of large entry
+            val size = LogEntry.compactCodec.size(logEntry)
+            if (size >= 0 && frame.capacity() < RecordFrame.HEADER_SIZE + size) {
+                frame.capacity(RecordFrame.HEADER_SIZE + size)
+            }
+            frame.writeZero(RecordFrame.HEADER_SIZE)
+            frame.setInt(RecordFrame.TYPE_OFFSET, RecordFrame.TYPE_ENTRY_COMPACT)
+            LogEntry.compactCodec.write(frame, logEntry)
+            val checksum = RecordFrame.checksum(frame.nioBuffer(RecordFrame.TYPE_OFFSET, frame.writerIndex() - RecordFrame.TYPE_OFFSET))
+            frame.setInt(RecordFrame.CHECKSUM_OFFSET, checksum)
+            frame.setInt(RecordFrame.LENGTH_OFFSET, frame.writerIndex() - RecordFrame.HEADER_SIZE)
+        }
+
         fun append(id: Long, event: Message): LogEntry? {
             synchronized(entries) {
                 if (isFull) {
                     return null
                 }
                 val logEntry = LogEntry(index.incrementAndGet(), id, event)
-                LogEntry.codec.write(logOutput, logEntry)
+                encode(logEntry)
+                frame.readBytes(logOutput, frame.readableBytes())
                 entries.add(logEntry)
                 added.incrementAndGet()
                 return logEntry
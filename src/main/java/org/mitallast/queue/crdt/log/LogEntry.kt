@@ -5,6 +5,9 @@ import org.mitallast.queue.common.codec.Message
 
 data class LogEntry(val index: Long, val id: Long, val event: Message) : Message {
     companion object {
+        /**
+         * Fixed width encoding of log records written before compact encoding.
+         */
         val codec = Codec.of(
             ::LogEntry,
             LogEntry::index,
@@ -14,5 +17,15 @@ data class LogEntry(val index: Long, val id: Long, val event: Message) : Message
             Codec.longCodec(),
             Codec.anyCodec()
         )
+
+        val compactCodec = Codec.of(
+            ::LogEntry,
+            LogEntry::index,
+            LogEntry::id,
+            LogEntry::event,
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.compactAnyCodec()
+        )
     }
 }
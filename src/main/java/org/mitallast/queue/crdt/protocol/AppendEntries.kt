@@ -18,10 +18,10 @@ data class AppendEntries(
             AppendEntries::replica,
             AppendEntries::prevIndex,
             AppendEntries::entries,
-            Codec.intCodec(),
-            Codec.longCodec(),
-            Codec.longCodec(),
-            Codec.vectorCodec(LogEntry.codec)
+            Codec.varIntCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.vectorCodec(LogEntry.compactCodec)
         )
     }
 }
@@ -14,9 +14,9 @@ data class AppendRejected(
             AppendRejected::bucket,
             AppendRejected::replica,
             AppendRejected::index,
-            Codec.intCodec(),
-            Codec.longCodec(),
-            Codec.longCodec()
+            Codec.varIntCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec()
         )
     }
 }
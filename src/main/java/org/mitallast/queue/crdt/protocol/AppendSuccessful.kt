@@ -14,9 +14,9 @@ data class AppendSuccessful(
             AppendSuccessful::bucket,
             AppendSuccessful::replica,
             AppendSuccessful::index,
-            Codec.intCodec(),
-            Codec.longCodec(),
-            Codec.longCodec()
+            Codec.varIntCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec()
         )
     }
 }
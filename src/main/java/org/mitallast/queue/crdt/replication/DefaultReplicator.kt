@@ -5,6 +5,7 @@ import com.google.inject.assistedinject.Assisted
 import com.typesafe.config.Config
 import gnu.trove.impl.sync.TSynchronizedLongLongMap
 import gnu.trove.map.hash.TLongLongHashMap
+import io.vavr.collection.Seq
 import io.vavr.collection.Vector
 import org.mitallast.queue.common.codec.Message
 import org.mitallast.queue.common.component.AbstractLifecycleComponent
@@ -45,8 +46,10 @@ class DefaultReplicator @Inject constructor(
 
         for (replica in replicas) {
             replicationTimeout.put(replica.id, System.currentTimeMillis() + timeout)
+        }
+        if (!replicas.isEmpty) {
             val appendEntries = AppendEntries(bucket.index(), bucket.replica(), 0, Vector.empty())
-            transportService.send(replica.member, appendEntries)
+            transportService.send(replicas.map { it.member }, appendEntries)
         }
         scheduler.scheduleWithFixedDelay({
             lock.lock()
@@ -126,11 +129,18 @@ class DefaultReplicator @Inject constructor(
         }
     }
 
+    /**
+     * Replicas with the same replication index receive the same entries,
+     * so message is built and sent to them once.
+     */
     private fun maybeSendEntries() {
         val routingTable = fsm.get()
         val routingBucket = routingTable.buckets.get(this.bucket.index())
         routingBucket.replicas.remove(bucket.replica())
-            .values().forEach { this.maybeSendEntries(it) }
+            .values()
+            .filter { this.isReady(it) }
+            .groupBy { replicationIndex.get(it.id) }
+            .forEach { prev, replicas -> sendEntries(prev, replicas) }
     }
 
     private fun maybeSendEntries(replica: Long) {
@@ -140,43 +150,51 @@ class DefaultReplicator @Inject constructor(
     }
 
     private fun maybeSendEntries(replica: RoutingReplica) {
+        if (isReady(replica)) {
+            sendEntries(replicationIndex.get(replica.id), Vector.of(replica))
+        }
+    }
+
+    private fun isReady(replica: RoutingReplica): Boolean {
         if (replica.id == bucket.replica()) { // do not send to self
-            return
+            return false
         }
         val timeout = replicationTimeout.get(replica.id)
-        if (timeout == 0L) {
+        return if (timeout == 0L) {
             if (logger.isTraceEnabled) {
                 logger.trace("[replica={}:{}] no request in progress at {}:{}",
                     bucket.index(), bucket.replica(),
                     bucket.index(), replica.id)
             }
-            sendEntries(replica)
+            true
         } else if (timeout < System.currentTimeMillis()) {
             logger.warn("[replica={}:{}] request timeout at {}:{}",
                 bucket.index(), bucket.replica(),
                 bucket.index(), replica.id)
-            sendEntries(replica)
+            true
         } else {
             if (logger.isTraceEnabled) {
                 logger.trace("[replica={}:{}] request in progress to {}:{}",
                     bucket.index(), bucket.replica(),
                     bucket.index(), replica.id)
             }
+            false
         }
     }
 
-    private fun sendEntries(replica: RoutingReplica) {
-        val prev = replicationIndex.get(replica.id)
+    private fun sendEntries(prev: Long, replicas: Seq<RoutingReplica>) {
         val log = bucket.log()
         val append = log.entriesFrom(prev).take(10000)
         if (append.nonEmpty()) {
             if (logger.isDebugEnabled) {
                 logger.debug("[replica={}:{}] send append to={}:{} prev={} entries: {}",
                     bucket.index(), bucket.replica(),
-                    bucket.index(), replica.id, prev, append)
+                    bucket.index(), replicas.map { it.id }, prev, append)
             }
-            replicationTimeout.put(replica.id, System.currentTimeMillis() + timeout)
-            transportService.send(replica.member, AppendEntries(bucket.index(), bucket.replica(), prev, append))
+            for (replica in replicas) {
+                replicationTimeout.put(replica.id, System.currentTimeMillis() + timeout)
+            }
+            transportService.send(replicas.map { it.member }, AppendEntries(bucket.index(), bucket.replica(), prev, append))
         } else {
             if (logger.isTraceEnabled) {
                 logger.trace("no new entries")
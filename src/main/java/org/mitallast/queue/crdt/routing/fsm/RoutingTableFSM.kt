@@ -11,7 +11,7 @@ import org.mitallast.queue.crdt.routing.Resource
 import org.mitallast.queue.crdt.routing.RoutingTable
 import org.mitallast.queue.crdt.routing.event.RoutingTableChanged
 import org.mitallast.queue.raft.protocol.RaftSnapshotMetadata
-import org.mitallast.queue.raft.resource.ResourceFSM
+import org.mitallast.queue.raft.resource.BatchResourceFSM
 import org.mitallast.queue.raft.resource.ResourceRegistry
 import java.io.File
 import java.io.IOError
@@ -23,11 +23,12 @@ class RoutingTableFSM @Inject constructor(
     registry: ResourceRegistry,
     private val eventBus: EventBus,
     private val fileService: FileService
-) : ResourceFSM {
+) : BatchResourceFSM {
     private val logger = LogManager.getLogger()
     private val file: File = fileService.resource("crdt", "routing.bin")
 
     @Volatile private var lastApplied: Long = 0
+    private var dirty = false
     @Volatile private var routingTable: RoutingTable = RoutingTable(
         config.getInt("crdt.replicas"),
         config.getInt("crdt.buckets")
@@ -63,19 +64,32 @@ class RoutingTableFSM @Inject constructor(
         }
     }
 
+    /**
+     * Updates state in memory, file is written and change is published once per batch in [flush].
+     */
     private fun persist(index: Long, routingTable: RoutingTable) {
         Preconditions.checkArgument(index > lastApplied)
         this.lastApplied = index
-        logger.info("before: {}", this.routingTable)
         this.routingTable = routingTable
-        logger.info("after: {}", this.routingTable)
+        this.dirty = true
+    }
+
+    override fun flush(index: Long) {
+        if (!dirty) {
+            return
+        }
+        dirty = false
+        val routingTable = this.routingTable
+        if (logger.isDebugEnabled) {
+            logger.debug("routing table at {}: {}", lastApplied, routingTable)
+        }
         try {
             fileService.output(file).use { stream -> RoutingTable.codec.write(stream, routingTable) }
         } catch (e: IOException) {
             throw IOError(e)
         }
 
-        eventBus.trigger(RoutingTableChanged(index, routingTable))
+        eventBus.trigger(RoutingTableChanged(lastApplied, routingTable))
     }
 
     private fun handle(index: Long, routingTable: RoutingTable): Option<Message> {
@@ -2,8 +2,10 @@ package org.mitallast.queue.raft
 
 import com.google.inject.Inject
 import com.typesafe.config.Config
+import io.netty.util.internal.PlatformDependent
 import io.vavr.collection.HashMap
 import io.vavr.collection.Map
+import io.vavr.collection.Set
 import io.vavr.collection.Vector
 import io.vavr.concurrent.Future
 import io.vavr.concurrent.Promise
@@ -29,6 +31,8 @@ import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.locks.ReentrantLock
 
 enum class RaftState {
@@ -54,17 +58,41 @@ class Raft @Inject constructor(
     private val electionDeadline = config.getDuration("raft.election-deadline", TimeUnit.MILLISECONDS)
     private val heartbeat = config.getDuration("raft.heartbeat", TimeUnit.MILLISECONDS)
     private val snapshotInterval = config.getInt("raft.snapshot-interval")
+    private val snapshotChunkSize = config.getMemorySize("raft.snapshot-chunk-size").toBytes().toInt()
+    private val snapshotWindow = config.getInt("raft.snapshot-window")
     private val maxEntries = config.getInt("raft.max-entries")
+    private val maxFrameSize = config.getMemorySize("raft.max-frame-size").toBytes()
+    private val maxInflight = config.getInt("raft.max-inflight")
+    private val learnerEnabled = config.getBoolean("raft.learner.enabled")
+    private val learnerCatchUp = config.getLong("raft.learner.catch-up")
+    private val batchSize = config.getInt("raft.batch.size")
+    private val batchLinger = config.getDuration("raft.batch.linger", TimeUnit.MILLISECONDS)
+    private val leaseReads = config.getBoolean("raft.read.lease")
+    private val leaseNanos = TimeUnit.MILLISECONDS.toNanos(
+            electionDeadline - config.getDuration("raft.read.clock-drift", TimeUnit.MILLISECONDS))
 
     private val stashed = ConcurrentLinkedQueue<ClientMessage>()
+    private val pending = ConcurrentLinkedQueue<ClientMessage>()
+    private val pendingSize = AtomicInteger()
+    private val flushScheduled = AtomicBoolean()
     private val sessionCommands = ConcurrentHashMap<Long, Promise<Message>>()
+    private val readQueries = ConcurrentHashMap<Long, ReadQuery>()
+    private val awaitingReads = PriorityQueue<ReadIndexResponse>(11, compareBy<ReadIndexResponse> { it.index })
     private val lock: ReentrantLock = ReentrantLock()
+    private val actor = when (config.getString("raft.execution")) {
+        "lock" -> false
+        "actor" -> true
+        else -> throw IllegalArgumentException("unexpected raft.execution: " + config.getString("raft.execution"))
+    }
+    private val mailbox: Queue<() -> Unit> = PlatformDependent.newMpscQueue()
+    private val wip = AtomicInteger()
 
     @Volatile private var recentlyContactedByLeader: Option<DiscoveryNode> = Option.none()
-    @Volatile private var replicationIndex: Map<DiscoveryNode, Long> = HashMap.empty()
-    @Volatile private var nextIndex = LogIndexMap(0)
-    @Volatile private var matchIndex = LogIndexMap(0)
+    @Volatile private var leaderContact = 0L
+    @Volatile private var progress = ReplicationProgress(clusterDiscovery.self, 0)
     @Volatile private var state: State = VoidState()
+    private val snapshotting = AtomicBoolean()
+    @Volatile private var appliedIndex = replicatedLog.committedIndex()
 
     override fun doStart() {
         val meta = RaftMetadata(
@@ -78,6 +106,8 @@ class Raft @Inject constructor(
     override fun doStop() {
         context.cancelTimer(RaftContext.ELECTION_TIMEOUT)
         context.cancelTimer(RaftContext.SEND_HEARTBEAT)
+        context.cancelTimer(RaftContext.CLIENT_BATCH)
+        context.cancelTimer(RaftContext.LEADERSHIP_TRANSFER)
     }
 
     override fun doClose() {}
@@ -85,29 +115,73 @@ class Raft @Inject constructor(
     // fsm related
 
     fun <T: Message> apply(event: T) {
-        lock.lock()
-        try {
-            CloseableThreadContext.push(state.state().name).use {
-                state = when(event) {
-                    is AppendEntries -> state.handle(event)
-                    is AppendRejected -> state.handle(event)
-                    is AppendSuccessful -> state.handle(event)
-                    is RequestVote -> state.handle(event)
-                    is VoteCandidate -> state.handle(event)
-                    is DeclineCandidate -> state.handle(event)
-                    is ClientMessage -> state.handle(event)
-                    is InstallSnapshot -> state.handle(event)
-                    is InstallSnapshotSuccessful -> state.handle(event)
-                    is InstallSnapshotRejected -> state.handle(event)
-                    is AddServer -> state.handle(event)
-                    is AddServerResponse -> state.handle(event)
-                    is RemoveServer -> state.handle(event)
-                    is RemoveServerResponse -> state.handle(event)
-                    else -> state
-                }
-            }
-        } finally {
-            lock.unlock()
+        execute { dispatch(event) }
+    }
+
+    private fun dispatch(event: Message) {
+        CloseableThreadContext.push(state.state().name).use {
+            state = when(event) {
+                is AppendEntries -> state.handle(event)
+                is AppendRejected -> state.handle(event)
+                is AppendSuccessful -> state.handle(event)
+                is RequestVote -> state.handle(event)
+                is VoteCandidate -> state.handle(event)
+                is DeclineCandidate -> state.handle(event)
+                is TimeoutNow -> state.handle(event)
+                is ClientMessage -> state.handle(event)
+                is ClientMessages -> state.handle(event)
+                is ReadIndex -> state.handle(event)
+                is ReadIndexResponse -> state.handle(event)
+                is InstallSnapshot -> state.handle(event)
+                is InstallSnapshotSuccessful -> state.handle(event)
+                is InstallSnapshotRejected -> state.handle(event)
+                is InstallSnapshotChunk -> state.handle(event)
+                is InstallSnapshotChunkAck -> state.handle(event)
+                is AddServer -> state.handle(event)
+                is AddServerResponse -> state.handle(event)
+                is RemoveServer -> state.handle(event)
+                is RemoveServerResponse -> state.handle(event)
+                else -> state
+            }
+        }
+    }
+
+    /**
+     * Runs task exclusively with other raft tasks. In `lock` execution mode task runs on caller
+     * thread under raft lock. In `actor` mode task is enqueued to mailbox and caller never blocks,
+     * mailbox is drained in batches by single raft thread without lock.
+     */
+    private fun execute(task: () -> Unit) {
+        if (actor) {
+            mailbox.offer(task)
+            if (wip.getAndIncrement() == 0) {
+                context.submit(RaftContext.ACTOR) { drain() }
+            }
+        } else {
+            lock.lock()
+            try {
+                task.invoke()
+            } finally {
+                lock.unlock()
+            }
+        }
+    }
+
+    private fun drain() {
+        var missed = 1
+        while (true) {
+            while (true) {
+                val task = mailbox.poll() ?: break
+                try {
+                    task.invoke()
+                } catch (e: Throwable) {
+                    logger.error("error handle raft task", e)
+                }
+            }
+            missed = wip.addAndGet(-missed)
+            if (missed == 0) {
+                break
+            }
         }
     }
 
@@ -126,7 +200,70 @@ class Raft @Inject constructor(
                 cmd,
                 session
         )
-        apply(clientMessage)
+        batch(clientMessage)
+        return promise.future()
+    }
+
+    /**
+     * Client commands are collected into batches of `raft.batch.size`, batch is flushed when full
+     * or after `raft.batch.linger`. With zero linger commands are flushed at once, batch contains
+     * commands submitted while raft lock was held by previous flush.
+     */
+    private fun batch(message: ClientMessage) {
+        pending.add(message)
+        val size = pendingSize.incrementAndGet()
+        if (batchLinger == 0L || size >= batchSize) {
+            flush()
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            context.setTimer(RaftContext.CLIENT_BATCH, batchLinger) {
+                flushScheduled.set(false)
+                flush()
+            }
+        }
+    }
+
+    private fun flush() {
+        execute {
+            while (true) {
+                var batch = Vector.empty<ClientMessage>()
+                while (batch.size() < batchSize) {
+                    val message = pending.poll() ?: break
+                    batch = batch.append(message)
+                }
+                if (batch.isEmpty) {
+                    break
+                }
+                pendingSize.addAndGet(-batch.size())
+                dispatch(ClientMessages(batch))
+            }
+        }
+    }
+
+    /**
+     * Linearizable read without appending to log. Leader confirms leadership by heartbeat round,
+     * or by lease if `raft.read.lease` is enabled, and query is applied to resources after commit
+     * index of this moment is applied locally. Follower asks leader for the index and applies
+     * query locally. Query handler must not modify resource state.
+     */
+    fun read(query: Message): Future<Message> {
+        val promise = Promise.make<Message>()
+        var id: Long
+        do {
+            id = ThreadLocalRandom.current().nextLong()
+        } while (readQueries.putIfAbsent(id, ReadQuery(query, promise)) != null)
+        apply(ReadIndex(clusterDiscovery.self, id))
+        return promise.future()
+    }
+
+    /**
+     * Transfers leadership to member, or to voting member with most replicated log if none.
+     * Leader stashes new commands, brings member up to date and sends it [TimeoutNow], so member
+     * starts election at once. Future completes with true once this node stepped down, and with
+     * false if this node is not leader, or transfer did not finish in election deadline.
+     */
+    fun transferLeadership(member: Option<DiscoveryNode>): Future<Boolean> {
+        val promise = Promise.make<Boolean>()
+        execute { state = state.transferLeadership(member, promise) }
         return promise.future()
     }
 
@@ -146,6 +283,93 @@ class Raft @Inject constructor(
         return replicatedLog
     }
 
+    /**
+     * Index of last committed entry applied to resources, it lags behind commit index
+     * while apply thread is busy.
+     */
+    fun appliedIndex(): Long {
+        return appliedIndex
+    }
+
+    fun applyLag(): Long {
+        return Math.max(0, replicatedLog.committedIndex() - appliedIndex)
+    }
+
+    /**
+     * Committed commands are applied to resources on apply thread in commit order, so slow
+     * resource does not delay consensus. Committed range is applied as one batch, promises of
+     * client commands are completed after resources persisted the batch.
+     */
+    private fun applyCommitted(entries: Vector<LogEntry>) {
+        if (entries.isEmpty) {
+            return
+        }
+        context.submit(RaftContext.APPLY) {
+            val results = ArrayList<Pair<Long, Message>>()
+            for ((_, index, session, command) in entries) {
+                if (command !is ClusterConfiguration && command !is Noop && command !is RaftSnapshot) {
+                    if (logger.isDebugEnabled) {
+                        logger.debug("applying command[index={}]: {}", index, command.javaClass.simpleName)
+                    }
+                    try {
+                        registry.apply(index, command).forEach { result -> results.add(Pair(session, result)) }
+                    } catch (e: Throwable) {
+                        logger.error("error apply command[index={}]: {}", index, command, e)
+                    }
+                }
+            }
+            val lastIndex = entries.last().index
+            try {
+                registry.flush(lastIndex)
+            } catch (e: Throwable) {
+                logger.error("error flush resources at index {}", lastIndex, e)
+            }
+            appliedIndex = lastIndex
+            for ((session, result) in results) {
+                if (logger.isDebugEnabled) {
+                    logger.debug("success client command session {}", session)
+                }
+                val promise = sessionCommands.remove(session)
+                promise?.success(result)
+            }
+        }
+    }
+
+    private fun applySnapshot(snapshot: RaftSnapshot) {
+        context.submit(RaftContext.APPLY) {
+            for (msg in snapshot.data) {
+                registry.apply(snapshot.meta.lastIncludedIndex, msg)
+            }
+            registry.flush(snapshot.meta.lastIncludedIndex)
+            appliedIndex = Math.max(appliedIndex, snapshot.meta.lastIncludedIndex)
+        }
+    }
+
+    /**
+     * Serializes and persists snapshot without raft lock, the lock is held only to swap
+     * snapshot file and release compacted segments.
+     */
+    private fun writeSnapshot(snapshot: RaftSnapshot) {
+        try {
+            val file = replicatedLog.writeSnapshot(snapshot)
+            execute {
+                try {
+                    replicatedLog.compactWith(snapshot, file)
+                    if (logger.isInfoEnabled) {
+                        logger.info("successfully compacted log to snapshot {}:{}",
+                                snapshot.meta.lastIncludedIndex, snapshot.meta.lastIncludedTerm)
+                    }
+                } finally {
+                    snapshotting.set(false)
+                }
+            }
+        } catch (e: Throwable) {
+            logger.error("error write snapshot {}:{}", snapshot.meta.lastIncludedIndex,
+                    snapshot.meta.lastIncludedTerm, e)
+            snapshotting.set(false)
+        }
+    }
+
     fun currentStashed(): Vector<Message> {
         return Vector.ofAll(stashed)
     }
@@ -160,13 +384,79 @@ class Raft @Inject constructor(
         }
     }
 
+    fun send(nodes: Set<DiscoveryNode>, message: Message) {
+        if (nodes.contains(clusterDiscovery.self)) {
+            transportController.dispatch(message)
+        }
+        val others = nodes.remove(clusterDiscovery.self)
+        if (!others.isEmpty) {
+            transportService.send(others, message)
+        }
+    }
+
     fun senderIsCurrentLeader(leader: DiscoveryNode) {
         if (logger.isDebugEnabled) {
             logger.debug("leader is {}", leader)
         }
         recentlyContactedByLeader = Option.some(leader)
+        leaderContact = System.currentTimeMillis()
+    }
+
+    private fun rejectRead(member: DiscoveryNode, id: Long) {
+        if (member == clusterDiscovery.self) {
+            readQueries.remove(id)?.promise?.failure(IllegalStateException("not a leader"))
+        } else {
+            send(member, ReadIndexResponse(id, -1))
+        }
+    }
+
+    private fun completeRead(member: DiscoveryNode, id: Long, index: Long) {
+        if (member == clusterDiscovery.self) {
+            awaitingReads.add(ReadIndexResponse(id, index))
+            applyReads()
+        } else {
+            send(member, ReadIndexResponse(id, index))
+        }
+    }
+
+    /**
+     * Reads are queued to apply thread after all entries up to commit index,
+     * so they observe state at least at their read index.
+     */
+    private fun applyReads() {
+        var ready = Vector.empty<ReadQuery>()
+        while (awaitingReads.isNotEmpty() && awaitingReads.peek().index <= replicatedLog.committedIndex()) {
+            val read = readQueries.remove(awaitingReads.poll().id) ?: continue
+            ready = ready.append(read)
+        }
+        if (ready.isEmpty) {
+            return
+        }
+        context.submit(RaftContext.APPLY) {
+            for (read in ready) {
+                val result = registry.apply(appliedIndex, read.query)
+                if (result.isDefined) {
+                    read.promise.success(result.get())
+                } else {
+                    read.promise.failure(IllegalArgumentException("no handler for " + read.query.javaClass.simpleName))
+                }
+            }
+        }
     }
 
+    private class ReadQuery(val query: Message, val promise: Promise<Message>)
+
+    private class SnapshotTransfer(val index: Long, var offset: Long, var acked: Long)
+
+    private class PendingRead(
+            val seq: Long,
+            val member: DiscoveryNode,
+            val id: Long,
+            val index: Long,
+            val started: Long,
+            val sent: LongArray
+    )
+
     // additional classes
 
     private abstract inner class State constructor(private var meta: RaftMetadata) {
@@ -207,10 +497,31 @@ class Raft @Inject constructor(
         // leader
 
         open fun handle(message: ClientMessage): State = stay(meta())
+        open fun handle(message: ClientMessages): State = stay(meta())
+
+        // read index
+
+        open fun handle(message: ReadIndex): State {
+            rejectRead(message.member, message.id)
+            return this
+        }
+
+        fun handle(message: ReadIndexResponse): State {
+            if (message.index < 0) {
+                rejectRead(clusterDiscovery.self, message.id)
+            } else {
+                awaitingReads.add(message)
+                applyReads()
+            }
+            return this
+        }
 
         // snapshot
 
         fun createSnapshot(): State {
+            if (!snapshotting.compareAndSet(false, true)) {
+                return this
+            }
             val committedIndex = replicatedLog.committedIndex()
             val snapshotMeta = RaftSnapshotMetadata(replicatedLog.termAt(committedIndex),
                     committedIndex, meta().config)
@@ -219,18 +530,30 @@ class Raft @Inject constructor(
                         snapshotMeta.lastIncludedTerm)
             }
 
-            val snapshot = registry.prepareSnapshot(snapshotMeta)
-            if (logger.isInfoEnabled) {
-                logger.info("successfully prepared snapshot for {}:{}, compacting log now",
-                        snapshotMeta.lastIncludedIndex, snapshotMeta.lastIncludedTerm)
+            // state is captured on apply thread after all entries up to committed index are applied,
+            // resources return immutable view of state, so capture is cheap
+            context.submit(RaftContext.APPLY) {
+                try {
+                    val snapshot = registry.prepareSnapshot(snapshotMeta)
+                    if (logger.isInfoEnabled) {
+                        logger.info("successfully prepared snapshot for {}:{}, writing it in background",
+                                snapshotMeta.lastIncludedIndex, snapshotMeta.lastIncludedTerm)
+                    }
+                    context.submit(RaftContext.SNAPSHOT) { writeSnapshot(snapshot) }
+                } catch (e: Throwable) {
+                    logger.error("error prepare snapshot {}:{}", snapshotMeta.lastIncludedIndex,
+                            snapshotMeta.lastIncludedTerm, e)
+                    snapshotting.set(false)
+                }
             }
-            replicatedLog.compactWith(snapshot)
 
             return this
         }
         open fun handle(message: InstallSnapshot): State = stay(meta())
         open fun handle(message: InstallSnapshotSuccessful): State = stay(meta())
         open fun handle(message: InstallSnapshotRejected): State = stay(meta())
+        open fun handle(message: InstallSnapshotChunk): State = stay(meta())
+        open fun handle(message: InstallSnapshotChunkAck): State = stay(meta())
 
         // joint consensus
 
@@ -239,6 +562,16 @@ class Raft @Inject constructor(
         open fun handle(request: RemoveServer): State = stay(meta())
         open fun handle(request: RemoveServerResponse): State = stay(meta())
 
+        // leadership transfer
+
+        open fun handle(message: TimeoutNow): State = stay(meta())
+
+        open fun transferLeadership(member: Option<DiscoveryNode>, promise: Promise<Boolean>): State {
+            logger.warn("reject leadership transfer, not a leader")
+            promise.success(false)
+            return this
+        }
+
         // stash messages
 
         fun stash(message: ClientMessage) {
@@ -270,9 +603,9 @@ class Raft @Inject constructor(
             return this
         }
 
-        fun gotoCandidate(): State {
+        fun gotoCandidate(transfer: Boolean = false): State {
             resetElectionDeadline()
-            return CandidateState(this.meta().forNewElection()).beginElection()
+            return CandidateState(this.meta().forNewElection()).beginElection(transfer)
         }
 
         fun resetElectionDeadline(): FollowerState {
@@ -281,17 +614,16 @@ class Raft @Inject constructor(
             }
             val timeout = Random().nextInt((electionDeadline / 2).toInt()) + electionDeadline
             context.setTimer(RaftContext.ELECTION_TIMEOUT, timeout) {
-                lock.lock()
-                try {
-                    if (state === this) {
-                        state = electionTimeout()
-                    } else {
-                        throw IllegalStateException()
+                execute {
+                    try {
+                        if (state === this) {
+                            state = electionTimeout()
+                        } else {
+                            throw IllegalStateException()
+                        }
+                    } catch (e: IllegalStateException) {
+                        logger.error("error handle election timeout", e)
                     }
-                } catch (e: IllegalStateException) {
-                    logger.error("error handle election timeout", e)
-                } finally {
-                    lock.unlock()
                 }
             }
             return this
@@ -312,12 +644,7 @@ class Raft @Inject constructor(
                     electionTimeout()
                 }
             } else {
-                val config = replicatedLog.entries()
-                        .map<Message> { it.command }
-                        .filter { cmd -> cmd is ClusterConfiguration }
-                        .map { cmd -> cmd as ClusterConfiguration }
-                        .reduceOption { _, b -> b }
-                        .getOrElse(meta().config)
+                val config = replicatedLog.lastConfiguration().getOrElse(meta().config)
 
                 val meta = meta().withConfig(config).withTerm(replicatedLog.lastTerm())
                 return stay(meta)
@@ -333,7 +660,33 @@ class Raft @Inject constructor(
             return this
         }
 
+        override fun handle(message: ClientMessages): State {
+            if (recentlyContactedByLeader.isDefined) {
+                send(recentlyContactedByLeader.get(), message)
+            } else {
+                message.messages.forEach { stash(it) }
+            }
+            return this
+        }
+
+        override fun handle(message: ReadIndex): State {
+            if (message.member == clusterDiscovery.self && recentlyContactedByLeader.isDefined) {
+                send(recentlyContactedByLeader.get(), message)
+            } else {
+                rejectRead(message.member, message.id)
+            }
+            return this
+        }
+
         override fun handle(message: RequestVote): State {
+            // leader lease is valid while followers do not vote for election deadline after leader contact
+            if (leaseReads && !message.transfer && message.term > meta().currentTerm && recentlyContactedByLeader.isDefined &&
+                    System.currentTimeMillis() - leaderContact < electionDeadline) {
+                logger.warn("rejecting vote for {} at term {}, leader {} is alive", message.candidate,
+                        message.term, recentlyContactedByLeader.get())
+                send(message.candidate, DeclineCandidate(clusterDiscovery.self, meta().currentTerm))
+                return this
+            }
             var meta = meta()
             if (message.term > meta.currentTerm) {
                 if (logger.isInfoEnabled) {
@@ -400,18 +753,21 @@ class Raft @Inject constructor(
             if (message.term < meta.currentTerm) {
                 logger.warn("rejecting write (old term): {} < {} ", message.term, meta.currentTerm)
                 send(message.member, AppendRejected(clusterDiscovery.self, meta.currentTerm,
-                        replicatedLog.lastIndex()))
+                        message.prevLogIndex, replicatedLog.lastIndex()))
                 return stay(meta)
             }
 
             try {
+                // committed entries match leader log, delayed request below commit index is matched at it
+                if (message.prevLogIndex < replicatedLog.committedIndex()) {
+                    return appendEntries(matchCommitted(message), meta)
+                }
                 // 2) Reply false if log doesn’t contain an entry at prevLogIndex whose term matches prevLogTerm (5.3)
                 return if (!replicatedLog.containsMatchingEntry(message.prevLogTerm, message.prevLogIndex)) {
                     logger.warn("rejecting write (inconsistent log): {}:{} {} ",
                             message.prevLogTerm, message.prevLogIndex,
                             replicatedLog)
-                    send(message.member, AppendRejected(clusterDiscovery.self, meta.currentTerm,
-                            replicatedLog.lastIndex()))
+                    send(message.member, rejectInconsistent(message, meta))
                     stay(meta)
                 } else {
                     appendEntries(message, meta)
@@ -421,6 +777,32 @@ class Raft @Inject constructor(
             }
         }
 
+        private fun matchCommitted(message: AppendEntries): AppendEntries {
+            val committed = replicatedLog.committedIndex()
+            return message.copy(
+                    prevLogTerm = replicatedLog.termAt(committed),
+                    prevLogIndex = committed,
+                    entries = message.entries.dropWhile { it.index <= committed }
+            )
+        }
+
+        /**
+         * Reject carries term of conflicting entry and first index of it's term,
+         * so leader skips whole term instead of one entry per round trip.
+         */
+        private fun rejectInconsistent(message: AppendEntries, meta: RaftMetadata): AppendRejected {
+            val prevIndex = message.prevLogIndex
+            return if (replicatedLog.isEmpty || prevIndex >= replicatedLog.nextIndex()) {
+                AppendRejected(clusterDiscovery.self, meta.currentTerm, prevIndex, replicatedLog.lastIndex(),
+                        0, replicatedLog.nextIndex())
+            } else if (prevIndex >= replicatedLog.committedIndex() && replicatedLog.containsEntryAt(prevIndex)) {
+                AppendRejected(clusterDiscovery.self, meta.currentTerm, prevIndex, replicatedLog.lastIndex(),
+                        replicatedLog.termAt(prevIndex), replicatedLog.firstIndexOfTerm(prevIndex))
+            } else {
+                AppendRejected(clusterDiscovery.self, meta.currentTerm, prevIndex, replicatedLog.lastIndex())
+            }
+        }
+
         fun appendEntries(msg: AppendEntries, currentMeta: RaftMetadata): State {
             var meta = currentMeta
             senderIsCurrentLeader(msg.member)
@@ -437,16 +819,22 @@ class Raft @Inject constructor(
                 }
                 replicatedLog.append(msg.entries)
             }
+            // acknowledge only durable entries, and only entries matched by this request:
+            // pipelined requests may be reordered, entries after them are not verified yet
+            val matched = msg.prevLogIndex + msg.entries.size()
             if (logger.isDebugEnabled) {
-                logger.debug("response append successful term:{} lastIndex:{}", meta.currentTerm, replicatedLog.lastIndex())
+                logger.debug("response append successful term:{} lastIndex:{}", meta.currentTerm, matched)
+            }
+            val response = AppendSuccessful(clusterDiscovery.self, meta.currentTerm, matched)
+            if (replicatedLog.sync { send(msg.member, response) }) {
+                send(msg.member, response)
             }
-            val response = AppendSuccessful(clusterDiscovery.self, meta.currentTerm, replicatedLog.lastIndex())
-            send(msg.member, response)
-
-            // If leaderCommit > commitIndex, set commitIndex = min(leaderCommit, index of last new entry)
 
-            if (msg.leaderCommit > replicatedLog.committedIndex()) {
-                val entries = replicatedLog.slice(replicatedLog.committedIndex() + 1, msg.leaderCommit)
+            // If leaderCommit > commitIndex, set commitIndex = min(leaderCommit, index of last new entry),
+            // entries after matched prefix may be stale entries of previous term
+            val commitIndex = Math.min(msg.leaderCommit, matched)
+            if (commitIndex > replicatedLog.committedIndex()) {
+                val entries = replicatedLog.slice(replicatedLog.committedIndex() + 1, commitIndex)
                 for (entry in entries) {
                     if (entry.command is ClusterConfiguration) {
                         if (logger.isInfoEnabled) {
@@ -463,16 +851,11 @@ class Raft @Inject constructor(
                         if (logger.isDebugEnabled) {
                             logger.debug("committing entry {} on follower, leader is committed until [{}]", entry, msg.leaderCommit)
                         }
-                        registry.apply(entry.index, entry.command).forEach { result ->
-                            if (logger.isDebugEnabled) {
-                                logger.debug("success client command session {}", entry.session)
-                            }
-                            val promise = sessionCommands.remove(entry.session)
-                            promise?.success(result)
-                        }
                     }
                     replicatedLog.commit(entry.index)
                 }
+                applyCommitted(entries)
+                applyReads()
             }
 
             val config = msg.entries
@@ -491,9 +874,26 @@ class Raft @Inject constructor(
             }
         }
 
+        override fun handle(message: TimeoutNow): State {
+            if (message.term == meta().currentTerm && meta().config.members.contains(clusterDiscovery.self)) {
+                if (logger.isInfoEnabled) {
+                    logger.info("leader {} transfers leadership, start election", message.leader)
+                }
+                return gotoCandidate(true)
+            }
+            logger.warn("ignore timeout now from {} in term {}, current term {}", message.leader,
+                    message.term, meta().currentTerm)
+            return this
+        }
+
         fun electionTimeout(): State {
             resetElectionDeadline()
-            return if (meta().config.members.isEmpty) {
+            return if (meta().config.learners.contains(clusterDiscovery.self)) {
+                if (logger.isInfoEnabled) {
+                    logger.info("learner does not start election, wait for promotion")
+                }
+                this
+            } else if (meta().config.members.isEmpty) {
                 if (logger.isInfoEnabled) {
                     logger.info("no members found, joint timeout")
                 }
@@ -575,28 +975,74 @@ class Raft @Inject constructor(
                     logger.info("got snapshot from {}, is for: {}", message.leader, message.snapshot.meta)
                 }
 
-                meta = meta.withConfig(message.snapshot.meta.config)
                 replicatedLog.compactWith(message.snapshot)
-                for (msg in message.snapshot.data) {
-                    registry.apply(message.snapshot.meta.lastIncludedIndex, msg)
-                }
+                return installed(message.leader, message.snapshot, meta)
+            }
+        }
 
+        override fun handle(message: InstallSnapshotChunk): State {
+            var meta = meta()
+            if (message.term > meta.currentTerm) {
                 if (logger.isInfoEnabled) {
-                    logger.info("response snapshot installed in {} last index {}", meta.currentTerm,
-                            replicatedLog.lastIndex())
+                    logger.info("received newer {}, current term is {}", message.term, meta.currentTerm)
+                }
+                meta = meta.withTerm(message.term)
+            }
+            if (message.term < meta.currentTerm) {
+                if (logger.isInfoEnabled) {
+                    logger.info("rejecting install snapshot {}, current term is {}", message.term, meta.currentTerm)
                 }
+                send(message.leader, InstallSnapshotRejected(clusterDiscovery.self, meta.currentTerm))
+                return stay(meta)
+            }
+            resetElectionDeadline()
+            senderIsCurrentLeader(message.leader)
+            if (replicatedLog.hasSnapshot() &&
+                    replicatedLog.snapshot().meta.lastIncludedIndex >= message.snapshotIndex) {
+                // resent chunk of installed snapshot, success response is lost
                 send(message.leader, InstallSnapshotSuccessful(clusterDiscovery.self,
                         meta.currentTerm, replicatedLog.lastIndex()))
-
                 return stay(meta)
             }
+            val received = replicatedLog.receiveSnapshot(message.snapshotTerm, message.snapshotIndex,
+                    message.length, message.offset, message.data)
+            if (received < message.length) {
+                send(message.leader, InstallSnapshotChunkAck(clusterDiscovery.self, meta.currentTerm,
+                        message.snapshotIndex, received))
+                return stay(meta)
+            }
+            val snapshot = replicatedLog.installSnapshot()
+            if (logger.isInfoEnabled) {
+                logger.info("received snapshot from {}, is for: {}", message.leader, snapshot.meta)
+            }
+            return installed(message.leader, snapshot, meta)
+        }
+
+        private fun installed(leader: DiscoveryNode, snapshot: RaftSnapshot, currentMeta: RaftMetadata): State {
+            val meta = currentMeta.withConfig(snapshot.meta.config)
+            applySnapshot(snapshot)
+
+            if (logger.isInfoEnabled) {
+                logger.info("response snapshot installed in {} last index {}", meta.currentTerm,
+                        replicatedLog.lastIndex())
+            }
+            send(leader, InstallSnapshotSuccessful(clusterDiscovery.self,
+                    meta.currentTerm, replicatedLog.lastIndex()))
+            applyReads()
+
+            return stay(meta)
         }
 
         fun unstash() {
             if (recentlyContactedByLeader.isDefined) {
                 val leader = recentlyContactedByLeader.get()
                 while (stashed.isNotEmpty()) {
-                    send(leader, stashed.poll())
+                    var batch = Vector.empty<ClientMessage>()
+                    while (batch.size() < batchSize) {
+                        val message = stashed.poll() ?: break
+                        batch = batch.append(message)
+                    }
+                    send(leader, ClientMessages(batch))
                 }
             } else {
                 logger.warn("try unstash without leader")
@@ -629,6 +1075,11 @@ class Raft @Inject constructor(
             return this
         }
 
+        override fun handle(message: ClientMessages): State {
+            message.messages.forEach { stash(it) }
+            return this
+        }
+
         override fun handle(request: AddServer): State {
             send(request.member, AddServerResponse(
                     AddServerResponse.Status.NOT_LEADER,
@@ -651,35 +1102,33 @@ class Raft @Inject constructor(
             }
             val timeout = Random().nextInt((electionDeadline / 2).toInt()) + electionDeadline
             context.setTimer(RaftContext.ELECTION_TIMEOUT, timeout) {
-                lock.lock()
-                try {
-                    if (state === this) {
-                        state = electionTimeout()
-                    } else {
-                        throw IllegalStateException()
+                execute {
+                    try {
+                        if (state === this) {
+                            state = electionTimeout()
+                        } else {
+                            throw IllegalStateException()
+                        }
+                    } catch (e: IllegalStateException) {
+                        logger.error("error handle election timeout", e)
                     }
-                } catch (e: IllegalStateException) {
-                    logger.error("error handle election timeout", e)
-                } finally {
-                    lock.unlock()
                 }
             }
         }
 
-        fun beginElection(): State {
+        fun beginElection(transfer: Boolean = false): State {
             resetElectionDeadline()
             var meta = meta()
             if (logger.isInfoEnabled) {
                 logger.info("initializing election (among {} nodes) for {}", meta.config.members.size(), meta.currentTerm)
             }
             val request = RequestVote(meta.currentTerm, clusterDiscovery.self,
-                    replicatedLog.lastTerm().getOrElse(0L), replicatedLog.lastIndex())
-            for (member in meta.membersWithout(clusterDiscovery.self)) {
-                if (logger.isInfoEnabled) {
-                    logger.info("send request vote to {}", member)
-                }
-                send(member, request)
+                    replicatedLog.lastTerm().getOrElse(0L), replicatedLog.lastIndex(), transfer)
+            val members = meta.membersWithout(clusterDiscovery.self)
+            if (logger.isInfoEnabled) {
+                logger.info("send request vote to {}", members)
             }
+            send(members, request)
             meta = meta.incVote().withVoteFor(clusterDiscovery.self)
             return if (meta.hasMajority()) {
                 if (logger.isInfoEnabled) {
@@ -791,6 +1240,20 @@ class Raft @Inject constructor(
             }
         }
 
+        override fun handle(message: InstallSnapshotChunk): State {
+            val leaderIsAhead = message.term >= meta().currentTerm
+            return if (leaderIsAhead) {
+                if (logger.isInfoEnabled) {
+                    logger.info("reverting to follower, because got install snapshot from leader in {}, but am in {}",
+                            message.term, meta().currentTerm)
+                }
+                stay(meta().withTerm(message.term)).gotoFollower().handle(message)
+            } else {
+                send(message.leader, InstallSnapshotRejected(clusterDiscovery.self, meta().currentTerm))
+                this
+            }
+        }
+
         fun electionTimeout(): State {
             if (logger.isInfoEnabled) {
                 logger.info("voting timeout, starting a new election (among {})", meta().config.members.size())
@@ -800,6 +1263,19 @@ class Raft @Inject constructor(
     }
 
     private inner class LeaderState(meta: RaftMetadata) : State(meta) {
+        private val reads = ArrayDeque<PendingRead>()
+        private val readyReads = ArrayDeque<PendingRead>()
+        private var readSeq = 0L
+        private var readBroadcast = 0L
+        private var leaseUntil = System.nanoTime()
+        // index of last configuration appended by this leader, learner is promoted after it is committed
+        private var configIndex = 0L
+        // leadership transfer target, new commands are stashed while transfer is in progress
+        private var transfer: DiscoveryNode? = null
+        private var transferPromise: Promise<Boolean>? = null
+        private var timeoutNowSent = false
+        // for each server progress of snapshot transfer
+        private var transfers: Map<DiscoveryNode, SnapshotTransfer> = HashMap.empty()
 
         override fun state(): RaftState {
             return Leader
@@ -812,6 +1288,13 @@ class Raft @Inject constructor(
 
         fun gotoFollower(): State {
             context.cancelTimer(RaftContext.SEND_HEARTBEAT)
+            context.cancelTimer(RaftContext.LEADERSHIP_TRANSFER)
+            transferPromise?.success(true)
+            transferPromise = null
+            reads.forEach { rejectRead(it.member, it.id) }
+            readyReads.forEach { rejectRead(it.member, it.id) }
+            reads.clear()
+            readyReads.clear()
             return FollowerState(this.meta().forFollower()).resetElectionDeadline()
         }
 
@@ -823,9 +1306,7 @@ class Raft @Inject constructor(
                     .withTerm(meta().currentTerm + 1)
                     .withConfig(StableClusterConfiguration(clusterDiscovery.self))
 
-            nextIndex = LogIndexMap(replicatedLog.lastIndex() + 1)
-            matchIndex = LogIndexMap(0)
-            replicationIndex = HashMap.empty()
+            progress = ReplicationProgress(clusterDiscovery.self, replicatedLog.lastIndex() + 1)
             val entry = if (replicatedLog.isEmpty) {
                 LogEntry(meta.currentTerm, replicatedLog.nextIndex(), 0, meta.config)
             } else {
@@ -833,7 +1314,7 @@ class Raft @Inject constructor(
             }
 
             replicatedLog.append(entry)
-            matchIndex.put(clusterDiscovery.self, entry.index)
+            appended(entry.index)
 
             sendHeartbeat()
             startHeartbeat()
@@ -845,7 +1326,7 @@ class Raft @Inject constructor(
                 }
                 val logEntry = LogEntry(meta.currentTerm, replicatedLog.nextIndex(), clientMessage.session, clientMessage.command)
                 replicatedLog.append(logEntry)
-                matchIndex.put(clusterDiscovery.self, entry.index)
+                appended(logEntry.index)
             }
 
             return stay(meta).maybeCommitEntry()
@@ -856,19 +1337,11 @@ class Raft @Inject constructor(
                 logger.info("became leader for {}", meta().currentTerm)
             }
 
-            // for each server, index of the next log entry
-            // to send to that server (initialized to leader
-            // last log index + 1)
-            nextIndex = LogIndexMap(replicatedLog.lastIndex() + 1)
-
-            // for each server, index of highest log entry
-            // known to be replicated on server
-            // (initialized to 0, increases monotonically)
-            matchIndex = LogIndexMap(0)
-
-            // for each server store last send heartbeat time
-            // 0 if no response is expected
-            replicationIndex = HashMap.empty()
+            // for each server, index of the next log entry to send to that server
+            // (initialized to leader last log index + 1), index of highest log entry
+            // known to be replicated on server (initialized to 0, increases monotonically),
+            // requests in flight and time of last request without response
+            progress = ReplicationProgress(clusterDiscovery.self, replicatedLog.lastIndex() + 1)
 
             val entry = if (replicatedLog.isEmpty) {
                 LogEntry(meta().currentTerm, replicatedLog.nextIndex(), 0, meta().config)
@@ -877,7 +1350,7 @@ class Raft @Inject constructor(
             }
 
             replicatedLog.append(entry)
-            matchIndex.put(clusterDiscovery.self, entry.index)
+            appended(entry.index)
 
             sendHeartbeat()
             startHeartbeat()
@@ -890,23 +1363,126 @@ class Raft @Inject constructor(
                 val logEntry = LogEntry(meta().currentTerm, replicatedLog.nextIndex(),
                         clientMessage.session, clientMessage.command)
                 replicatedLog.append(logEntry)
-                matchIndex.put(clusterDiscovery.self, entry.index)
+                appended(logEntry.index)
             }
 
             return maybeCommitEntry()
         }
 
         override fun handle(message: ClientMessage): State {
+            if (transfer != null) {
+                stash(message)
+                return this
+            }
             if (logger.isDebugEnabled) {
                 logger.debug("appending command: [{}] to replicated log", message.command)
             }
             val entry = LogEntry(meta().currentTerm, replicatedLog.nextIndex(), message.session, message.command)
             replicatedLog.append(entry)
-            matchIndex.put(clusterDiscovery.self, entry.index)
+            // start local sync first, entries are sent to followers while it is in progress
+            appended(entry.index)
+            sendHeartbeat()
+            return maybeCommitEntry()
+        }
+
+        /**
+         * Batch is appended to log with one sync and replicated in one round.
+         */
+        override fun handle(message: ClientMessages): State {
+            if (message.messages.isEmpty) {
+                return this
+            }
+            if (transfer != null) {
+                message.messages.forEach { stash(it) }
+                return this
+            }
+            if (logger.isDebugEnabled) {
+                logger.debug("appending {} commands to replicated log", message.messages.size())
+            }
+            for (clientMessage in message.messages) {
+                val entry = LogEntry(meta().currentTerm, replicatedLog.nextIndex(),
+                        clientMessage.session, clientMessage.command)
+                replicatedLog.append(entry)
+            }
+            appended(replicatedLog.lastIndex())
             sendHeartbeat()
             return maybeCommitEntry()
         }
 
+        override fun handle(message: ReadIndex): State {
+            val index = replicatedLog.committedIndex()
+            if (leaseReads && System.nanoTime() - leaseUntil < 0) {
+                readyReads.add(PendingRead(readSeq, message.member, message.id, index, 0, LongArray(0)))
+                serveReads()
+                return this
+            }
+            readSeq++
+            reads.add(PendingRead(readSeq, message.member, message.id, index, System.nanoTime(), progress.sentCounts()))
+            confirmReads()
+            return this
+        }
+
+        private fun leadershipConfirmed(read: PendingRead): Boolean {
+            return progress.confirmed(meta().config, read.sent)
+        }
+
+        /**
+         * Reads are confirmed in order, one heartbeat round is in flight for all reads registered before it.
+         */
+        private fun confirmReads() {
+            while (reads.isNotEmpty() && leadershipConfirmed(reads.peek())) {
+                val read = reads.poll()
+                // lease is not extended while leadership is transferred, target is elected without it
+                if (leaseReads && transfer == null) {
+                    leaseUntil = Math.max(leaseUntil, read.started + leaseNanos)
+                }
+                readyReads.add(read)
+            }
+            if (reads.isNotEmpty() && reads.peek().seq > readBroadcast) {
+                readBroadcast = readSeq
+                for (follower in progress.replicas(meta().config)) {
+                    sendEntries(follower)
+                }
+            }
+            serveReads()
+        }
+
+        /**
+         * Leader knows latest commit index only after it committed entry in own term.
+         */
+        private fun serveReads() {
+            val committedIndex = replicatedLog.committedIndex()
+            if (readyReads.isEmpty() || replicatedLog.termAt(committedIndex) != meta().currentTerm) {
+                return
+            }
+            while (readyReads.isNotEmpty()) {
+                val read = readyReads.poll()
+                completeRead(read.member, read.id, Math.max(read.index, committedIndex))
+            }
+        }
+
+        /**
+         * Leader counts itself in majority only for entries durable in local log.
+         * Appends made while previous sync is running are coalesced into one sync.
+         *
+         * Sync runs in background, callers send entries to followers right after this call,
+         * so local write and replication overlap and commit waits for the slower of them.
+         */
+        fun appended(index: Long) {
+            if (replicatedLog.sync { durable(index) }) {
+                progress.matchIfGreater(progress.ordinal(clusterDiscovery.self), index)
+            }
+        }
+
+        private fun durable(index: Long) {
+            execute {
+                if (state === this) {
+                    progress.matchIfGreater(progress.ordinal(clusterDiscovery.self), index)
+                    state = maybeCommitEntry()
+                }
+            }
+        }
+
         override fun handle(message: AppendEntries): State {
             return if (message.term > meta().currentTerm) {
                 if (logger.isInfoEnabled) {
@@ -916,6 +1492,7 @@ class Raft @Inject constructor(
             } else {
                 logger.warn("leader ({}) got append entries from rogue leader ({} @ {}), it's not fresher than self, " + "will send entries, to force it to step down.", meta().currentTerm, message.member,
                         message.term)
+                rewind(message.member)
                 sendEntries(message.member)
                 this
             }
@@ -926,15 +1503,29 @@ class Raft @Inject constructor(
                 return stay(meta().withTerm(message.term)).gotoFollower()
             }
             return if (message.term == meta().currentTerm) {
-                val nextIndexFor = nextIndex.indexFor(message.member)
-                if (nextIndexFor > message.lastIndex) {
-                    nextIndex.put(message.member, message.lastIndex)
+                val follower = progress.ordinal(message.member)
+                val nextIndexFor = progress.next(follower)
+                if (message.prevLogIndex != nextIndexFor - 1) {
+                    return staleReject(follower, message)
+                }
+                val next = if (message.conflictIndex > 0) conflictNextIndex(message, nextIndexFor) else nextIndexFor
+                if (next < nextIndexFor) {
+                    progress.next(follower, Math.max(1, next))
+                } else if (nextIndexFor > message.lastIndex) {
+                    progress.next(follower, message.lastIndex)
                 } else if (nextIndexFor > 0) {
-                    nextIndex.decrementFor(message.member)
+                    progress.next(follower, nextIndexFor - 1)
                 }
-                logger.warn("follower {} rejected write, term {}, decrement index to {}", message.member,
-                        message.term, nextIndex.indexFor(message.member))
-                sendEntries(message.member)
+                // entries up to match index are confirmed by follower, next index is never moved below them
+                if (progress.next(follower) <= progress.match(follower)) {
+                    progress.next(follower, progress.match(follower) + 1)
+                }
+                logger.warn("follower {} rejected write, term {}, conflict {}:{}, decrement index to {}", message.member,
+                        message.term, message.conflictTerm, message.conflictIndex, progress.next(follower))
+                rewind(follower)
+                sendEntries(follower)
+                progress.acked(follower)
+                confirmReads()
                 this
             } else {
                 logger.warn("follower {} rejected write: {}, ignore", message.member, message.term)
@@ -942,6 +1533,42 @@ class Raft @Inject constructor(
             }
         }
 
+        /**
+         * Requests of pipelined window are spread over connections, so responses may be reordered or
+         * duplicated. Only reject of request sent from next index moves it back, reject of other request
+         * releases its slot in window: request before next index is outdated by later success, request
+         * after it was rejected as received before earlier one or its reject is already handled. If such
+         * request is lost, follower does not respond in heartbeat interval and leader resends from next index.
+         */
+        private fun staleReject(follower: Int, message: AppendRejected): State {
+            if (logger.isDebugEnabled) {
+                logger.debug("follower {} rejected write prev {}, next index is {}, ignore", message.member,
+                        message.prevLogIndex, progress.next(follower))
+            }
+            val pending = Math.max(0, progress.inflight(follower) - 1)
+            progress.inflight(follower, pending)
+            if (pending == 0) {
+                progress.sentAt(follower, 0L)
+            }
+            progress.acked(follower)
+            confirmReads()
+            return this
+        }
+
+        /**
+         * Skips whole conflicting term, see raft thesis 5.3: next to last leader entry of conflict term
+         * below current next index, or first follower entry of conflict term if leader has no such entry.
+         */
+        private fun conflictNextIndex(message: AppendRejected, nextIndexFor: Long): Long {
+            if (message.conflictTerm > 0) {
+                val lastOfTerm = replicatedLog.lastIndexOfTerm(message.conflictTerm)
+                if (lastOfTerm in 1..(nextIndexFor - 2)) {
+                    return lastOfTerm + 1
+                }
+            }
+            return message.conflictIndex
+        }
+
         override fun handle(message: AppendSuccessful): State {
             if (message.term > meta().currentTerm) {
                 return stay(meta().withTerm(message.term)).gotoFollower()
@@ -951,13 +1578,28 @@ class Raft @Inject constructor(
                     logger.info("received append successful {} in term: {}", message, meta().currentTerm)
                 }
                 assert(message.lastIndex <= replicatedLog.lastIndex())
-                if (message.lastIndex > 0) {
-                    nextIndex.put(message.member, message.lastIndex + 1)
+                val follower = progress.ordinal(message.member)
+                if (message.lastIndex > 0 && progress.next(follower) < message.lastIndex + 1) {
+                    progress.next(follower, message.lastIndex + 1)
                 }
-                matchIndex.putIfGreater(message.member, message.lastIndex)
-                replicationIndex = replicationIndex.put(message.member, 0L)
-                maybeSendEntries(message.member)
-                return maybeCommitEntry()
+                progress.matchIfGreater(follower, message.lastIndex)
+                if (progress.send(follower) < progress.next(follower)) {
+                    progress.send(follower, progress.next(follower))
+                }
+                val pending = Math.max(0, progress.inflight(follower) - 1)
+                progress.inflight(follower, pending)
+                if (pending == 0) {
+                    progress.sentAt(follower, 0L)
+                }
+                maybeSendEntries(follower)
+                progress.acked(follower)
+                confirmReads()
+                val state = maybeCommitEntry()
+                if (state !== this) {
+                    return state
+                }
+                maybeTimeoutNow()
+                return maybePromote(message.member)
             } else {
                 logger.warn("unexpected append successful: {} in term:{}", message, meta().currentTerm)
                 return this
@@ -978,11 +1620,53 @@ class Raft @Inject constructor(
                 }
                 logger.warn("leader ({}) got install snapshot from rogue leader ({} @ {}), " + "it's not fresher than self, will send entries, to force it to step down.",
                         meta().currentTerm, message.leader, message.term)
+                rewind(message.leader)
                 sendEntries(message.leader)
                 return this
             }
         }
 
+        override fun handle(message: InstallSnapshotChunk): State {
+            if (message.term > meta().currentTerm) {
+                if (logger.isInfoEnabled) {
+                    logger.info("leader ({}) got install snapshot from fresher leader ({}), " + "will step down and the leader will keep being: {}",
+                            meta().currentTerm, message.term, message.leader)
+                }
+                return stay(meta().withTerm(message.term)).gotoFollower().handle(message)
+            } else {
+                logger.warn("leader ({}) got install snapshot from rogue leader ({} @ {}), " + "it's not fresher than self, will send entries, to force it to step down.",
+                        meta().currentTerm, message.leader, message.term)
+                rewind(message.leader)
+                sendEntries(message.leader)
+                return this
+            }
+        }
+
+        override fun handle(message: InstallSnapshotChunkAck): State {
+            if (message.term > meta().currentTerm) {
+                return stay(meta().withTerm(message.term)).gotoFollower()
+            }
+            if (message.term == meta().currentTerm) {
+                val transfer = transfers.getOrElse(message.member, null)
+                if (transfer != null && transfer.index == message.snapshotIndex) {
+                    if (logger.isDebugEnabled) {
+                        logger.debug("follower {} received {} bytes of snapshot {}", message.member,
+                                message.received, message.snapshotIndex)
+                    }
+                    transfer.acked = Math.max(transfer.acked, message.received)
+                    transfer.offset = Math.max(transfer.offset, transfer.acked)
+                    // transfer is in progress, do not re-send window on heartbeat
+                    progress.sentAt(progress.ordinal(message.member), System.currentTimeMillis())
+                    if (replicatedLog.hasSnapshot() && replicatedLog.snapshot().meta.lastIncludedIndex == transfer.index) {
+                        sendSnapshot(message.member)
+                    }
+                }
+            } else {
+                logger.warn("unexpected install snapshot ack: {} in term:{}", message, meta().currentTerm)
+            }
+            return this
+        }
+
         override fun handle(message: InstallSnapshotSuccessful): State {
             if (message.term > meta().currentTerm) {
                 return stay(meta().withTerm(message.term)).gotoFollower()
@@ -993,10 +1677,13 @@ class Raft @Inject constructor(
                             replicatedLog.lastIndex())
                 }
                 assert(message.lastIndex <= replicatedLog.lastIndex())
+                val follower = progress.ordinal(message.member)
                 if (message.lastIndex > 0) {
-                    nextIndex.put(message.member, message.lastIndex + 1)
+                    progress.next(follower, message.lastIndex + 1)
                 }
-                matchIndex.putIfGreater(message.member, message.lastIndex)
+                progress.matchIfGreater(follower, message.lastIndex)
+                transfers = transfers.remove(message.member)
+                rewind(follower)
                 maybeCommitEntry()
             } else {
                 logger.warn("unexpected install snapshot successful: {} in term:{}", message, meta().currentTerm)
@@ -1013,10 +1700,12 @@ class Raft @Inject constructor(
                         logger.info("follower {} rejected write: {}, back out the first index in this term and retry",
                                 message.member, message.term)
                     }
-                    if (nextIndex.indexFor(message.member) > 1) {
-                        nextIndex.decrementFor(message.member)
+                    val follower = progress.ordinal(message.member)
+                    if (progress.next(follower) > 1) {
+                        progress.next(follower, progress.next(follower) - 1)
                     }
-                    sendEntries(message.member)
+                    rewind(follower)
+                    sendEntries(follower)
                     return this
                 }
                 else -> {
@@ -1028,7 +1717,7 @@ class Raft @Inject constructor(
 
         override fun handle(request: AddServer): State {
             var meta = meta()
-            if (meta.config.isTransitioning) {
+            if (meta.config.isTransitioning || transfer != null) {
                 logger.warn("try add server {} in transitioning state", request.member)
                 send(request.member, AddServerResponse(
                         AddServerResponse.Status.TIMEOUT,
@@ -1036,33 +1725,127 @@ class Raft @Inject constructor(
                 ))
                 return stay(meta)
             } else {
-                if (meta.members().contains(request.member)) {
+                if (meta.members().contains(request.member) || meta.config.learners.contains(request.member)) {
                     send(request.member, AddServerResponse(
                             AddServerResponse.Status.OK,
                             Option.some(clusterDiscovery.self)
                     ))
                     return stay(meta)
                 }
+                if (learnerEnabled) {
+                    if (logger.isInfoEnabled) {
+                        logger.info("add learner {}", request.member)
+                    }
+                    val config = meta.config.withLearners(meta.config.learners.add(request.member))
+                    configIndex = replicatedLog.nextIndex()
+                    return stay(meta.withConfig(config)).handle(ClientMessage(config, 0))
+                }
                 val config = StableClusterConfiguration(meta.members().add(request.member))
                 meta = meta.withConfig(meta.config.transitionTo(config))
+                configIndex = replicatedLog.nextIndex()
                 return stay(meta).handle(ClientMessage(config, 0))
             }
         }
 
+        override fun transferLeadership(member: Option<DiscoveryNode>, promise: Promise<Boolean>): State {
+            var target = member.getOrNull()
+            if (target == null) {
+                for (follower in meta().membersWithout(clusterDiscovery.self)) {
+                    if (target == null || progress.match(follower) > progress.match(target)) {
+                        target = follower
+                    }
+                }
+            }
+            if (transfer != null || target == null || target == clusterDiscovery.self ||
+                    !meta().members().contains(target)) {
+                logger.warn("reject leadership transfer to {}, in progress to {}", target, transfer)
+                promise.success(false)
+                return this
+            }
+            if (logger.isInfoEnabled) {
+                logger.info("transfer leadership to {}", target)
+            }
+            transfer = target
+            transferPromise = promise
+            timeoutNowSent = false
+            leaseUntil = System.nanoTime()
+            context.setTimer(RaftContext.LEADERSHIP_TRANSFER, electionDeadline) {
+                execute {
+                    if (state === this) {
+                        state = abortTransfer()
+                    }
+                }
+            }
+            maybeSendEntries(progress.ordinal(target))
+            maybeTimeoutNow()
+            return this
+        }
+
+        /**
+         * Target starts election once it's log is up to date, commands are not appended meanwhile.
+         */
+        private fun maybeTimeoutNow() {
+            val target = transfer ?: return
+            if (!timeoutNowSent && progress.match(target) >= replicatedLog.lastIndex()) {
+                if (logger.isInfoEnabled) {
+                    logger.info("send timeout now to {} at index {}", target, replicatedLog.lastIndex())
+                }
+                timeoutNowSent = true
+                send(target, TimeoutNow(meta().currentTerm, clusterDiscovery.self))
+            }
+        }
+
+        private fun abortTransfer(): State {
+            logger.warn("leadership transfer to {} is not completed in {}ms", transfer, electionDeadline)
+            transfer = null
+            transferPromise?.success(false)
+            transferPromise = null
+            var batch = Vector.empty<ClientMessage>()
+            while (stashed.isNotEmpty()) {
+                batch = batch.append(stashed.poll() ?: break)
+            }
+            return handle(ClientMessages(batch))
+        }
+
+        /**
+         * Learner joins voting members by joint consensus once it's log is within catch-up
+         * entries of commit index, so new member does not delay commits while it catches up.
+         */
+        private fun maybePromote(member: DiscoveryNode): State {
+            val meta = meta()
+            if (transfer != null || meta.config.isTransitioning || !meta.config.learners.contains(member) ||
+                    replicatedLog.committedIndex() < configIndex ||
+                    progress.match(member) + learnerCatchUp < replicatedLog.committedIndex()) {
+                return this
+            }
+            if (logger.isInfoEnabled) {
+                logger.info("promote learner {} at index {}", member, progress.match(member))
+            }
+            val config = StableClusterConfiguration(meta.members().add(member), meta.config.learners.remove(member))
+            configIndex = replicatedLog.nextIndex()
+            return stay(meta.withConfig(meta.config.transitionTo(config))).handle(ClientMessage(config, 0))
+        }
+
         override fun handle(request: RemoveServer): State {
             var meta = meta()
-            if (meta.config.isTransitioning) {
+            if (meta.config.isTransitioning || transfer != null) {
                 logger.warn("try remove server {} in transitioning state", request.member)
                 send(request.member, RemoveServerResponse(
                         RemoveServerResponse.Status.TIMEOUT,
                         Option.some(clusterDiscovery.self)
                 ))
+            } else if (meta.config.learners.contains(request.member)) {
+                val config = meta.config.withLearners(meta.config.learners.remove(request.member))
+                configIndex = replicatedLog.nextIndex()
+                return stay(meta.withConfig(config)).handle(ClientMessage(config, 0))
             } else {
                 val config = StableClusterConfiguration(
-                        meta.membersWithout(request.member)
+                        meta.membersWithout(request.member),
+                        meta.config.learners
                 )
                 meta.config.transitionTo(config)
                 meta = meta.withConfig(meta.config.transitionTo(config))
+                configIndex = replicatedLog.nextIndex()
                 return stay(meta).handle(ClientMessage(config, 0))
             }
             return stay(meta)
@@ -1088,17 +1871,16 @@ class Raft @Inject constructor(
                 logger.info("starting heartbeat")
             }
             context.startTimer(RaftContext.SEND_HEARTBEAT, heartbeat, heartbeat) {
-                lock.lock()
-                try {
-                    if (state === this) {
-                        state = sendHeartbeat()
-                    } else {
-                        throw IllegalStateException()
+                execute {
+                    try {
+                        if (state === this) {
+                            state = sendHeartbeat()
+                        } else {
+                            throw IllegalStateException()
+                        }
+                    } catch (e: IllegalStateException) {
+                        logger.error("error send heartbeat", e)
                     }
-                } catch (e: IllegalStateException) {
-                    logger.error("error send heartbeat", e)
-                } finally {
-                    lock.unlock()
                 }
             }
         }
@@ -1108,47 +1890,110 @@ class Raft @Inject constructor(
                 logger.debug("send heartbeat: {}", meta().members())
             }
             val timeout = System.currentTimeMillis() - heartbeat
-            meta().membersWithout(clusterDiscovery.self)
-                    .filter {
-                        // check heartbeat response timeout for prevent re-send heartbeat
-                        replicationIndex.getOrElse(it, 0L) < timeout
-                    }
-                    .forEach { sendEntries(it) }
+            for (follower in progress.replicas(meta().config)) {
+                // check heartbeat response timeout for prevent re-send heartbeat
+                if (progress.sentAt(follower) < timeout) {
+                    // no response in heartbeat interval, in-flight requests are considered lost
+                    rewind(follower)
+                    sendEntries(follower)
+                }
+                maybeSendEntries(follower)
+            }
             return this
         }
 
-        fun maybeSendEntries(follower: DiscoveryNode) {
-            // check heartbeat response timeout for prevent re-send heartbeat
-            val timeout = System.currentTimeMillis() - heartbeat
-            if (replicationIndex.getOrElse(follower, 0L) < timeout) {
-                // if member is already append prev entries,
-                // their next index must be equal to last index in log
-                if (nextIndex.indexFor(follower) <= replicatedLog.lastIndex()) {
-                    sendEntries(follower)
+        /**
+         * Sends next batches without waiting for response while follower has less than
+         * `raft.max-inflight` requests in flight. Until follower confirms matching log,
+         * only one request is in flight to not flood it with batches to be rejected.
+         */
+        fun maybeSendEntries(follower: Int) {
+            val window = if (progress.match(follower) + 1 >= progress.next(follower)) maxInflight else 1
+            while (progress.inflight(follower) < window && progress.send(follower) <= replicatedLog.lastIndex()) {
+                if (sendEntries(follower) == 0) {
+                    break
+                }
+            }
+        }
+
+        /**
+         * Drops in-flight requests, next request is sent from last confirmed index.
+         */
+        fun rewind(follower: DiscoveryNode) {
+            rewind(progress.ordinal(follower))
+        }
+
+        fun rewind(follower: Int) {
+            progress.send(follower, progress.next(follower))
+            progress.inflight(follower, 0)
+            val transfer = transfers.getOrElse(progress.member(follower), null)
+            if (transfer != null) {
+                transfer.offset = transfer.acked
+            }
+        }
+
+        /**
+         * Streams persisted snapshot in chunks of `raft.snapshot-chunk-size`, at most `raft.snapshot-window`
+         * chunks are not acknowledged. Transfer of the same snapshot continues from acknowledged offset.
+         */
+        fun sendSnapshot(follower: DiscoveryNode) {
+            val meta = replicatedLog.snapshot().meta
+            val length = replicatedLog.snapshotLength()
+            var transfer = transfers.getOrElse(follower, null)
+            if (transfer == null || transfer.index != meta.lastIncludedIndex) {
+                if (logger.isInfoEnabled) {
+                    logger.info("send install snapshot {}:{} of {} bytes to {} in term {}", meta.lastIncludedTerm,
+                            meta.lastIncludedIndex, length, follower, meta().currentTerm)
                 }
+                transfer = SnapshotTransfer(meta.lastIncludedIndex, 0, 0)
+                transfers = transfers.put(follower, transfer)
             }
+            if (transfer.acked >= length) {
+                // all chunks are acknowledged but success is lost, follower responds to any chunk again
+                transfer.offset = Math.max(0, length - snapshotChunkSize)
+            }
+            while (transfer.offset < length && transfer.offset - transfer.acked < snapshotWindow.toLong() * snapshotChunkSize) {
+                val size = Math.min(snapshotChunkSize.toLong(), length - transfer.offset).toInt()
+                send(follower, InstallSnapshotChunk(
+                        clusterDiscovery.self,
+                        meta().currentTerm,
+                        meta.lastIncludedTerm,
+                        meta.lastIncludedIndex,
+                        length,
+                        transfer.offset,
+                        replicatedLog.readSnapshot(transfer.offset, size)
+                ))
+                transfer.offset += size
+            }
+        }
+
+        /**
+         * Sends one request from send index and optimistically advances it past sent entries.
+         * Returns count of sent entries, 0 for heartbeat or snapshot.
+         */
+        fun sendEntries(follower: DiscoveryNode): Int {
+            return sendEntries(progress.ordinal(follower))
         }
 
-        fun sendEntries(follower: DiscoveryNode) {
+        fun sendEntries(ordinal: Int): Int {
             val meta = meta()
-            replicationIndex = replicationIndex.put(follower, System.currentTimeMillis())
-            val lastIndex = nextIndex.indexFor(follower)
+            val follower = progress.member(ordinal)
+            progress.sentAt(ordinal, System.currentTimeMillis())
+            progress.inflight(ordinal, progress.inflight(ordinal) + 1)
+            val lastIndex = progress.send(ordinal)
 
             if (replicatedLog.hasSnapshot()) {
                 val snapshot = replicatedLog.snapshot()
                 if (snapshot.meta.lastIncludedIndex >= lastIndex) {
-                    if (logger.isInfoEnabled) {
-                        logger.info("send install snapshot to {} in term {}", follower, meta.currentTerm)
-                    }
-                    send(follower, InstallSnapshot(clusterDiscovery.self, meta.currentTerm, snapshot))
-                    return
+                    sendSnapshot(follower)
+                    return 0
                 }
             }
 
             if (lastIndex > replicatedLog.nextIndex()) {
                 throw Error("Unexpected from index " + lastIndex + " > " + replicatedLog.nextIndex())
             } else {
-                val entries = replicatedLog.entriesBatchFrom(lastIndex, maxEntries)
+                val entries = replicatedLog.entriesBatchFrom(lastIndex, maxEntries, maxFrameSize)
                 val prevIndex = Math.max(0, lastIndex - 1)
                 val prevTerm = replicatedLog.termAt(prevIndex)
                 if (logger.isInfoEnabled) {
@@ -1163,13 +2008,16 @@ class Raft @Inject constructor(
                         entries
                 )
                 send(follower, append)
+                progress.sent(ordinal)
+                progress.send(ordinal, lastIndex + entries.size())
+                return entries.size()
             }
         }
 
         fun maybeCommitEntry(): State {
             var meta = meta()
             while (true) {
-                val indexOnMajority = matchIndex.consensusForIndex(meta.config)
+                val indexOnMajority = progress.consensusForIndex(meta.config)
                 if (indexOnMajority > replicatedLog.committedIndex()) {
 
                     if (logger.isInfoEnabled) {
@@ -1185,7 +2033,7 @@ class Raft @Inject constructor(
                         logger.warn("do not commit prev term")
                         return stay(meta)
                     }
-                    for ((_, index, session, config) in entries) {
+                    for ((_, index, _, config) in entries) {
                         if (logger.isInfoEnabled) {
                             logger.info("committing log at index: {}", index)
                         }
@@ -1196,30 +2044,21 @@ class Raft @Inject constructor(
                             }
                             meta = meta.withConfig(config)
                             if (!meta.config.containsOnNewState(clusterDiscovery.self)) {
+                                applyCommitted(entries.takeWhile { it.index <= index })
                                 return stay(meta).gotoFollower()
                             }
                         } else if (config is Noop) {
                             if (logger.isTraceEnabled) {
                                 logger.trace("ignore noop entry")
                             }
-                        } else {
-                            if (logger.isDebugEnabled) {
-                                logger.info("applying command[index={}]: {}",
-                                    index, config.javaClass.simpleName)
-                            }
-                            registry.apply(index, config).forEach { result ->
-                                if (logger.isDebugEnabled) {
-                                    logger.debug("success client command session {}", session)
-                                }
-                                val promise = sessionCommands.remove(session)
-                                promise?.success(result)
-                            }
                         }
                     }
+                    applyCommitted(entries)
                 }else{
                     break
                 }
             }
+            serveReads()
             return if (replicatedLog.committedEntries() >= snapshotInterval) {
                 stay(meta).createSnapshot()
             } else {
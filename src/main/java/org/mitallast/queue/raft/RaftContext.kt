@@ -4,6 +4,7 @@ import com.google.inject.Inject
 import io.netty.util.concurrent.DefaultThreadFactory
 import org.mitallast.queue.common.component.AbstractLifecycleComponent
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
@@ -16,9 +17,21 @@ interface RaftContext {
 
     fun cancelTimer(name: String)
 
+    /**
+     * Runs task on single thread executor with given name, outside of timer thread.
+     * Tasks submitted to the same executor run in submission order.
+     */
+    fun submit(executor: String, task: () -> Unit)
+
     companion object {
         val ELECTION_TIMEOUT = "election-timeout"
         val SEND_HEARTBEAT = "send-heartbeat"
+        val CLIENT_BATCH = "client-batch"
+        val LEADERSHIP_TRANSFER = "leadership-transfer"
+
+        val SNAPSHOT = "snapshot"
+        val APPLY = "apply"
+        val ACTOR = "actor"
     }
 }
 
@@ -26,6 +39,7 @@ class DefaultRaftContext @Inject constructor() : AbstractLifecycleComponent(), R
 
     private val timers = ConcurrentHashMap<String, ScheduledFuture<*>>()
     private val scheduler= Executors.newScheduledThreadPool(1, DefaultThreadFactory("raft"))
+    private val executors = ConcurrentHashMap<String, ExecutorService>()
 
     override fun doStart() {}
 
@@ -33,25 +47,32 @@ class DefaultRaftContext @Inject constructor() : AbstractLifecycleComponent(), R
 
     override fun doClose() {
         scheduler.shutdown()
+        executors.values.forEach { it.shutdown() }
     }
 
     override fun setTimer(name: String, delayMs: Long, task: () -> Unit) {
         timers.compute(name) { _, prev ->
-            prev?.cancel(true)
+            prev?.cancel(false)
             scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS)
         }
     }
 
     override fun startTimer(name: String, delayMs: Long, periodMs: Long, task: () -> Unit) {
         timers.compute(name) { _, prev ->
-            prev?.cancel(true)
+            prev?.cancel(false)
             scheduler.scheduleAtFixedRate(task, delayMs, periodMs, TimeUnit.MILLISECONDS)
         }
     }
 
     override fun cancelTimer(name: String) {
         val prev = timers.remove(name)
-        prev?.cancel(true)
+        prev?.cancel(false)
+    }
+
+    override fun submit(executor: String, task: () -> Unit) {
+        executors.computeIfAbsent(executor) {
+            Executors.newSingleThreadExecutor(DefaultThreadFactory("raft-" + executor))
+        }.execute(task)
     }
 }
 
@@ -70,6 +91,10 @@ class TestRaftContext : RaftContext {
         timers.remove(name)
     }
 
+    override fun submit(executor: String, task: () -> Unit) {
+        task.invoke()
+    }
+
     fun runTimer(name: String) {
         val runnable = timers[name]
         runnable!!.invoke()
@@ -0,0 +1,264 @@
+package org.mitallast.queue.raft
+
+import com.google.inject.Inject
+import com.typesafe.config.Config
+import io.vavr.collection.HashMap
+import io.vavr.collection.Map
+import io.vavr.collection.Vector
+import org.mitallast.queue.common.codec.Message
+import org.mitallast.queue.common.component.AbstractLifecycleComponent
+import org.mitallast.queue.common.events.DefaultEventBus
+import org.mitallast.queue.common.events.EventBus
+import org.mitallast.queue.common.file.FileService
+import org.mitallast.queue.raft.cluster.ClusterDiscovery
+import org.mitallast.queue.raft.persistent.FilePersistentService
+import org.mitallast.queue.raft.protocol.GroupMessage
+import org.mitallast.queue.raft.protocol.GroupMessages
+import org.mitallast.queue.raft.resource.ResourceRegistry
+import org.mitallast.queue.transport.DiscoveryNode
+import org.mitallast.queue.transport.TransportController
+import org.mitallast.queue.transport.TransportService
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Independent raft groups configured by `raft.groups`, multiplexed over node transport.
+ *
+ * Each group has own log in `raft-groups/<group>` file service directory, own resource registry
+ * and event bus. Group messages are wrapped to [GroupMessage], heartbeats of all groups are sent
+ * in one round, and messages of the round to the same node are coalesced to one [GroupMessages].
+ *
+ * Messages sent while round is open are collected in per node outbox, it is flushed when heartbeats
+ * of all groups are handled. In `actor` execution mode heartbeat is handled by group actor later,
+ * so round is closed by marker task which follows heartbeat in executor of group actor.
+ */
+class RaftGroups @Inject constructor(
+    config: Config,
+    private val transportService: TransportService,
+    private val transportController: TransportController,
+    private val clusterDiscovery: ClusterDiscovery,
+    private val fileService: FileService,
+    private val context: RaftContext
+) : AbstractLifecycleComponent() {
+    private val heartbeat = config.getDuration("raft.heartbeat", TimeUnit.MILLISECONDS)
+    private val actor = config.getString("raft.execution") == "actor"
+    private val heartbeats = ConcurrentHashMap<String, () -> Unit>()
+    private val outboxLock = ReentrantLock()
+    private var outbox = java.util.HashMap<DiscoveryNode, Vector<GroupMessage>>()
+    // open rounds and groups with heartbeat not yet handled, guarded by outbox lock
+    private var pending = 0
+    private val groups: Map<String, RaftGroup>
+
+    init {
+        var groups: Map<String, RaftGroup> = HashMap.empty()
+        for (group in config.getStringList("raft.groups")) {
+            groups = groups.put(group, RaftGroup(config, group))
+        }
+        this.groups = groups
+
+        transportController.registerMessageHandler(GroupMessage::class.java, this::handle)
+        transportController.registerMessageHandler(GroupMessages::class.java, this::handle)
+    }
+
+    fun groups(): Map<String, RaftGroup> {
+        return groups
+    }
+
+    fun group(group: String): RaftGroup {
+        return groups.get(group).getOrElseThrow { IllegalArgumentException("unknown raft group $group") }
+    }
+
+    private fun handle(message: GroupMessage) {
+        val group = groups.getOrElse(message.group, null)
+        if (group != null) {
+            group.controller.dispatch(message.message)
+        } else {
+            logger.warn("unexpected message of unknown raft group {}", message.group)
+        }
+    }
+
+    private fun handle(messages: GroupMessages) {
+        messages.messages.forEach { handle(it) }
+    }
+
+    private fun sendGroup(node: DiscoveryNode, message: GroupMessage) {
+        outboxLock.lock()
+        try {
+            if (pending > 0) {
+                outbox[node] = outbox.getOrDefault(node, Vector.empty()).append(message)
+                return
+            }
+        } finally {
+            outboxLock.unlock()
+        }
+        transportService.send(node, message)
+    }
+
+    private fun sendGroup(nodes: Iterable<DiscoveryNode>, message: GroupMessage) {
+        outboxLock.lock()
+        try {
+            if (pending > 0) {
+                nodes.forEach { outbox[it] = outbox.getOrDefault(it, Vector.empty()).append(message) }
+                return
+            }
+        } finally {
+            outboxLock.unlock()
+        }
+        transportService.send(nodes, message)
+    }
+
+    private fun sendHeartbeat() {
+        hold()
+        try {
+            for ((group, task) in heartbeats) {
+                try {
+                    if (actor) {
+                        hold()
+                        try {
+                            task.invoke()
+                        } finally {
+                            // group actor executor runs tasks in order, marker runs after heartbeat is handled
+                            submitRelease(group)
+                        }
+                    } else {
+                        task.invoke()
+                    }
+                } catch (e: Exception) {
+                    logger.error("error send group heartbeat", e)
+                }
+            }
+        } finally {
+            release()
+        }
+    }
+
+    private fun hold() {
+        outboxLock.lock()
+        try {
+            pending++
+        } finally {
+            outboxLock.unlock()
+        }
+    }
+
+    private fun submitRelease(group: String) {
+        try {
+            context.submit("$group/${RaftContext.ACTOR}") { release() }
+        } catch (e: Exception) {
+            release()
+            throw e
+        }
+    }
+
+    private fun release() {
+        outboxLock.lock()
+        val flush = try {
+            pending--
+            if (pending > 0 || outbox.isEmpty()) {
+                null
+            } else {
+                val flush = outbox
+                outbox = java.util.HashMap()
+                flush
+            }
+        } finally {
+            outboxLock.unlock()
+        }
+        if (flush == null) {
+            return
+        }
+        for ((node, messages) in flush) {
+            if (messages.size() == 1) {
+                transportService.send(node, messages.head())
+            } else {
+                transportService.send(node, GroupMessages(messages))
+            }
+        }
+    }
+
+    override fun doStart() {
+        groups.values().forEach { it.raft.start() }
+        context.startTimer(GROUP_HEARTBEAT, heartbeat, heartbeat) { sendHeartbeat() }
+    }
+
+    override fun doStop() {
+        context.cancelTimer(GROUP_HEARTBEAT)
+        groups.values().forEach { it.raft.stop() }
+    }
+
+    override fun doClose() {
+        groups.values().forEach { it.raft.close() }
+    }
+
+    inner class RaftGroup(config: Config, val group: String) {
+        val registry = ResourceRegistry()
+        val eventBus: EventBus = DefaultEventBus()
+        internal val controller = TransportController()
+        val raft = Raft(
+            config,
+            GroupTransportService(group),
+            controller,
+            clusterDiscovery,
+            FilePersistentService(config, fileService, "raft-groups/$group"),
+            registry,
+            GroupContext(group),
+            eventBus
+        )
+
+        init {
+            RaftHandler(controller, raft)
+        }
+    }
+
+    private inner class GroupTransportService(private val group: String) : TransportService {
+        override fun connectToNode(node: DiscoveryNode) {
+            transportService.connectToNode(node)
+        }
+
+        override fun disconnectFromNode(node: DiscoveryNode) {
+            transportService.disconnectFromNode(node)
+        }
+
+        override fun send(node: DiscoveryNode, message: Message) {
+            sendGroup(node, GroupMessage(group, message))
+        }
+
+        override fun send(nodes: Iterable<DiscoveryNode>, message: Message) {
+            sendGroup(nodes, GroupMessage(group, message))
+        }
+    }
+
+    /**
+     * Timers of group share scheduler of node, heartbeat timer joins common heartbeat round.
+     */
+    private inner class GroupContext(private val group: String) : RaftContext {
+        override fun setTimer(name: String, delayMs: Long, task: () -> Unit) {
+            context.setTimer("$group/$name", delayMs, task)
+        }
+
+        override fun startTimer(name: String, delayMs: Long, periodMs: Long, task: () -> Unit) {
+            if (name == RaftContext.SEND_HEARTBEAT) {
+                heartbeats[group] = task
+            } else {
+                context.startTimer("$group/$name", delayMs, periodMs, task)
+            }
+        }
+
+        override fun cancelTimer(name: String) {
+            if (name == RaftContext.SEND_HEARTBEAT) {
+                heartbeats.remove(group)
+            } else {
+                context.cancelTimer("$group/$name")
+            }
+        }
+
+        override fun submit(executor: String, task: () -> Unit) {
+            context.submit("$group/$executor", task)
+        }
+    }
+
+    companion object {
+        val GROUP_HEARTBEAT = "group-heartbeat"
+    }
+}
@@ -16,13 +16,19 @@ class RaftHandler @Inject constructor(transportController: TransportController,
         transportController.registerMessageHandler(RemoveServerResponse::class.java, raft::apply)
 
         transportController.registerMessageHandler(ClientMessage::class.java, raft::apply)
+        transportController.registerMessageHandler(ClientMessages::class.java, raft::apply)
+        transportController.registerMessageHandler(ReadIndex::class.java, raft::apply)
+        transportController.registerMessageHandler(ReadIndexResponse::class.java, raft::apply)
 
         transportController.registerMessageHandler(InstallSnapshot::class.java, raft::apply)
         transportController.registerMessageHandler(InstallSnapshotRejected::class.java, raft::apply)
         transportController.registerMessageHandler(InstallSnapshotSuccessful::class.java, raft::apply)
+        transportController.registerMessageHandler(InstallSnapshotChunk::class.java, raft::apply)
+        transportController.registerMessageHandler(InstallSnapshotChunkAck::class.java, raft::apply)
 
         transportController.registerMessageHandler(RequestVote::class.java, raft::apply)
         transportController.registerMessageHandler(VoteCandidate::class.java, raft::apply)
         transportController.registerMessageHandler(DeclineCandidate::class.java, raft::apply)
+        transportController.registerMessageHandler(TimeoutNow::class.java, raft::apply)
     }
 }
\ No newline at end of file
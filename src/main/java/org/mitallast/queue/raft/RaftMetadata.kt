@@ -19,6 +19,13 @@ data class RaftMetadata(
 
     fun members(): Set<DiscoveryNode> = config.members
 
+    /**
+     * Voting members and learners, all of them receive log entries from leader.
+     */
+    fun replicasWithout(member: DiscoveryNode): Set<DiscoveryNode> {
+        return config.members.addAll(config.learners).remove(member)
+    }
+
     fun canVoteIn(term: Long) = votedFor.isEmpty && term == currentTerm
 
     fun forNewElection() = copy(currentTerm = currentTerm + 1, votedFor = Option.none(), votesReceived = 0)
@@ -16,6 +16,7 @@ class RaftModule : AbstractModule() {
     override fun configure() {
         bind(Raft::class.java).asEagerSingleton()
         bind(RaftHandler::class.java).asEagerSingleton()
+        bind(RaftGroups::class.java).asEagerSingleton()
         bind(DefaultRaftContext::class.java).asEagerSingleton()
         bind(FilePersistentService::class.java).asEagerSingleton()
         bind(ResourceRegistry::class.java).asEagerSingleton()
@@ -49,8 +50,20 @@ class RaftModule : AbstractModule() {
             Codec.register(217, VoteCandidate::class.java, VoteCandidate.codec)
 
             Codec.register(218, ClusterConfiguration::class.java, ClusterConfiguration.codec)
-            Codec.register(219, JointConsensusClusterConfiguration::class.java, JointConsensusClusterConfiguration.codec)
-            Codec.register(220, StableClusterConfiguration::class.java, StableClusterConfiguration.codec)
+            // configurations without learners, written before learners were added
+            Codec.registerLegacy(219, JointConsensusClusterConfiguration.legacyCodec)
+            Codec.registerLegacy(220, StableClusterConfiguration.legacyCodec)
+
+            Codec.register(221, ClientMessages::class.java, ClientMessages.codec)
+            Codec.register(222, ReadIndex::class.java, ReadIndex.codec)
+            Codec.register(223, ReadIndexResponse::class.java, ReadIndexResponse.codec)
+            Codec.register(224, InstallSnapshotChunk::class.java, InstallSnapshotChunk.codec)
+            Codec.register(225, InstallSnapshotChunkAck::class.java, InstallSnapshotChunkAck.codec)
+            Codec.register(226, GroupMessage::class.java, GroupMessage.codec)
+            Codec.register(227, GroupMessages::class.java, GroupMessages.codec)
+            Codec.register(228, TimeoutNow::class.java, TimeoutNow.codec)
+            Codec.register(229, JointConsensusClusterConfiguration::class.java, JointConsensusClusterConfiguration.codec)
+            Codec.register(230, StableClusterConfiguration::class.java, StableClusterConfiguration.codec)
         }
     }
 }
@@ -0,0 +1,234 @@
+package org.mitallast.queue.raft
+
+import gnu.trove.map.hash.TObjectIntHashMap
+import org.mitallast.queue.raft.cluster.ClusterConfiguration
+import org.mitallast.queue.raft.cluster.JointConsensusClusterConfiguration
+import org.mitallast.queue.transport.DiscoveryNode
+
+/**
+ * Replication progress of members on leader, kept in primitive arrays indexed by member ordinal.
+ *
+ * Ordinal is assigned to member on first access and does not change while leader is in term, so
+ * handlers resolve it once per message. Ordinals of voting members are rebuilt only when
+ * configuration changes, and index on majority is found by selection in preallocated array.
+ */
+class ReplicationProgress(private val self: DiscoveryNode, private val defaultNext: Long) {
+    private val ordinals = TObjectIntHashMap<DiscoveryNode>(16, 0.5f, -1)
+    private var members = arrayOfNulls<DiscoveryNode>(8)
+    private var size = 0
+
+    // index of the next log entry to send to member
+    private var next = LongArray(8)
+    // index of the next log entry to send in pipelined requests
+    private var send = LongArray(8)
+    // index of highest log entry known to be replicated on member
+    private var match = LongArray(8)
+    // time of last sent request without response, 0 if no response is expected
+    private var sentAt = LongArray(8)
+    // count of requests without response
+    private var inflight = IntArray(8)
+    // count of sent append entries requests and received responses,
+    // response count greater than sent count at some moment proves leadership after it
+    private var sentCount = LongArray(8)
+    private var ackCount = LongArray(8)
+
+    private var config: ClusterConfiguration? = null
+    private var oldQuorum = IntArray(0)
+    private var newQuorum = IntArray(0)
+    private var replicas = IntArray(0)
+    private var scratch = LongArray(0)
+
+    fun ordinal(member: DiscoveryNode): Int {
+        val ordinal = ordinals.get(member)
+        if (ordinal >= 0) {
+            return ordinal
+        }
+        if (size == members.size) {
+            grow(size * 2)
+        }
+        members[size] = member
+        next[size] = defaultNext
+        send[size] = defaultNext
+        ordinals.put(member, size)
+        return size++
+    }
+
+    fun member(ordinal: Int): DiscoveryNode = members[ordinal]!!
+
+    fun next(ordinal: Int): Long = next[ordinal]
+
+    fun next(ordinal: Int, value: Long) {
+        next[ordinal] = value
+    }
+
+    fun send(ordinal: Int): Long = send[ordinal]
+
+    fun send(ordinal: Int, value: Long) {
+        send[ordinal] = value
+    }
+
+    fun match(ordinal: Int): Long = match[ordinal]
+
+    fun match(member: DiscoveryNode): Long = match[ordinal(member)]
+
+    fun matchIfGreater(ordinal: Int, value: Long) {
+        if (match[ordinal] < value) {
+            match[ordinal] = value
+        }
+    }
+
+    fun sentAt(ordinal: Int): Long = sentAt[ordinal]
+
+    fun sentAt(ordinal: Int, value: Long) {
+        sentAt[ordinal] = value
+    }
+
+    fun inflight(ordinal: Int): Int = inflight[ordinal]
+
+    fun inflight(ordinal: Int, value: Int) {
+        inflight[ordinal] = value
+    }
+
+    fun sent(ordinal: Int) {
+        sentCount[ordinal]++
+    }
+
+    fun acked(ordinal: Int) {
+        ackCount[ordinal]++
+    }
+
+    /**
+     * Copy of sent requests counts, members added later are considered to have no sent requests.
+     */
+    fun sentCounts(): LongArray = sentCount.copyOf(size)
+
+    /**
+     * Ordinals of voting members and learners except self.
+     */
+    fun replicas(config: ClusterConfiguration): IntArray {
+        configure(config)
+        return replicas
+    }
+
+    /**
+     * Highest index replicated on majority, on both majorities in joint consensus.
+     */
+    fun consensusForIndex(config: ClusterConfiguration): Long {
+        configure(config)
+        return if (config is JointConsensusClusterConfiguration) {
+            Math.min(indexOnMajority(oldQuorum, match), indexOnMajority(newQuorum, match))
+        } else {
+            indexOnMajority(newQuorum, match)
+        }
+    }
+
+    /**
+     * True if majority of members responded to requests sent after counts were copied,
+     * self is always counted.
+     */
+    fun confirmed(config: ClusterConfiguration, sent: LongArray): Boolean {
+        configure(config)
+        val selfOrdinal = ordinal(self)
+        return if (config is JointConsensusClusterConfiguration) {
+            confirmed(oldQuorum, selfOrdinal, sent) && confirmed(newQuorum, selfOrdinal, sent)
+        } else {
+            confirmed(newQuorum, selfOrdinal, sent)
+        }
+    }
+
+    private fun confirmed(quorum: IntArray, self: Int, sent: LongArray): Boolean {
+        if (quorum.isEmpty()) {
+            return false
+        }
+        var votes = 0
+        for (ordinal in quorum) {
+            if (ordinal == self || ackCount[ordinal] > (if (ordinal < sent.size) sent[ordinal] else 0)) {
+                votes++
+            }
+        }
+        return votes > quorum.size / 2
+    }
+
+    private fun configure(config: ClusterConfiguration) {
+        if (config === this.config) {
+            return
+        }
+        this.config = config
+        if (config is JointConsensusClusterConfiguration) {
+            oldQuorum = ordinals(config.oldMembers)
+            newQuorum = ordinals(config.newMembers)
+        } else {
+            oldQuorum = IntArray(0)
+            newQuorum = ordinals(config.members)
+        }
+        replicas = ordinals(config.members.addAll(config.learners).remove(self))
+        scratch = LongArray(Math.max(oldQuorum.size, newQuorum.size))
+    }
+
+    private fun ordinals(members: Iterable<DiscoveryNode>): IntArray {
+        var quorum = IntArray(8)
+        var count = 0
+        for (member in members) {
+            if (count == quorum.size) {
+                quorum = quorum.copyOf(count * 2)
+            }
+            quorum[count++] = ordinal(member)
+        }
+        return quorum.copyOf(count)
+    }
+
+    private fun indexOnMajority(quorum: IntArray, values: LongArray): Long {
+        if (quorum.isEmpty()) {
+            return 0
+        }
+        for (i in quorum.indices) {
+            scratch[i] = values[quorum[i]]
+        }
+        return select(scratch, quorum.size, (quorum.size + 1) / 2 - 1)
+    }
+
+    private fun grow(capacity: Int) {
+        members = members.copyOf(capacity)
+        next = next.copyOf(capacity)
+        send = send.copyOf(capacity)
+        match = match.copyOf(capacity)
+        sentAt = sentAt.copyOf(capacity)
+        inflight = inflight.copyOf(capacity)
+        sentCount = sentCount.copyOf(capacity)
+        ackCount = ackCount.copyOf(capacity)
+    }
+
+    companion object {
+        /**
+         * K-th smallest of first n values, values are reordered in place.
+         */
+        fun select(values: LongArray, n: Int, k: Int): Long {
+            var left = 0
+            var right = n - 1
+            while (left < right) {
+                val pivot = values[(left + right) ushr 1]
+                var i = left
+                var j = right
+                while (i <= j) {
+                    while (values[i] < pivot) i++
+                    while (values[j] > pivot) j--
+                    if (i <= j) {
+                        val tmp = values[i]
+                        values[i] = values[j]
+                        values[j] = tmp
+                        i++
+                        j--
+                    }
+                }
+                if (k <= j) {
+                    right = j
+                } else if (k >= i) {
+                    left = i
+                } else {
+                    return values[k]
+                }
+            }
+            return values[k]
+        }
+    }
+}
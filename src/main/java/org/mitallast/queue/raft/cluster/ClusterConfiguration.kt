@@ -8,13 +8,22 @@ import org.mitallast.queue.transport.DiscoveryNode
 
 import java.io.DataInput
 import java.io.DataOutput
+import java.io.IOException
 
 interface ClusterConfiguration : Message {
 
     val members: Set<DiscoveryNode>
 
+    /**
+     * Non voting members, they receive log entries and snapshots, but are not counted in
+     * majority and do not start elections.
+     */
+    val learners: Set<DiscoveryNode>
+
     val isTransitioning: Boolean
 
+    fun withLearners(learners: Set<DiscoveryNode>): ClusterConfiguration
+
     fun transitionTo(newConfiguration: ClusterConfiguration): ClusterConfiguration
 
     fun transitionToStable(): ClusterConfiguration
@@ -26,40 +35,67 @@ interface ClusterConfiguration : Message {
     }
 }
 
+/**
+ * Configuration is prefixed with a type byte. Types 0 and 1 are the boolean isTransitioning
+ * of configuration without learners, written before learners were added, they are still readable.
+ */
 internal object ClusterConfigurationCodec : Codec<ClusterConfiguration> {
+    private const val STABLE_LEGACY = 0
+    private const val JOINT_LEGACY = 1
+    private const val STABLE = 2
+    private const val JOINT = 3
+
     override fun read(stream: DataInput): ClusterConfiguration {
-        val isTransitioning = stream.readBoolean()
-        return if (isTransitioning) {
-            JointConsensusClusterConfiguration.codec.read(stream)
-        } else {
-            StableClusterConfiguration.codec.read(stream)
+        val type = stream.readUnsignedByte()
+        return when (type) {
+            STABLE -> StableClusterConfiguration.codec.read(stream)
+            JOINT -> JointConsensusClusterConfiguration.codec.read(stream)
+            STABLE_LEGACY -> StableClusterConfiguration.legacyCodec.read(stream)
+            JOINT_LEGACY -> JointConsensusClusterConfiguration.legacyCodec.read(stream)
+            else -> throw IOException("unexpected cluster configuration type: $type")
         }
     }
 
     override fun write(stream: DataOutput, value: ClusterConfiguration) {
-        val isTransitioning = value.isTransitioning
-        stream.writeBoolean(isTransitioning)
-        if (isTransitioning) {
+        if (value.isTransitioning) {
+            stream.writeByte(JOINT)
             JointConsensusClusterConfiguration.codec.write(stream, value as JointConsensusClusterConfiguration)
         } else {
+            stream.writeByte(STABLE)
             StableClusterConfiguration.codec.write(stream, value as StableClusterConfiguration)
         }
     }
+
+    override fun size(value: ClusterConfiguration): Int {
+        val size = if (value.isTransitioning) {
+            JointConsensusClusterConfiguration.codec.size(value as JointConsensusClusterConfiguration)
+        } else {
+            StableClusterConfiguration.codec.size(value as StableClusterConfiguration)
+        }
+        return if (size < 0) -1 else 1 + size
+    }
 }
 
 data class JointConsensusClusterConfiguration(
         val oldMembers: Set<DiscoveryNode>,
-        val newMembers: Set<DiscoveryNode>
+        val newMembers: Set<DiscoveryNode>,
+        override val learners: Set<DiscoveryNode>
 ) : ClusterConfiguration {
+    constructor(oldMembers: Set<DiscoveryNode>, newMembers: Set<DiscoveryNode>) : this(oldMembers, newMembers, HashSet.empty())
+
     override val members: Set<DiscoveryNode> = oldMembers.addAll(newMembers)
     override val isTransitioning = true
 
+    override fun withLearners(learners: Set<DiscoveryNode>): ClusterConfiguration {
+        return JointConsensusClusterConfiguration(oldMembers, newMembers, learners)
+    }
+
     override fun transitionTo(newConfiguration: ClusterConfiguration): ClusterConfiguration {
         throw IllegalStateException("Cannot start another configuration transition, already in progress")
     }
 
     override fun transitionToStable(): ClusterConfiguration {
-        return StableClusterConfiguration(newMembers)
+        return StableClusterConfiguration(newMembers, learners)
     }
 
     override fun containsOnNewState(member: DiscoveryNode): Boolean = newMembers.contains(member)
@@ -69,20 +105,44 @@ data class JointConsensusClusterConfiguration(
                 ::JointConsensusClusterConfiguration,
                 JointConsensusClusterConfiguration::oldMembers,
                 JointConsensusClusterConfiguration::newMembers,
+                JointConsensusClusterConfiguration::learners,
+                Codec.setCodec(DiscoveryNode.codec),
+                Codec.setCodec(DiscoveryNode.codec),
+                Codec.setCodec(DiscoveryNode.codec)
+        )
+
+        /**
+         * Configuration without learners, as it was written before learners were added.
+         */
+        val legacyCodec = Codec.of(
+                { oldMembers: Set<DiscoveryNode>, newMembers: Set<DiscoveryNode> ->
+                    JointConsensusClusterConfiguration(oldMembers, newMembers)
+                },
+                JointConsensusClusterConfiguration::oldMembers,
+                JointConsensusClusterConfiguration::newMembers,
                 Codec.setCodec(DiscoveryNode.codec),
                 Codec.setCodec(DiscoveryNode.codec)
         )
     }
 }
 
-data class StableClusterConfiguration(override val members: Set<DiscoveryNode>) : ClusterConfiguration {
+data class StableClusterConfiguration(
+        override val members: Set<DiscoveryNode>,
+        override val learners: Set<DiscoveryNode>
+) : ClusterConfiguration {
+
+    constructor(members: Set<DiscoveryNode>) : this(members, HashSet.empty())
 
     constructor(vararg members: DiscoveryNode) : this(HashSet.of<DiscoveryNode>(*members))
 
     override val isTransitioning: Boolean = false
 
+    override fun withLearners(learners: Set<DiscoveryNode>): ClusterConfiguration {
+        return StableClusterConfiguration(members, learners)
+    }
+
     override fun transitionTo(newConfiguration: ClusterConfiguration): ClusterConfiguration {
-        return JointConsensusClusterConfiguration(members, newConfiguration.members)
+        return JointConsensusClusterConfiguration(members, newConfiguration.members, newConfiguration.learners)
     }
 
     override fun transitionToStable(): ClusterConfiguration = this
@@ -93,6 +153,17 @@ data class StableClusterConfiguration(override val members: Set<DiscoveryNode>)
         val codec = Codec.of(
                 ::StableClusterConfiguration,
                 StableClusterConfiguration::members,
+                StableClusterConfiguration::learners,
+                Codec.setCodec(DiscoveryNode.codec),
+                Codec.setCodec(DiscoveryNode.codec)
+        )
+
+        /**
+         * Configuration without learners, as it was written before learners were added.
+         */
+        val legacyCodec = Codec.of(
+                { members: Set<DiscoveryNode> -> StableClusterConfiguration(members) },
+                StableClusterConfiguration::members,
                 Codec.setCodec(DiscoveryNode.codec)
         )
     }
@@ -2,20 +2,46 @@ package org.mitallast.queue.raft.persistent
 
 import com.google.common.base.Preconditions
 import com.google.inject.Inject
+import com.typesafe.config.Config
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.util.concurrent.DefaultThreadFactory
 import io.vavr.collection.Vector
 import io.vavr.control.Option
 import org.apache.logging.log4j.LogManager
 import org.mitallast.queue.common.file.FileService
+import org.mitallast.queue.raft.cluster.ClusterConfiguration
 import org.mitallast.queue.raft.protocol.LogEntry
 import org.mitallast.queue.raft.protocol.RaftSnapshot
 import org.mitallast.queue.transport.DiscoveryNode
-import java.io.DataOutputStream
-import java.io.File
-import java.io.IOError
-import java.io.IOException
+import java.io.*
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.stream.Collectors
 
-class FilePersistentService @Inject constructor(private val fileService: FileService) : PersistentService {
-    private val stateFile: File = fileService.resource("raft", "state.bin")
+/**
+ * Persists raft state and log in directory of file service, default raft uses `raft` service,
+ * raft groups use own services.
+ */
+class FilePersistentService(
+    config: Config,
+    private val fileService: FileService,
+    private val service: String
+) : PersistentService {
+
+    @Inject constructor(config: Config, fileService: FileService) : this(config, fileService, "raft")
+
+    private val segmentSize = config.getMemorySize("raft.log.segment-size").toBytes().toInt()
+    private val indexInterval = config.getInt("raft.log.index-interval")
+    private val cacheSize = config.getInt("raft.log.cache-size")
+    private val durability = LogDurability.valueOf(config.getString("raft.log.durability").toUpperCase())
+
+    private val stateFile: File = fileService.resource(service, "state.bin")
+    private val snapshotFile: File = File(fileService.service(service), "snapshot.bin")
 
     private var segment: Long = 0
     private var currentTerm: Long = 0
@@ -53,16 +79,12 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
 
     private fun writeState() {
         try {
-            fileService.output(stateFile).use { stream ->
-                logger.info("write state: segment={} term={} voted={}", segment, currentTerm, votedFor)
-                stream.writeLong(segment)
-                stream.writeLong(currentTerm)
-                if (votedFor.isDefined) {
-                    stream.writeBoolean(true)
-                    DiscoveryNode.codec.write(stream, votedFor.get())
-                } else {
-                    stream.writeBoolean(false)
-                }
+            logger.info("write state: segment={} term={} voted={}", segment, currentTerm, votedFor)
+            if (durability == LogDurability.FSYNC) {
+                // term and vote must survive crash, write to temporary file and atomically replace state
+                replace(stateFile, true) { stream -> writeState(stream) }
+            } else {
+                fileService.output(stateFile).use { stream -> writeState(stream) }
             }
         } catch (e: IOException) {
             throw IOError(e)
@@ -70,6 +92,34 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
 
     }
 
+    private fun writeState(stream: DataOutputStream) {
+        stream.writeLong(segment)
+        stream.writeLong(currentTerm)
+        if (votedFor.isDefined) {
+            stream.writeBoolean(true)
+            DiscoveryNode.codec.write(stream, votedFor.get())
+        } else {
+            stream.writeBoolean(false)
+        }
+    }
+
+    private fun replace(file: File, sync: Boolean, writer: (DataOutputStream) -> Unit) {
+        val tmp = fileService.temporary(service, file.nameWithoutExtension + ".", ".tmp")
+        FileOutputStream(tmp).use { output ->
+            val stream = DataOutputStream(BufferedOutputStream(output))
+            writer.invoke(stream)
+            stream.flush()
+            if (sync) {
+                output.fd.sync()
+            }
+        }
+        fileService.move(tmp, file)
+        if (sync) {
+            // rename is durable only after directory is forced
+            fileService.sync(file.parentFile)
+        }
+    }
+
     override fun currentTerm(): Long {
         return currentTerm
     }
@@ -102,52 +152,213 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
 
     override fun openLog(): ReplicatedLog {
         logger.info("open log: segment={}", segment)
-        val segmentFile = segmentFile(segment)
+        try {
+            fileService.resources(service, "glob:*.tmp").forEach { fileService.delete(fileService.resource(service, it.toString())) }
+            migrateLegacySegments()
+
+            // snapshot file is written before state, so it is the source of truth for log start
+            val snapshot = if (snapshotFile.length() > 0) {
+                fileService.input(snapshotFile).use { LogEntry.codec.read(it) }
+            } else {
+                null
+            }
+            val start = snapshot?.index ?: segment
+            updateSegment(start)
+
+            val bases = segmentBases()
+
+            // with snapshot first live entry is start + 1, entries of first segment up to start are ignored
+            val first = if (snapshot == null) start else start + 1
+            // segment recovery validates record checksums, segments are scanned in parallel
+            val opened = Vector.ofAll(bases.toJavaParallelStream()
+                .map { openSegment(it) }
+                .collect(Collectors.toList()))
+
+            var segments = Vector.empty<LogSegment>()
+            var next = -1L
+            for (logSegment in opened) {
+                val base = logSegment.base
+                val contiguous = if (segments.isEmpty) base == first || (snapshot != null && base < first) else base == next
+                if (contiguous) {
+                    segments = segments.append(logSegment)
+                    next = logSegment.lastIndex() + 1
+                } else {
+                    // segment after a gap (torn tail of previous segment) or not matching start
+                    logger.warn("delete segment {}, expected {}", base, if (segments.isEmpty) first else next)
+                    logSegment.delete()
+                }
+            }
+            // drop segments covered by snapshot
+            while (segments.size() > 1 && segments.get(1).base <= first) {
+                segments.head().delete()
+                segments = segments.tail()
+            }
+            if (!segments.isEmpty && segments.last().lastIndex() < first - 1) {
+                segments.last().delete()
+                segments = Vector.empty()
+            }
+            if (segments.isEmpty) {
+                segments = segments.append(openSegment(first))
+            }
+            return FileReplicatedLog(segments, snapshot, initialCommittedIndex, start)
+        } catch (e: IOException) {
+            throw IOError(e)
+        }
+    }
+
+    private fun segmentBases(): Vector<Long> {
+        return Vector.ofAll(fileService.resources(service, "regex:[0-9]+\\.log")
+            .map { it.toString() }
+            .map { it.substring(0, it.length - 4).toLong() }
+            .collect(Collectors.toList()))
+            .sorted()
+    }
+
+    /**
+     * Previous versions kept log in single unframed segment named by state segment, with snapshot
+     * as the first entry. It is re-framed to new segment and snapshot is moved to snapshot file.
+     * Unframed segments before state segment are left by interrupted compaction and are deleted.
+     */
+    private fun migrateLegacySegments() {
+        for (base in segmentBases()) {
+            if (!LogSegment.isUnframed(segmentFile(base), indexFile(base))) {
+                continue
+            }
+            if (base == segment) {
+                migrateLegacySegment(base)
+            } else if (base < segment) {
+                logger.warn("delete legacy segment {} before log start {}", base, segment)
+                fileService.delete(segmentFile(base))
+            } else {
+                throw IOException("legacy segment $base is after log start $segment, log is not migrated")
+            }
+        }
+    }
+
+    private fun migrateLegacySegment(base: Long) {
+        val file = segmentFile(base)
+        logger.info("migrate legacy segment {}", file)
         var entries = Vector.empty<LogEntry>()
         try {
-            fileService.input(segmentFile).use { input ->
+            fileService.input(file).use { input ->
                 while (input.available() > 0) {
                     entries = entries.append(LogEntry.codec.read(input))
                 }
-                return FileReplicatedLog(
-                    segmentFile,
-                    fileService.output(segmentFile, true),
-                    entries,
-                    initialCommittedIndex,
-                    segment
-                )
             }
-        } catch (e: IOException) {
-            throw IOError(e)
+        } catch (e: Exception) {
+            throw IOException("legacy segment $file can not be read, log is not migrated", e)
+        }
+
+        val head = entries.headOption()
+        if (head.isDefined && head.get().command is RaftSnapshot) {
+            replace(snapshotFile, true) { stream -> LogEntry.codec.write(stream, head.get()) }
+            entries = entries.tail()
+        }
+        if (entries.isEmpty) {
+            fileService.delete(file)
+            return
         }
 
+        // records are written to temporary segment, it replaces legacy segment before index is moved,
+        // so interrupted migration leaves either legacy segment or framed segment without index
+        val first = entries.head().index
+        val tmp = fileService.temporary(service, "$first.", ".tmp")
+        val tmpIndex = fileService.temporary(service, "$first.idx.", ".tmp")
+        val payloads = entries.map { entry ->
+            val payload = Unpooled.buffer()
+            LogEntry.compactCodec.write(payload, entry)
+            payload
+        }
+        try {
+            val capacity = Math.max(segmentSize, payloads.map { it.readableBytes() + LogSegment.HEADER_SIZE }.sum().toInt())
+            val logSegment = LogSegment(first, tmp, tmpIndex, capacity, indexInterval)
+            payloads.forEach { logSegment.append(it) }
+            logSegment.force()
+            logSegment.close()
+        } finally {
+            payloads.forEach { it.release() }
+        }
+        fileService.move(tmp, segmentFile(first))
+        fileService.move(tmpIndex, indexFile(first))
+        if (first != base) {
+            fileService.delete(file)
+        }
+        logger.info("migrated {} entries of legacy segment {}", entries.size(), file)
+    }
+
+    private fun openSegment(base: Long): LogSegment {
+        return LogSegment(base, segmentFile(base), indexFile(base), segmentSize, indexInterval)
     }
 
+    /**
+     * Segment files are not created on lookup, index file is created by segment, so segment
+     * without index file is known to be written by previous version.
+     */
     private fun segmentFile(segment: Long): File {
-        return fileService.resource("raft", segment.toString() + ".log")
+        return File(fileService.service(service), segment.toString() + ".log")
     }
 
-    private fun temporaryFile(): File {
-        return fileService.temporary("raft", "log.", ".tmp")
+    private fun indexFile(segment: Long): File {
+        return File(fileService.service(service), segment.toString() + ".idx")
     }
 
+    /**
+     * Positional log: entry at index `i` is a record at offset `i - base` of the segment containing it.
+     * If log is compacted, entry at `start` is a snapshot stored in separate file, and records
+     * of the first segment up to `start` are ignored until the whole segment is deleted.
+     */
     inner class FileReplicatedLog(
-        @Volatile private var segmentFile: File,
-        @Volatile private var segmentOutput: DataOutputStream,
-        @Volatile private var entries: Vector<LogEntry>,
-        @Volatile private var committedIndex: Long, @Volatile private var start: Long
+        @Volatile private var segments: Vector<LogSegment>,
+        @Volatile private var snapshotEntry: LogEntry?,
+        @Volatile private var committedIndex: Long,
+        @Volatile private var start: Long
     ) : ReplicatedLog {
-        @Volatile private var dirty = false
+        @Volatile private var last: LogEntry? = null
+
+        // last configuration entry, found by backward scan from tail on first use and tracked by appends
+        @Volatile private var configuration: LogEntry? = null
+        @Volatile private var configurationScanned = false
+
+        private val cacheKeys = LongArray(cacheSize)
+        private val cacheEntries = arrayOfNulls<LogEntry>(cacheSize)
+
+        private var buffer: ByteBuf = Unpooled.buffer(bufferSize)
+
+        private val syncer = if (durability == LogDurability.FSYNC) LogSyncer() else null
+
+        private var download: SnapshotDownload? = null
+
+        init {
+            Arrays.fill(cacheKeys, -1)
+            reload()
+        }
+
+        private fun reload() {
+            last = if (isEmpty) null else read(length())
+        }
 
         override val isEmpty: Boolean
-            get() = entries.isEmpty
+            get() = length() < start
 
         override fun contains(entry: LogEntry): Boolean {
-            return entries.contains(entry)
+            return entry.index >= start && entry.index <= length() && get(entry.index) == entry
         }
 
         override fun entries(): Vector<LogEntry> {
-            return entries
+            var builder = Vector.empty<LogEntry>()
+            val snapshotEntry = this.snapshotEntry
+            if (snapshotEntry != null) {
+                builder = builder.append(snapshotEntry)
+            }
+            val from = if (snapshotEntry == null) start else start + 1
+            for (logSegment in segments) {
+                if (logSegment.lastIndex() < from) {
+                    continue
+                }
+                val fromOffset = (Math.max(from, logSegment.base) - logSegment.base).toInt()
+                logSegment.read(fromOffset, logSegment.size()) { builder = builder.append(it) }
+            }
+            return builder
         }
 
         override fun committedEntries(): Int {
@@ -158,20 +369,68 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
             return committedIndex
         }
 
-        private fun offset(): Long {
-            return start - 1
+        private fun length(): Long {
+            val end = segments.last().lastIndex()
+            return if (snapshotEntry == null) end else Math.max(start, end)
         }
 
-        private fun length(): Long {
-            return entries.size() + offset()
+        private fun segmentOf(index: Long): LogSegment {
+            var i = segments.size() - 1
+            while (i > 0 && segments.get(i).base > index) {
+                i--
+            }
+            return segments.get(i)
         }
 
         private operator fun get(index: Long): LogEntry {
-            return entries.get((index - start).toInt())
+            val slot = (index % cacheSize).toInt()
+            if (cacheKeys[slot] == index) {
+                return cacheEntries[slot]!!
+            }
+            val entry = read(index)
+            cache(index, entry)
+            return entry
+        }
+
+        private fun read(index: Long): LogEntry {
+            val snapshotEntry = this.snapshotEntry
+            if (snapshotEntry != null && index == start) {
+                return snapshotEntry
+            }
+            val logSegment = segmentOf(index)
+            return logSegment.read((index - logSegment.base).toInt())
         }
 
-        private fun last(): LogEntry {
-            return entries.get(entries.size() - 1)
+        private fun termOf(index: Long): Long {
+            val snapshotEntry = this.snapshotEntry
+            if (snapshotEntry != null && index == start) {
+                return snapshotEntry.term
+            }
+            val logSegment = segmentOf(index)
+            return logSegment.termAt((index - logSegment.base).toInt())
+        }
+
+        private fun indexOf(index: Long): Long {
+            val snapshotEntry = this.snapshotEntry
+            if (snapshotEntry != null && index == start) {
+                return snapshotEntry.index
+            }
+            val logSegment = segmentOf(index)
+            return logSegment.indexAt((index - logSegment.base).toInt())
+        }
+
+        private fun cache(index: Long, entry: LogEntry) {
+            val slot = (index % cacheSize).toInt()
+            cacheKeys[slot] = index
+            cacheEntries[slot] = entry
+        }
+
+        private fun invalidate(index: Long) {
+            val slot = (index % cacheSize).toInt()
+            if (cacheKeys[slot] == index) {
+                cacheKeys[slot] = -1
+                cacheEntries[slot] = null
+            }
         }
 
         override fun containsMatchingEntry(otherPrevTerm: Long, otherPrevIndex: Long): Boolean {
@@ -181,11 +440,13 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
         }
 
         override fun lastTerm(): Option<Long> {
-            return if (entries.isEmpty) Option.none() else Option.some(last().term)
+            val last = this.last
+            return if (last == null) Option.none() else Option.some(last.term)
         }
 
         override fun lastIndex(): Long {
-            return if (entries.isEmpty) 1 else last().index
+            val last = this.last
+            return if (last == null) 1 else last.index
         }
 
         override fun prevIndex(): Long {
@@ -193,14 +454,14 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
         }
 
         override fun nextIndex(): Long {
-            return if (entries.isEmpty) 1 else last().index + 1
+            val last = this.last
+            return if (last == null) 1 else last.index + 1
         }
 
         override fun commit(committedIndex: Long): ReplicatedLog {
             Preconditions.checkArgument(this.committedIndex <= committedIndex, "commit index cannot be less than " + "current commit")
             Preconditions.checkArgument(lastIndex() >= committedIndex, "commit index cannot be greater than last " + "index")
             this.committedIndex = committedIndex
-            flush()
             return this
         }
 
@@ -209,8 +470,7 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
             Preconditions.checkArgument(entry.index >= start, "entry index should be >= start index")
 
             if (entry.index <= length()) { // if contains
-                val (term) = get(entry.index)
-                if (term == entry.term) { // if term matches, entry already contains in log
+                if (termOf(entry.index) == entry.term) { // if term matches, entry already contains in log
                     return this
                 } else {
                     val prev = entry.index - 1
@@ -218,9 +478,43 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
                 }
             }
 
-            dirty = true
-            LogEntry.codec.write(segmentOutput, entry)
-            entries = entries.append(entry)
+            try {
+                // entry of known size is encoded directly to segment, otherwise it is encoded to buffer first
+                val size = LogEntry.compactCodec.size(entry)
+                if (size < 0) {
+                    buffer.clear()
+                    LogEntry.compactCodec.write(buffer, entry)
+                }
+                val recordSize = if (size < 0) buffer.readableBytes() else size
+                var tail = segments.last()
+                if (!tail.fits(recordSize)) {
+                    if (tail.isEmpty()) {
+                        delete(tail)
+                        segments = segments.dropRight(1)
+                    } else if (durability == LogDurability.FLUSH) {
+                        tail.force()
+                    }
+                    tail = createSegment(length() + 1, recordSize)
+                    segments = segments.append(tail)
+                }
+                if (size < 0) {
+                    tail.append(buffer)
+                    if (buffer.capacity() > maxBufferSize) {
+                        buffer = Unpooled.buffer(bufferSize)
+                    }
+                } else {
+                    tail.append(size) { LogEntry.compactCodec.write(it, entry) }
+                }
+                syncer?.appended(tail)
+            } catch (e: IOException) {
+                throw IOError(e)
+            }
+            last = entry
+            cache(length(), entry)
+            if (entry.command is ClusterConfiguration) {
+                configuration = entry
+                configurationScanned = true
+            }
             return this
         }
 
@@ -231,63 +525,122 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
             return this
         }
 
+        /**
+         * Pending sync of deleted segment is cancelled, running sync is awaited by segment.
+         */
+        private fun delete(logSegment: LogSegment) {
+            syncer?.discard(logSegment)
+            logSegment.delete()
+        }
+
+        private fun createSegment(base: Long, recordSize: Int): LogSegment {
+            val capacity = Math.max(segmentSize, recordSize + LogSegment.HEADER_SIZE)
+            val logSegment = LogSegment(base, segmentFile(base), indexFile(base), capacity, indexInterval)
+            if (durability == LogDurability.FSYNC) {
+                fileService.sync(fileService.service(service))
+            }
+            return logSegment
+        }
+
         /**
          * truncate index exclusive truncate index
+         *
+         * Segments after truncate index are deleted, the segment containing it is cut at
+         * byte position of the first dropped record, so cost depends only on dropped entries.
          */
         private fun truncate(truncateIndex: Long) {
             Preconditions.checkArgument(truncateIndex >= committedIndex,
                 "truncate index should be > committed index %d", committedIndex)
             Preconditions.checkArgument(truncateIndex < lastIndex(),
                 "truncate index should be < last index")
+            Preconditions.checkArgument(snapshotEntry == null || truncateIndex >= start,
+                "truncate index should be >= snapshot index")
 
-            entries = entries.dropRightUntil { (_, index) -> index <= truncateIndex }
-
-            try {
-                segmentOutput.close()
-
-                val tmpSegment = temporaryFile()
-                fileService.output(tmpSegment).use { stream ->
-                    for (logEntry in entries) {
-                        LogEntry.codec.write(stream, logEntry)
-                    }
-                }
-
-                fileService.move(tmpSegment, segmentFile)
-
-                // recreate file object after move
-                this.segmentFile = segmentFile(start)
-                this.segmentOutput = fileService.output(this.segmentFile, true)
-                dirty = false
-            } catch (e: IOException) {
-                throw IOError(e)
+            val cut = truncateIndex + 1
+            for (index in cut..Math.min(length(), cut + cacheSize - 1)) {
+                invalidate(index)
             }
-
+            while (segments.size() > 1 && segments.last().base >= cut) {
+                delete(segments.last())
+                segments = segments.dropRight(1)
+            }
+            val tail = segments.last()
+            if (tail.lastIndex() >= cut) {
+                tail.truncate((cut - tail.base).toInt())
+            }
+            val configuration = this.configuration
+            if (configuration != null && configuration.index >= cut) {
+                this.configuration = null
+                configurationScanned = false
+            }
+            reload()
         }
 
         override fun entriesBatchFrom(fromIncluding: Long, howMany: Int): Vector<LogEntry> {
-            val toSend = slice(fromIncluding, fromIncluding + howMany)
-            return if (toSend.isEmpty) {
-                toSend
-            } else {
-                val batchTerm = toSend.get(0).term
-                var builder = Vector.empty<LogEntry>()
-                toSend
-                    .takeWhile { it.term == batchTerm }
-                    .forEach { builder = builder.append(it) }
-                builder
+            return entriesBatchFrom(fromIncluding, howMany, Long.MAX_VALUE)
+        }
+
+        /**
+         * Batch is limited by count and by encoded size taken from record headers,
+         * the first entry is always included even if it does not fit in budget.
+         */
+        override fun entriesBatchFrom(fromIncluding: Long, howMany: Int, maxBytes: Long): Vector<LogEntry> {
+            val from = Math.max(fromIncluding, start)
+            val until = Math.min(fromIncluding + howMany - 1, length())
+            if (from > until) {
+                return Vector.empty()
             }
+            var end = from - 1
+            var bytes = 0L
+            val snapshotEntry = this.snapshotEntry
+            if (snapshotEntry != null && from == start) {
+                bytes = snapshotFile.length()
+                end = from
+            }
+            for (logSegment in segments) {
+                if (end >= until) {
+                    break
+                }
+                if (logSegment.lastIndex() <= end) {
+                    continue
+                }
+                var full = false
+                logSegment.sizes((end + 1 - logSegment.base).toInt()) { size ->
+                    if (end >= until || (end >= from && bytes + size > maxBytes)) {
+                        full = true
+                        false
+                    } else {
+                        bytes += size
+                        end++
+                        true
+                    }
+                }
+                if (full) {
+                    break
+                }
+            }
+            return slice(from, end)
         }
 
         override fun slice(from: Long, until: Long): Vector<LogEntry> {
-            val fromIndex = (from - start).toInt()
-            val toIndex = (until - start + 1).toInt()
-            return if (fromIndex >= entries.size()) {
-                Vector.empty()
-            } else entries.subSequence(Math.max(0, fromIndex), Math.min(toIndex, entries.size()))
+            val fromIndex = Math.max(from, start)
+            val toIndex = Math.min(until, length())
+            var builder = Vector.empty<LogEntry>()
+            var index = fromIndex
+            while (index <= toIndex) {
+                val slot = (index % cacheSize).toInt()
+                builder = if (cacheKeys[slot] == index) {
+                    builder.append(cacheEntries[slot])
+                } else {
+                    builder.append(read(index))
+                }
+                index++
+            }
+            return builder
         }
 
         override fun containsEntryAt(index: Long): Boolean {
-            return index >= start && index <= length() && get(index).index == index
+            return index >= start && index <= length() && indexOf(index) == index
         }
 
         override fun termAt(index: Long): Long {
@@ -296,100 +649,384 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
             } else if (!containsEntryAt(index)) {
                 throw IllegalArgumentException("Unable to find log entry at index " + index)
             } else {
-                get(index).term
+                termOf(index)
             }
         }
 
-        override fun compactWith(snapshot: RaftSnapshot): ReplicatedLog {
-            val lastIncludedIndex = snapshot.meta.lastIncludedIndex
-            val snapshotEntry = snapshot.toEntry()
+        override fun firstIndexOfTerm(index: Long): Long {
+            val term = termAt(index)
+            var low = Math.max(start, 1)
+            var high = index
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if (termOf(mid) < term) {
+                    low = mid + 1
+                } else {
+                    high = mid
+                }
+            }
+            return low
+        }
 
-            entries = if (entries.isEmpty) {
-                Vector.of(snapshotEntry)
-            } else {
-                if (entries.get(0).index > lastIncludedIndex) {
-                    throw IllegalArgumentException("snapshot too old")
+        override fun lastIndexOfTerm(term: Long): Long {
+            if (isEmpty) {
+                return 0
+            }
+            var low = Math.max(start, 1)
+            var high = length()
+            if (termOf(low) > term) {
+                return 0
+            }
+            while (low < high) {
+                val mid = (low + high + 1) ushr 1
+                if (termOf(mid) <= term) {
+                    low = mid
+                } else {
+                    high = mid - 1
                 }
-                entries.dropUntil { (_, index) -> index > lastIncludedIndex }.prepend(snapshotEntry)
             }
+            return if (termOf(low) == term) low else 0
+        }
+
+        /**
+         * Snapshot is written to separate file, entries covered by it are released by
+         * deleting whole segments, no entries are rewritten.
+         */
+        override fun compactWith(snapshot: RaftSnapshot): ReplicatedLog {
+            checkSnapshot(snapshot.meta.lastIncludedIndex)
+            try {
+                val entry = snapshot.toEntry()
+                replace(snapshotFile, durability == LogDurability.FSYNC) { stream -> LogEntry.codec.write(stream, entry) }
+                compacted(entry)
+                return this
+            } catch (e: IOException) {
+                throw IOError(e)
+            }
+        }
 
+        override fun writeSnapshot(snapshot: RaftSnapshot): File {
+            val tmp = fileService.temporary(service, "snapshot.", ".tmp")
             try {
-                if (snapshot.meta.lastIncludedIndex == start) {
-                    segmentOutput.close()
-                    val tmpSegment = temporaryFile()
-                    fileService.output(tmpSegment).use { stream ->
-                        for (logEntry in entries) {
-                            LogEntry.codec.write(stream, logEntry)
-                        }
+                FileOutputStream(tmp).use { output ->
+                    val stream = DataOutputStream(BufferedOutputStream(output))
+                    LogEntry.codec.write(stream, snapshot.toEntry())
+                    stream.flush()
+                    if (durability == LogDurability.FSYNC) {
+                        output.fd.sync()
                     }
-                    fileService.move(tmpSegment, segmentFile)
+                }
+                return tmp
+            } catch (e: IOException) {
+                fileService.delete(tmp)
+                throw IOError(e)
+            }
+        }
 
-                    // recreate file object after move
-                    segmentFile = segmentFile(start)
-                    segmentOutput = fileService.output(segmentFile, true)
-                    dirty = false
+        override fun compactWith(snapshot: RaftSnapshot, file: File): ReplicatedLog {
+            val lastIncludedIndex = snapshot.meta.lastIncludedIndex
+            try {
+                if (hasSnapshot() && snapshot().meta.lastIncludedIndex >= lastIncludedIndex) {
+                    // snapshot from leader is installed while this one was written
+                    fileService.delete(file)
                     return this
-                } else {
-                    segmentOutput.close()
-                    val newSegmentFile = segmentFile(lastIncludedIndex)
+                }
+                checkSnapshot(lastIncludedIndex)
+                fileService.move(file, snapshotFile)
+                compacted(snapshot.toEntry())
+                return this
+            } catch (e: IOException) {
+                throw IOError(e)
+            }
+        }
 
-                    val newSegmentOutput = fileService.output(newSegmentFile)
-                    for (logEntry in entries) {
-                        LogEntry.codec.write(newSegmentOutput, logEntry)
-                    }
-                    newSegmentOutput.flush()
-                    updateSegment(snapshot.meta.lastIncludedIndex)
+        private fun checkSnapshot(lastIncludedIndex: Long) {
+            if (!isEmpty && start > lastIncludedIndex) {
+                throw IllegalArgumentException("snapshot too old")
+            }
+        }
 
-                    fileService.delete(segmentFile)
+        private fun compacted(entry: LogEntry) {
+            val lastIncludedIndex = entry.index
+            try {
+                updateSegment(lastIncludedIndex)
 
-                    segmentFile = newSegmentFile
-                    segmentOutput = newSegmentOutput
-                    start = lastIncludedIndex
-                    dirty = false
-                    return this
+                invalidate(lastIncludedIndex)
+                snapshotEntry = entry
+                start = lastIncludedIndex
+
+                val first = lastIncludedIndex + 1
+                while (segments.size() > 1 && segments.get(1).base <= first) {
+                    delete(segments.head())
+                    segments = segments.tail()
+                }
+                // snapshot is ahead of log, roll to empty segment
+                if (segments.last().lastIndex() < lastIncludedIndex) {
+                    delete(segments.last())
+                    segments = Vector.of(createSegment(first, 0))
                 }
+                reload()
             } catch (e: IOException) {
                 throw IOError(e)
             }
+        }
 
+        override fun lastConfiguration(): Option<ClusterConfiguration> {
+            if (!configurationScanned) {
+                configuration = scanConfiguration()
+                configurationScanned = true
+            }
+            val configuration = this.configuration
+            val snapshotEntry = this.snapshotEntry
+            return if (configuration != null && (snapshotEntry == null || configuration.index > start)) {
+                Option.some(configuration.command as ClusterConfiguration)
+            } else if (snapshotEntry != null) {
+                Option.some(snapshot().meta.config)
+            } else {
+                Option.none()
+            }
+        }
+
+        /**
+         * Configuration entries are usually close to tail, so only entries after the last one are decoded.
+         */
+        private fun scanConfiguration(): LogEntry? {
+            val from = if (snapshotEntry == null) start else start + 1
+            var index = length()
+            while (index >= from) {
+                val entry = read(index)
+                if (entry.command is ClusterConfiguration) {
+                    return entry
+                }
+                index--
+            }
+            return null
         }
 
         override fun hasSnapshot(): Boolean {
-            return !entries.isEmpty && entries.get(0).command is RaftSnapshot
+            return snapshotEntry != null
         }
 
         override fun snapshot(): RaftSnapshot {
-            return entries.get(0).command as RaftSnapshot
+            return snapshotEntry!!.command as RaftSnapshot
         }
 
-        private fun flush() {
-            if (dirty) {
-                try {
-                    segmentOutput.flush()
-                    dirty = false
-                } catch (e: IOException) {
-                    throw IOError(e)
+        override fun snapshotLength(): Long {
+            return snapshotFile.length()
+        }
+
+        override fun readSnapshot(offset: Long, length: Int): ByteArray {
+            try {
+                RandomAccessFile(snapshotFile, "r").use { file ->
+                    val data = ByteArray(length)
+                    file.seek(offset)
+                    file.readFully(data)
+                    return data
                 }
+            } catch (e: IOException) {
+                throw IOError(e)
+            }
+        }
 
+        override fun receiveSnapshot(term: Long, index: Long, length: Long, offset: Long, data: ByteArray): Long {
+            try {
+                var download = this.download
+                if (download == null || download.term != term || download.index != index || download.length != length) {
+                    download?.delete()
+                    download = SnapshotDownload(term, index, length)
+                    this.download = download
+                }
+                return download.write(offset, data)
+            } catch (e: IOException) {
+                throw IOError(e)
             }
         }
 
-        override fun close() {
+        override fun installSnapshot(): RaftSnapshot {
+            val download = this.download
+            Preconditions.checkState(download != null && download.isComplete(), "snapshot is not received")
+            this.download = null
             try {
-                segmentOutput.flush()
-                dirty = false
-                segmentOutput.close()
+                download!!.close()
+                val entry = fileService.input(download.file).use { LogEntry.codec.read(it) }
+                Preconditions.checkState(entry.term == download.term && entry.index == download.index,
+                    "received snapshot %s:%s does not match transfer", entry.term, entry.index)
+                checkSnapshot(entry.index)
+                fileService.move(download.file, snapshotFile)
+                compacted(entry)
+                return entry.command as RaftSnapshot
             } catch (e: IOException) {
+                download!!.delete()
                 throw IOError(e)
             }
         }
 
+        /**
+         * Chunks are written at their offsets, so chunks reordered by transport are not dropped,
+         * received ranges after contiguous prefix are tracked until prefix reaches them.
+         */
+        private inner class SnapshotDownload(val term: Long, val index: Long, val length: Long) : Closeable {
+            val file: File = fileService.temporary(service, "snapshot.", ".tmp")
+            private val channel = RandomAccessFile(file, "rw").channel
+            private val ranges = TreeMap<Long, Long>()
+            private var received = 0L
+
+            fun write(offset: Long, data: ByteArray): Long {
+                val end = offset + data.size
+                Preconditions.checkArgument(offset >= 0 && end <= length, "chunk is out of snapshot bounds")
+                if (end > received && (offset <= received || !ranges.containsKey(offset))) {
+                    val buffer = ByteBuffer.wrap(data)
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, offset + buffer.position())
+                    }
+                    if (offset <= received) {
+                        received = end
+                    } else {
+                        ranges[offset] = end
+                    }
+                    while (ranges.isNotEmpty() && ranges.firstKey() <= received) {
+                        received = Math.max(received, ranges.pollFirstEntry().value)
+                    }
+                }
+                return received
+            }
+
+            fun isComplete(): Boolean = received == length
+
+            override fun close() {
+                if (channel.isOpen) {
+                    if (durability == LogDurability.FSYNC) {
+                        channel.force(true)
+                    }
+                    channel.close()
+                }
+            }
+
+            fun delete() {
+                close()
+                fileService.delete(file)
+            }
+        }
+
+        override fun sync(listener: () -> Unit): Boolean {
+            return if (syncer == null) {
+                true
+            } else {
+                syncer.sync(listener)
+                false
+            }
+        }
+
+        override fun syncStats(): LogSyncStats {
+            return syncer?.stats ?: LogSyncStats.empty
+        }
+
+        override fun close() {
+            syncer?.close()
+            download?.delete()
+            for (logSegment in segments) {
+                if (durability != LogDurability.NONE) {
+                    logSegment.force()
+                }
+                logSegment.close()
+            }
+        }
+
+        /**
+         * Group commit: appends accumulated while previous force is running are forced together,
+         * listeners of the batch are invoked after force completes.
+         */
+        private inner class LogSyncer : Closeable {
+            private val executor: ExecutorService = Executors.newSingleThreadExecutor(DefaultThreadFactory("raft-log-sync", true))
+            private val lock = ReentrantLock()
+            private var listeners = ArrayList<() -> Unit>()
+            private var dirty = Vector.empty<LogSegment>()
+            private var appends = 0
+            private var scheduled = false
+
+            @Volatile var stats = LogSyncStats.empty
+                private set
+
+            fun appended(segment: LogSegment) {
+                lock.lock()
+                try {
+                    appends++
+                    if (dirty.isEmpty || dirty.last() !== segment) {
+                        dirty = dirty.append(segment)
+                    }
+                } finally {
+                    lock.unlock()
+                }
+            }
+
+            fun discard(segment: LogSegment) {
+                lock.lock()
+                try {
+                    dirty = dirty.remove(segment)
+                } finally {
+                    lock.unlock()
+                }
+            }
+
+            fun sync(listener: () -> Unit) {
+                lock.lock()
+                try {
+                    listeners.add(listener)
+                    if (!scheduled) {
+                        scheduled = true
+                        executor.execute { run() }
+                    }
+                } finally {
+                    lock.unlock()
+                }
+            }
+
+            private fun run() {
+                val batch: ArrayList<() -> Unit>
+                val segments: Vector<LogSegment>
+                val count: Int
+                lock.lock()
+                try {
+                    batch = listeners
+                    segments = dirty
+                    count = appends
+                    listeners = ArrayList()
+                    dirty = Vector.empty()
+                    appends = 0
+                    scheduled = false
+                } finally {
+                    lock.unlock()
+                }
+
+                val start = System.nanoTime()
+                segments.forEach { it.force() }
+                val nanos = System.nanoTime() - start
+                stats = stats.record(count, nanos)
+                if (logger.isDebugEnabled) {
+                    logger.debug("sync {} appends in {}us", count, TimeUnit.NANOSECONDS.toMicros(nanos))
+                }
+
+                for (listener in batch) {
+                    try {
+                        listener.invoke()
+                    } catch (e: Exception) {
+                        logger.error("error invoke sync listener", e)
+                    }
+                }
+            }
+
+            override fun close() {
+                executor.shutdown()
+                executor.awaitTermination(1, TimeUnit.MINUTES)
+            }
+        }
+
         override fun toString(): String {
             return "ReplicatedLog{" +
-                "entries=" + entries +
+                "start=" + start +
+                ", length=" + length() +
                 ", committedIndex=" + committedIndex +
-                ", start=" + start +
-                ", file=" + segmentFile.toPath().fileName + " (" + segmentFile.length() + " bytes)" +
+                ", snapshot=" + (snapshotEntry != null) +
+                ", segments=" + segments +
                 '}'
         }
     }
@@ -399,5 +1036,8 @@ class FilePersistentService @Inject constructor(private val fileService: FileSer
 
         private val initialIndex: Long = 1
         private val initialCommittedIndex: Long = 0
+
+        private const val bufferSize = 4096
+        private const val maxBufferSize = 1024 * 1024
     }
 }
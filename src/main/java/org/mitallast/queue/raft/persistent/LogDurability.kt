@@ -0,0 +1,16 @@
+package org.mitallast.queue.raft.persistent
+
+enum class LogDurability {
+    /**
+     * Log is never forced, page cache is written back by OS
+     */
+    NONE,
+    /**
+     * Appended entries are visible to OS immediately, sealed segments are forced on roll and close
+     */
+    FLUSH,
+    /**
+     * Appended entries are forced before acknowledgement, concurrent appends share one force
+     */
+    FSYNC
+}
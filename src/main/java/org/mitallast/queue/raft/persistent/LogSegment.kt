@@ -0,0 +1,370 @@
+package org.mitallast.queue.raft.persistent
+
+import com.google.common.base.Preconditions
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufInputStream
+import io.netty.buffer.Unpooled
+import io.netty.util.internal.PlatformDependent
+import org.mitallast.queue.common.codec.VarInt
+import org.mitallast.queue.common.file.RecordFrame
+import org.mitallast.queue.raft.protocol.LogEntry
+import java.io.Closeable
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+/**
+ * Fixed size memory mapped segment of raft log.
+ *
+ * Segment file contains [RecordFrame] records with encoded [LogEntry] payload, the first empty
+ * or invalid frame marks the end of data. New records are [RecordFrame.TYPE_ENTRY_COMPACT],
+ * records of [RecordFrame.TYPE_ENTRY] written by previous versions are read with fixed width codec.
+ * Index file contains byte position of every `indexInterval`-th record, so lookup by offset
+ * needs at most `indexInterval - 1` record skips and no decoding.
+ *
+ * Appends, truncate and delete are called by log owner, reads and [force] may be called
+ * by other threads. Delete waits for running reads and force, then unmaps the file, access
+ * to deleted segment fails instead of touching released memory.
+ */
+class LogSegment(
+    val base: Long,
+    private val file: File,
+    private val indexFile: File,
+    capacity: Int,
+    private val indexInterval: Int
+) : Closeable {
+    val capacity: Int
+    private val channel: FileChannel
+    private val buffer: MappedByteBuffer
+    private val indexChannel: FileChannel
+    private val index: MappedByteBuffer
+
+    @Volatile private var position = 0
+    @Volatile private var count = 0
+
+    private val lock = ReentrantReadWriteLock()
+    private var deleted = false
+
+    init {
+        if (isUnframed(file, indexFile)) {
+            // unframed data would be zeroed by recovery as torn tail
+            throw java.io.IOException("segment $file is written by previous version without record frames, it should be migrated")
+        }
+        val raf = RandomAccessFile(file, "rw")
+        val extend = raf.length() < capacity
+        if (extend) {
+            raf.setLength(capacity.toLong())
+        }
+        this.capacity = raf.length().toInt()
+        channel = raf.channel
+        if (extend) {
+            // persist file size once, data pages are forced with mapped buffer
+            channel.force(true)
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity.toLong())
+
+        val indexSize = (this.capacity / (MIN_RECORD_SIZE * indexInterval) + 1) * Integer.BYTES
+        val indexRaf = RandomAccessFile(indexFile, "rw")
+        if (indexRaf.length() < indexSize) {
+            indexRaf.setLength(indexSize.toLong())
+        }
+        indexChannel = indexRaf.channel
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize.toLong())
+
+        recover()
+    }
+
+    /**
+     * Validates frames by checksum without decoding entries, repairs index and cuts torn tail.
+     */
+    private fun recover() {
+        var pos = 0
+        var n = 0
+        while (true) {
+            val frame = RecordFrame.validate(buffer, pos, capacity)
+            if (frame < 0) {
+                break
+            }
+            if (n % indexInterval == 0 && index.getInt(n / indexInterval * Integer.BYTES) != pos) {
+                index.putInt(n / indexInterval * Integer.BYTES, pos)
+            }
+            pos += frame
+            n++
+        }
+        position = pos
+        count = n
+        if (!isZero(pos, capacity)) {
+            // torn record or interrupted truncate, bytes after last valid record are not trusted
+            zero(pos, capacity)
+        }
+    }
+
+    private fun isZero(from: Int, until: Int): Boolean {
+        var i = from
+        while (i + java.lang.Long.BYTES <= until) {
+            if (buffer.getLong(i) != 0L) {
+                return false
+            }
+            i += java.lang.Long.BYTES
+        }
+        while (i < until) {
+            if (buffer.get(i) != 0.toByte()) {
+                return false
+            }
+            i++
+        }
+        return true
+    }
+
+    private fun zero(from: Int, until: Int) {
+        val dst = buffer.duplicate()
+        dst.limit(until)
+        dst.position(from)
+        while (dst.hasRemaining()) {
+            dst.put(zeros, 0, Math.min(zeros.size, dst.remaining()))
+        }
+    }
+
+    fun size(): Int = count
+
+    fun bytes(): Int = position
+
+    fun lastIndex(): Long = base + count - 1
+
+    fun isEmpty(): Boolean = count == 0
+
+    fun fits(size: Int): Boolean = position + HEADER_SIZE + size <= capacity
+
+    fun append(payload: ByteBuf) {
+        val size = payload.readableBytes()
+        val pos = position
+        val dst = buffer.duplicate()
+        dst.limit(pos + HEADER_SIZE + size)
+        dst.position(pos + HEADER_SIZE)
+        payload.getBytes(payload.readerIndex(), dst)
+        commit(pos, size)
+    }
+
+    /**
+     * Appends record of known size, writer encodes payload directly to mapped buffer.
+     */
+    fun append(size: Int, writer: (ByteBuf) -> Unit) {
+        val pos = position
+        val dst = buffer.duplicate()
+        dst.limit(pos + HEADER_SIZE + size)
+        dst.position(pos + HEADER_SIZE)
+        val payload = Unpooled.wrappedBuffer(dst.slice()).clear()
+        writer.invoke(payload)
+        Preconditions.checkState(payload.writerIndex() == size, "expected record size %s, written %s", size, payload.writerIndex())
+        commit(pos, size)
+    }
+
+    private fun commit(pos: Int, size: Int) {
+        if (count % indexInterval == 0) {
+            index.putInt(count / indexInterval * Integer.BYTES, pos)
+        }
+        buffer.putInt(pos + RecordFrame.TYPE_OFFSET, RecordFrame.TYPE_ENTRY_COMPACT)
+        val dst = buffer.duplicate()
+        dst.limit(pos + HEADER_SIZE + size)
+        dst.position(pos + RecordFrame.TYPE_OFFSET)
+        buffer.putInt(pos + RecordFrame.CHECKSUM_OFFSET, RecordFrame.checksum(dst))
+        // length is written last, record is visible for recovery only when fully copied
+        buffer.putInt(pos + RecordFrame.LENGTH_OFFSET, size)
+        position = pos + HEADER_SIZE + size
+        count++
+    }
+
+    /**
+     * Drops records starting from offset. Size of the first dropped record is zeroed first,
+     * so recovery never sees dropped records, then remaining bytes are zeroed to not confuse
+     * recovery after next appends.
+     */
+    fun truncate(offset: Int) {
+        if (offset >= count) {
+            return
+        }
+        val pos = positionOf(offset)
+        buffer.putInt(pos + RecordFrame.LENGTH_OFFSET, 0)
+        zero(pos + Integer.BYTES, position)
+        position = pos
+        count = offset
+    }
+
+    fun read(offset: Int): LogEntry = mapped {
+        decode(positionOf(offset))
+    }
+
+    fun read(fromOffset: Int, untilOffset: Int, consumer: (LogEntry) -> Unit) = mapped {
+        if (fromOffset < untilOffset) {
+            var pos = positionOf(fromOffset)
+            for (i in fromOffset until untilOffset) {
+                consumer.invoke(decode(pos))
+                pos += HEADER_SIZE + buffer.getInt(pos)
+            }
+        }
+    }
+
+    /**
+     * Passes payload sizes of records from offset to consumer while it returns true.
+     * Sizes are read from record headers, entries are not decoded.
+     */
+    fun sizes(fromOffset: Int, consumer: (Int) -> Boolean) = mapped {
+        if (fromOffset < count) {
+            var pos = positionOf(fromOffset)
+            for (i in fromOffset until count) {
+                val size = buffer.getInt(pos)
+                if (!consumer.invoke(size)) {
+                    break
+                }
+                pos += HEADER_SIZE + size
+            }
+        }
+    }
+
+    fun termAt(offset: Int): Long = mapped {
+        val pos = positionOf(offset)
+        if (isCompact(pos)) {
+            VarInt.getLong(buffer, pos + HEADER_SIZE)
+        } else {
+            buffer.getLong(pos + HEADER_SIZE)
+        }
+    }
+
+    fun indexAt(offset: Int): Long = mapped {
+        val pos = positionOf(offset)
+        if (isCompact(pos)) {
+            val term = VarInt.getLong(buffer, pos + HEADER_SIZE)
+            VarInt.getLong(buffer, pos + HEADER_SIZE + VarInt.size(term))
+        } else {
+            buffer.getLong(pos + HEADER_SIZE + java.lang.Long.BYTES)
+        }
+    }
+
+    private fun isCompact(pos: Int): Boolean {
+        return buffer.getInt(pos + RecordFrame.TYPE_OFFSET) == RecordFrame.TYPE_ENTRY_COMPACT
+    }
+
+    private fun positionOf(offset: Int): Int {
+        val slot = offset / indexInterval
+        var pos = index.getInt(slot * Integer.BYTES)
+        for (i in slot * indexInterval until offset) {
+            pos += HEADER_SIZE + buffer.getInt(pos)
+        }
+        return pos
+    }
+
+    private fun decode(pos: Int): LogEntry {
+        val size = buffer.getInt(pos)
+        val slice: ByteBuffer = buffer.duplicate()
+        slice.position(pos + HEADER_SIZE)
+        slice.limit(pos + HEADER_SIZE + size)
+        val input = ByteBufInputStream(Unpooled.wrappedBuffer(slice.slice()))
+        return if (isCompact(pos)) {
+            LogEntry.compactCodec.read(input)
+        } else {
+            LogEntry.codec.read(input)
+        }
+    }
+
+    private inline fun <T> mapped(block: () -> T): T {
+        val read = lock.readLock()
+        read.lock()
+        try {
+            if (deleted) {
+                throw IllegalStateException("segment $base is deleted")
+            }
+            return block.invoke()
+        } finally {
+            read.unlock()
+        }
+    }
+
+    /**
+     * Forces data records to storage, index is not forced because it is repaired on recovery.
+     * Force of deleted segment is ignored.
+     */
+    fun force() {
+        val read = lock.readLock()
+        read.lock()
+        try {
+            if (!deleted) {
+                buffer.force()
+            }
+        } finally {
+            read.unlock()
+        }
+    }
+
+    override fun close() {
+        channel.close()
+        indexChannel.close()
+    }
+
+    /**
+     * Waits for running force and reads, then closes and unmaps segment before files are deleted,
+     * mapping is not left until buffers are collected.
+     */
+    fun delete() {
+        val write = lock.writeLock()
+        write.lock()
+        try {
+            if (deleted) {
+                return
+            }
+            deleted = true
+            close()
+            PlatformDependent.freeDirectBuffer(buffer)
+            PlatformDependent.freeDirectBuffer(index)
+        } finally {
+            write.unlock()
+        }
+        if (file.exists() && !file.delete()) {
+            throw java.io.IOException("Error delete file " + file)
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw java.io.IOException("Error delete file " + indexFile)
+        }
+    }
+
+    override fun toString(): String {
+        return "Segment{base=$base, size=$count, bytes=$position, capacity=$capacity}"
+    }
+
+    companion object {
+        const val HEADER_SIZE = RecordFrame.HEADER_SIZE
+        // header + term + index + session + message type of compact record
+        const val MIN_RECORD_SIZE = HEADER_SIZE + 1 + 1 + java.lang.Long.BYTES + 1
+
+        private val zeros = ByteArray(4096)
+
+        /**
+         * Segment written by previous versions is a stream of [LogEntry] records in fixed width
+         * encoding without index file. It is not empty, but has no valid first frame.
+         * Torn first record of framed segment has index file, so it is not unframed.
+         */
+        fun isUnframed(file: File, indexFile: File): Boolean {
+            if (indexFile.exists() || !file.exists() || file.length() == 0L) {
+                return false
+            }
+            RandomAccessFile(file, "r").use { raf ->
+                val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                try {
+                    if (RecordFrame.validate(buffer, 0, buffer.capacity()) > 0) {
+                        return false
+                    }
+                    while (buffer.hasRemaining()) {
+                        if (buffer.get() != 0.toByte()) {
+                            return true
+                        }
+                    }
+                    return false
+                } finally {
+                    PlatformDependent.freeDirectBuffer(buffer)
+                }
+            }
+        }
+    }
+}
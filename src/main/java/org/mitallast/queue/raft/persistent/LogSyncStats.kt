@@ -0,0 +1,27 @@
+package org.mitallast.queue.raft.persistent
+
+data class LogSyncStats(
+    val syncs: Long,
+    val appends: Long,
+    val lastAppends: Int,
+    val maxAppends: Int,
+    val lastNanos: Long,
+    val maxNanos: Long,
+    val totalNanos: Long
+) {
+    fun record(appends: Int, nanos: Long): LogSyncStats {
+        return LogSyncStats(
+            syncs + 1,
+            this.appends + appends,
+            appends,
+            Math.max(maxAppends, appends),
+            nanos,
+            Math.max(maxNanos, nanos),
+            totalNanos + nanos
+        )
+    }
+
+    companion object {
+        val empty = LogSyncStats(0, 0, 0, 0, 0, 0, 0)
+    }
+}
@@ -2,10 +2,12 @@ package org.mitallast.queue.raft.persistent
 
 import io.vavr.collection.Vector
 import io.vavr.control.Option
+import org.mitallast.queue.raft.cluster.ClusterConfiguration
 import org.mitallast.queue.raft.protocol.LogEntry
 import org.mitallast.queue.raft.protocol.RaftSnapshot
 
 import java.io.Closeable
+import java.io.File
 
 interface ReplicatedLog : Closeable {
 
@@ -37,17 +39,77 @@ interface ReplicatedLog : Closeable {
 
     fun compactWith(snapshot: RaftSnapshot): ReplicatedLog
 
+    /**
+     * Serializes snapshot to temporary file. Log state is not changed, so it may run concurrently
+     * with appends, and file is applied later with [compactWith].
+     */
+    fun writeSnapshot(snapshot: RaftSnapshot): File
+
+    /**
+     * Replaces persisted snapshot with file written by [writeSnapshot] and compacts log to it.
+     * File of snapshot which is not newer than current one is deleted.
+     */
+    fun compactWith(snapshot: RaftSnapshot, file: File): ReplicatedLog
+
     fun entriesBatchFrom(fromIncluding: Long, howMany: Int): Vector<LogEntry>
 
+    /**
+     * Entries from index, at most `howMany` and at most `maxBytes` of encoded entries,
+     * batch may contain entries of different terms.
+     */
+    fun entriesBatchFrom(fromIncluding: Long, howMany: Int, maxBytes: Long): Vector<LogEntry>
+
     fun slice(from: Long, until: Long): Vector<LogEntry>
 
     fun containsEntryAt(index: Long): Boolean
 
     fun termAt(index: Long): Long
 
+    /**
+     * First index in log of term of entry at index. Terms of entries do not decrease,
+     * so it is found by binary search.
+     */
+    fun firstIndexOfTerm(index: Long): Long
+
+    /**
+     * Last index in log of entry with term, or 0 if log does not contain entries of term.
+     */
+    fun lastIndexOfTerm(term: Long): Long
+
+    /**
+     * Last configuration in log, or configuration of snapshot if log has no configuration entries after it.
+     */
+    fun lastConfiguration(): Option<ClusterConfiguration>
+
     fun hasSnapshot(): Boolean
 
     fun snapshot(): RaftSnapshot
 
+    /**
+     * Length in bytes of persisted snapshot, it is transferred to followers in chunks.
+     */
+    fun snapshotLength(): Long
+
+    fun readSnapshot(offset: Long, length: Int): ByteArray
+
+    /**
+     * Writes chunk of snapshot received from leader to temporary file, chunk of other snapshot
+     * discards previous partial transfer. Returns length of contiguous received part.
+     */
+    fun receiveSnapshot(term: Long, index: Long, length: Long, offset: Long, data: ByteArray): Long
+
+    /**
+     * Replaces persisted snapshot with completely received one and compacts log to it.
+     */
+    fun installSnapshot(): RaftSnapshot
+
+    /**
+     * Returns true if all appended entries are durable, listener is not invoked in this case.
+     * Otherwise listener is invoked from sync thread after entries appended before this call are durable.
+     */
+    fun sync(listener: () -> Unit): Boolean
+
+    fun syncStats(): LogSyncStats
+
     override fun close()
 }
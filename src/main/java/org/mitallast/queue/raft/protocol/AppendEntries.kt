@@ -23,11 +23,11 @@ data class AppendEntries(
             AppendEntries::leaderCommit,
             AppendEntries::entries,
             DiscoveryNode.codec,
-            Codec.longCodec(),
-            Codec.longCodec(),
-            Codec.longCodec(),
-            Codec.longCodec(),
-            Codec.vectorCodec(LogEntry.codec)
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.vectorCodec(LogEntry.compactCodec)
         )
     }
 }
@@ -4,16 +4,35 @@ import org.mitallast.queue.common.codec.Codec
 import org.mitallast.queue.common.codec.Message
 import org.mitallast.queue.transport.DiscoveryNode
 
-data class AppendRejected(val member: DiscoveryNode, val term: Long, val lastIndex: Long) : Message {
+/**
+ * Previous log index is index of rejected request, leader ignores rejects of requests it moved past.
+ *
+ * Conflict term is term of follower entry at previous index of rejected request, and conflict index
+ * is first index of that term. If follower log is shorter, conflict term is 0 and conflict index is
+ * next index of follower log. Conflict index 0 means follower has no hint.
+ */
+data class AppendRejected @JvmOverloads constructor(
+    val member: DiscoveryNode,
+    val term: Long,
+    val prevLogIndex: Long,
+    val lastIndex: Long,
+    val conflictTerm: Long = 0,
+    val conflictIndex: Long = 0
+) : Message {
     companion object {
         val codec = Codec.of(
             ::AppendRejected,
             AppendRejected::member,
             AppendRejected::term,
+            AppendRejected::prevLogIndex,
             AppendRejected::lastIndex,
+            AppendRejected::conflictTerm,
+            AppendRejected::conflictIndex,
             DiscoveryNode.codec,
-            Codec.longCodec(),
-            Codec.longCodec()
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.varLongCodec()
         )
     }
 }
@@ -12,8 +12,8 @@ data class AppendSuccessful(val member: DiscoveryNode, val term: Long, val lastI
             AppendSuccessful::term,
             AppendSuccessful::lastIndex,
             DiscoveryNode.codec,
-            Codec.longCodec(),
-            Codec.longCodec()
+            Codec.varLongCodec(),
+            Codec.varLongCodec()
         )
     }
 }
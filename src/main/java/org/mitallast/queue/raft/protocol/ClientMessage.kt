@@ -9,7 +9,7 @@ data class ClientMessage(val command: Message, val session: Long) : Message {
             ::ClientMessage,
             ClientMessage::command,
             ClientMessage::session,
-            Codec.anyCodec(),
+            Codec.compactAnyCodec(),
             Codec.longCodec()
         )
     }
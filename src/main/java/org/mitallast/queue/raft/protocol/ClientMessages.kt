@@ -0,0 +1,15 @@
+package org.mitallast.queue.raft.protocol
+
+import io.vavr.collection.Vector
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+
+data class ClientMessages(val messages: Vector<ClientMessage>) : Message {
+    companion object {
+        val codec = Codec.of(
+            ::ClientMessages,
+            ClientMessages::messages,
+            Codec.vectorCodec(ClientMessage.codec)
+        )
+    }
+}
@@ -0,0 +1,19 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+
+/**
+ * Protocol message of raft group, messages of default raft are sent without envelope.
+ */
+data class GroupMessage(val group: String, val message: Message) : Message {
+    companion object {
+        val codec = Codec.of<GroupMessage, String, Message>(
+            ::GroupMessage,
+            GroupMessage::group,
+            GroupMessage::message,
+            Codec.stringCodec(),
+            Codec.compactAnyCodec()
+        )
+    }
+}
@@ -0,0 +1,18 @@
+package org.mitallast.queue.raft.protocol
+
+import io.vavr.collection.Vector
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+
+/**
+ * Messages of raft groups to the same node coalesced by heartbeat round.
+ */
+data class GroupMessages(val messages: Vector<GroupMessage>) : Message {
+    companion object {
+        val codec = Codec.of(
+            ::GroupMessages,
+            GroupMessages::messages,
+            Codec.vectorCodec(GroupMessage.codec)
+        )
+    }
+}
@@ -0,0 +1,40 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+import org.mitallast.queue.transport.DiscoveryNode
+
+/**
+ * Part of persisted snapshot starting at byte offset, snapshot is identified by last included
+ * term and index and has fixed length, so transfer can be resumed from any received offset.
+ */
+data class InstallSnapshotChunk(
+    val leader: DiscoveryNode,
+    val term: Long,
+    val snapshotTerm: Long,
+    val snapshotIndex: Long,
+    val length: Long,
+    val offset: Long,
+    val data: ByteArray
+) : Message {
+
+    companion object {
+        val codec = Codec.of(
+            ::InstallSnapshotChunk,
+            InstallSnapshotChunk::leader,
+            InstallSnapshotChunk::term,
+            InstallSnapshotChunk::snapshotTerm,
+            InstallSnapshotChunk::snapshotIndex,
+            InstallSnapshotChunk::length,
+            InstallSnapshotChunk::offset,
+            InstallSnapshotChunk::data,
+            DiscoveryNode.codec,
+            Codec.longCodec(),
+            Codec.longCodec(),
+            Codec.longCodec(),
+            Codec.longCodec(),
+            Codec.longCodec(),
+            Codec.bytesCodec()
+        )
+    }
+}
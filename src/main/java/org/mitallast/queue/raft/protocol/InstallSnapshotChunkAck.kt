@@ -0,0 +1,30 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+import org.mitallast.queue.transport.DiscoveryNode
+
+/**
+ * Length of contiguous received part of snapshot, leader continues transfer from it.
+ */
+data class InstallSnapshotChunkAck(
+    val member: DiscoveryNode,
+    val term: Long,
+    val snapshotIndex: Long,
+    val received: Long
+) : Message {
+
+    companion object {
+        val codec = Codec.of(
+            ::InstallSnapshotChunkAck,
+            InstallSnapshotChunkAck::member,
+            InstallSnapshotChunkAck::term,
+            InstallSnapshotChunkAck::snapshotIndex,
+            InstallSnapshotChunkAck::received,
+            DiscoveryNode.codec,
+            Codec.longCodec(),
+            Codec.longCodec(),
+            Codec.longCodec()
+        )
+    }
+}
@@ -6,6 +6,9 @@ import org.mitallast.queue.common.codec.Message
 data class LogEntry(val term: Long, val index: Long, val session: Long, val command: Message) : Message {
 
     companion object {
+        /**
+         * Fixed width encoding, used by snapshot files and by log records written before compact encoding.
+         */
         val codec = Codec.of(
             ::LogEntry,
             LogEntry::term,
@@ -17,5 +20,20 @@ data class LogEntry(val term: Long, val index: Long, val session: Long, val comm
             Codec.longCodec(),
             Codec.anyCodec()
         )
+
+        /**
+         * Term and index are varints, session is random and stays fixed width.
+         */
+        val compactCodec = Codec.of(
+            ::LogEntry,
+            LogEntry::term,
+            LogEntry::index,
+            LogEntry::session,
+            LogEntry::command,
+            Codec.varLongCodec(),
+            Codec.varLongCodec(),
+            Codec.longCodec(),
+            Codec.compactAnyCodec()
+        )
     }
 }
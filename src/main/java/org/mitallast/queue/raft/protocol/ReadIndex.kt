@@ -0,0 +1,17 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+import org.mitallast.queue.transport.DiscoveryNode
+
+data class ReadIndex(val member: DiscoveryNode, val id: Long) : Message {
+    companion object {
+        val codec = Codec.of(
+            ::ReadIndex,
+            ReadIndex::member,
+            ReadIndex::id,
+            DiscoveryNode.codec,
+            Codec.longCodec()
+        )
+    }
+}
@@ -0,0 +1,19 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+
+/**
+ * Index to wait before read with given id, negative index means read is rejected by not a leader.
+ */
+data class ReadIndexResponse(val id: Long, val index: Long) : Message {
+    companion object {
+        val codec = Codec.of(
+            ::ReadIndexResponse,
+            ReadIndexResponse::id,
+            ReadIndexResponse::index,
+            Codec.longCodec(),
+            Codec.longCodec()
+        )
+    }
+}
@@ -4,11 +4,15 @@ import org.mitallast.queue.common.codec.Codec
 import org.mitallast.queue.common.codec.Message
 import org.mitallast.queue.transport.DiscoveryNode
 
-data class RequestVote(
+/**
+ * Vote requested on leadership transfer is granted even if follower has heard from leader recently.
+ */
+data class RequestVote @JvmOverloads constructor(
     val term: Long,
     val candidate: DiscoveryNode,
     val lastLogTerm: Long,
-    val lastLogIndex: Long) : Message {
+    val lastLogIndex: Long,
+    val transfer: Boolean = false) : Message {
 
     companion object {
         val codec = Codec.of(
@@ -17,10 +21,12 @@ data class RequestVote(
             RequestVote::candidate,
             RequestVote::lastLogTerm,
             RequestVote::lastLogIndex,
+            RequestVote::transfer,
             Codec.longCodec(),
             DiscoveryNode.codec,
             Codec.longCodec(),
-            Codec.longCodec()
+            Codec.longCodec(),
+            Codec.booleanCodec()
         )
     }
 }
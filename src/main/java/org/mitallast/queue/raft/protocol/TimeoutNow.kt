@@ -0,0 +1,21 @@
+package org.mitallast.queue.raft.protocol
+
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+import org.mitallast.queue.transport.DiscoveryNode
+
+/**
+ * Sent by leader on leadership transfer to follower with up to date log,
+ * follower starts election at once without waiting for election timeout.
+ */
+data class TimeoutNow(val term: Long, val leader: DiscoveryNode) : Message {
+    companion object {
+        val codec = Codec.of(
+            ::TimeoutNow,
+            TimeoutNow::term,
+            TimeoutNow::leader,
+            Codec.longCodec(),
+            DiscoveryNode.codec
+        )
+    }
+}
@@ -0,0 +1,10 @@
+package org.mitallast.queue.raft.resource
+
+/**
+ * Resource which applies committed entries in batches. Registered handlers are invoked for
+ * each entry of committed run, then [flush] is invoked once, so resource persists and publishes
+ * its state once per run instead of once per entry.
+ */
+interface BatchResourceFSM : ResourceFSM {
+    fun flush(index: Long)
+}
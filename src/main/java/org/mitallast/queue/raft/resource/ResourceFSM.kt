@@ -5,5 +5,9 @@ import org.mitallast.queue.common.codec.Message
 import org.mitallast.queue.raft.protocol.RaftSnapshotMetadata
 
 interface ResourceFSM {
+    /**
+     * Called on raft apply thread, returned message must be an immutable point-in-time view of state,
+     * it is serialized later on snapshot thread while commands continue to apply.
+     */
     fun prepareSnapshot(snapshotMeta: RaftSnapshotMetadata): Option<Message>
 }
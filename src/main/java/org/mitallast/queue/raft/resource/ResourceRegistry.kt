@@ -30,6 +30,17 @@ class ResourceRegistry {
             .flatMap { it.invoke(index, event) }
     }
 
+    /**
+     * Completes run of entries applied by [apply], batch resources persist state changed by the run.
+     */
+    fun flush(index: Long) {
+        for (resource in resources) {
+            if (resource is BatchResourceFSM) {
+                resource.flush(index)
+            }
+        }
+    }
+
     fun prepareSnapshot(snapshotMeta: RaftSnapshotMetadata): RaftSnapshot {
         val snapshots = resources.flatMap { r -> r.prepareSnapshot(snapshotMeta) }
         return RaftSnapshot(snapshotMeta, snapshots)
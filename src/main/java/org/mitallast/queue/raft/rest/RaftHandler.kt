@@ -4,25 +4,48 @@ import com.google.inject.Inject
 import io.netty.handler.codec.http.HttpMethod
 import io.vavr.collection.HashMap
 import io.vavr.collection.Map
+import io.vavr.concurrent.Future
+import io.vavr.control.Option
 import org.mitallast.queue.raft.Raft
 import org.mitallast.queue.raft.RaftMetadata
 import org.mitallast.queue.raft.cluster.JointConsensusClusterConfiguration
 import org.mitallast.queue.rest.RestController
+import org.mitallast.queue.rest.RestRequest
+import org.mitallast.queue.transport.DiscoveryNode
+import java.util.concurrent.TimeUnit
 
 class RaftHandler @Inject constructor(controller: RestController, private val raft: Raft) {
 
     init {
         controller
-            .handle(this::log, controller.response().json())
+            .handle(this::log, controller.param().request(), controller.response().json())
             .handle(HttpMethod.GET, "_raft/log")
         controller
             .handle(this::state, controller.response().json())
             .handle(HttpMethod.GET, "_raft/state")
+        controller
+            .handle(
+                this::transfer,
+                controller.param().request(),
+                controller.response().futureEither(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            )
+            .handle(HttpMethod.POST, "_raft/transfer")
     }
 
-    fun log(): Map<String, Any> {
+    /**
+     * Page of log entries from index given by `from` param, at most `size` entries.
+     * Next page starts from `next`, it is absent after the last entry.
+     */
+    fun log(request: RestRequest): Map<String, Any> {
         val log = raft.replicatedLog()
-        val entries = log.entries().map { (term, index, session, command) ->
+        val first = if (log.hasSnapshot()) log.snapshot().meta.lastIncludedIndex else 1
+        val from = if (request.hasParam("from")) Math.max(first, request.param("from").toLong()) else first
+        val size = if (request.hasParam("size")) request.param("size").toInt() else defaultPageSize
+        val page = log.entriesBatchFrom(from, size)
+        val entries = page.map { (term, index, session, command) ->
             HashMap.of(
                 "term", term,
                 "index", index,
@@ -30,10 +53,26 @@ class RaftHandler @Inject constructor(controller: RestController, private val ra
                 "session", session
             )
         }
-        return HashMap.of(
+        val sync = log.syncStats()
+        var response: Map<String, Any> = HashMap.of(
             "committedIndex", log.committedIndex(),
-            "entries", entries
+            "appliedIndex", raft.appliedIndex(),
+            "applyLag", raft.applyLag(),
+            "entries", entries,
+            "sync", HashMap.of(
+                "syncs", sync.syncs,
+                "appends", sync.appends,
+                "lastAppends", sync.lastAppends,
+                "maxAppends", sync.maxAppends,
+                "lastMicros", TimeUnit.NANOSECONDS.toMicros(sync.lastNanos),
+                "maxMicros", TimeUnit.NANOSECONDS.toMicros(sync.maxNanos),
+                "totalMicros", TimeUnit.NANOSECONDS.toMicros(sync.totalNanos)
+            )
         )
+        if (!page.isEmpty && page.last().index < log.lastIndex()) {
+            response = response.put("next", page.last().index + 1)
+        }
+        return response
     }
 
     fun state(): Map<String, Any> {
@@ -45,10 +84,23 @@ class RaftHandler @Inject constructor(controller: RestController, private val ra
         )
     }
 
+    /**
+     * Transfers leadership to node given by `host` and `port` params, or to most up to date follower.
+     */
+    fun transfer(request: RestRequest): Future<Boolean> {
+        val member = if (request.hasParam("host") && request.hasParam("port")) {
+            Option.some(DiscoveryNode(request.param("host"), request.param("port").toInt()))
+        } else {
+            Option.none()
+        }
+        return raft.transferLeadership(member)
+    }
+
     private fun config(meta: RaftMetadata): Map<String, Any> {
         var config: Map<String, Any> = HashMap.of(
             "isTransitioning", meta.config.isTransitioning,
-            "members", meta.config.members
+            "members", meta.config.members,
+            "learners", meta.config.learners
         )
         if (meta.config.isTransitioning) {
             val (oldMembers, newMembers) = meta.config as JointConsensusClusterConfiguration
@@ -57,4 +109,8 @@ class RaftHandler @Inject constructor(controller: RestController, private val ra
         }
         return config
     }
+
+    companion object {
+        private const val defaultPageSize = 1000
+    }
 }
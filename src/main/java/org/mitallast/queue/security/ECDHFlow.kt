@@ -1,5 +1,6 @@
 package org.mitallast.queue.security
 
+import io.netty.buffer.ByteBuf
 import io.netty.util.AttributeKey
 import org.conscrypt.OpenSSLProvider
 import java.lang.reflect.Field
@@ -13,9 +14,16 @@ import java.util.concurrent.CompletableFuture
 import javax.crypto.Cipher
 import javax.crypto.KeyAgreement
 import javax.crypto.SecretKey
-import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.GCMParameterSpec
 import javax.crypto.spec.SecretKeySpec
 
+/**
+ * Key agreement of transport channel and authenticated encryption of its frames.
+ *
+ * Each direction has own key derived from shared secret and public key of sender, nonce
+ * is counter of frames sent in that direction. Channel delivers frames in order, so nonce
+ * is not transferred, and reordered or replayed frame fails authentication.
+ */
 class ECDHFlow constructor(private val securityService: SecurityService) {
 
     private enum class State {
@@ -25,7 +33,10 @@ class ECDHFlow constructor(private val securityService: SecurityService) {
     private val keyPair: KeyPair
     private var state: State? = null
     private var otherPublicKey: PublicKey? = null
-    private var secretKey: SecretKey? = null
+    private var sendKey: SecretKey? = null
+    private var receiveKey: SecretKey? = null
+    private var sendCounter = 0L
+    private var receiveCounter = 0L
     private val signSignature: Signature
     private val verifySignature: Signature
     private val encryptCipher: Cipher
@@ -35,8 +46,8 @@ class ECDHFlow constructor(private val securityService: SecurityService) {
     init {
         this.signSignature = Signature.getInstance(ECC_SIGNATURE, PROVIDER)
         this.verifySignature = Signature.getInstance(ECC_SIGNATURE, PROVIDER)
-        this.encryptCipher = Cipher.getInstance(AES256)
-        this.decryptCipher = Cipher.getInstance(AES256)
+        this.encryptCipher = Cipher.getInstance(AEAD, PROVIDER)
+        this.decryptCipher = Cipher.getInstance(AEAD, PROVIDER)
         this.agreementFuture = CompletableFuture()
 
         val generator = KeyPairGenerator.getInstance(ECC_KEY_TYPE, PROVIDER)
@@ -106,11 +117,19 @@ class ECDHFlow constructor(private val securityService: SecurityService) {
         hash.update(keys[1])
 
         val derivedKey = hash.digest()
-        secretKey = SecretKeySpec(derivedKey, "AES")
+        sendKey = directionKey(derivedKey, keyPair.public.encoded)
+        receiveKey = directionKey(derivedKey, publicKey)
 
         agreementFuture.complete(null)
     }
 
+    private fun directionKey(derivedKey: ByteArray, senderPublicKey: ByteArray): SecretKey {
+        val hash = MessageDigest.getInstance(DIGEST)
+        hash.update(derivedKey)
+        hash.update(senderPublicKey)
+        return SecretKeySpec(hash.digest(), "AES")
+    }
+
     fun sign(data: ByteArray): ByteArray {
         signSignature.initSign(keyPair.private)
         signSignature.update(data)
@@ -123,30 +142,49 @@ class ECDHFlow constructor(private val securityService: SecurityService) {
         return verifySignature.verify(sign)
     }
 
-    fun encrypt(data: ByteArray): ECDHEncrypted {
+    fun encryptedSize(length: Int): Int {
+        return length + TAG_LENGTH
+    }
+
+    /**
+     * Encrypts readable bytes of plaintext and appends ciphertext with tag to out,
+     * reader index of plaintext is not changed.
+     */
+    fun encrypt(plaintext: ByteBuf, out: ByteBuf) {
         if (state != State.AGREEMENT) {
             throw IllegalStateException("no shared key")
         }
-
-        encryptCipher.init(Cipher.ENCRYPT_MODE, secretKey)
-        val params = encryptCipher.parameters
-        val iv = params.getParameterSpec(IvParameterSpec::class.java).iv
-        val encrypted = encryptCipher.doFinal(data)
-        val sign = sign(data)
-        return ECDHEncrypted(sign, iv, encrypted)
+        val length = encryptedSize(plaintext.readableBytes())
+        out.ensureWritable(length)
+        encryptCipher.init(Cipher.ENCRYPT_MODE, sendKey, nonce(sendCounter++))
+        val written = encryptCipher.doFinal(plaintext.nioBuffer(), out.nioBuffer(out.writerIndex(), length))
+        out.writerIndex(out.writerIndex() + written)
     }
 
-    fun decrypt(encrypted: ECDHEncrypted): ByteArray {
+    /**
+     * Decrypts readable bytes of ciphertext with tag and appends plaintext to out,
+     * throws [javax.crypto.AEADBadTagException] if frame is not authentic.
+     */
+    fun decrypt(ciphertext: ByteBuf, out: ByteBuf) {
         if (state != State.AGREEMENT) {
             throw IllegalStateException("no shared key")
         }
+        val length = ciphertext.readableBytes() - TAG_LENGTH
+        if (length < 0) {
+            throw IllegalArgumentException("frame is shorter than tag")
+        }
+        out.ensureWritable(length)
+        decryptCipher.init(Cipher.DECRYPT_MODE, receiveKey, nonce(receiveCounter++))
+        val written = decryptCipher.doFinal(ciphertext.nioBuffer(), out.nioBuffer(out.writerIndex(), length))
+        out.writerIndex(out.writerIndex() + written)
+    }
 
-        decryptCipher.init(Cipher.DECRYPT_MODE, secretKey, IvParameterSpec(encrypted.iv))
-        val decrypted = decryptCipher.doFinal(encrypted.encrypted)
-        if (!verify(decrypted, encrypted.sign)) {
-            throw IllegalArgumentException("not verified")
+    private fun nonce(counter: Long): GCMParameterSpec {
+        val nonce = ByteArray(NONCE_LENGTH)
+        for (i in 0 until 8) {
+            nonce[NONCE_LENGTH - 1 - i] = (counter ushr (i * 8)).toByte()
         }
-        return decrypted
+        return GCMParameterSpec(TAG_LENGTH * 8, nonce)
     }
 
     val isAgreement: Boolean
@@ -204,7 +242,9 @@ class ECDHFlow constructor(private val securityService: SecurityService) {
         private val ECC_CURVE = "secp224r1"
         private val ECC_SIGNATURE = "SHA1withECDSA"
         private val ECDH_AGREEMENT = "ECDH"
-        private val AES256 = "AES/CBC/PKCS5Padding"
+        private val AEAD = "AES/GCM/NoPadding"
+        private val TAG_LENGTH = 16
+        private val NONCE_LENGTH = 12
         private val DIGEST = "SHA-256"
 
         init {
@@ -13,7 +13,6 @@ class SecurityModule : AbstractModule() {
         init {
             Codec.register(10, ECDHRequest::class.java, ECDHRequest.codec)
             Codec.register(11, ECDHResponse::class.java, ECDHResponse.codec)
-            Codec.register(12, ECDHEncrypted::class.java, ECDHEncrypted.codec)
         }
     }
 }
@@ -9,4 +9,13 @@ interface TransportService {
     fun disconnectFromNode(node: DiscoveryNode)
 
     fun send(node: DiscoveryNode, message: Message)
+
+    /**
+     * Sends same message to each node, implementation may serialize it once for all of them.
+     */
+    fun send(nodes: Iterable<DiscoveryNode>, message: Message) {
+        for (node in nodes) {
+            send(node, message)
+        }
+    }
 }
@@ -1,7 +1,6 @@
 package org.mitallast.queue.transport.netty
 
 import io.netty.buffer.ByteBuf
-import io.netty.buffer.ByteBufInputStream
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.ByteToMessageDecoder
 import org.apache.logging.log4j.LogManager
@@ -18,17 +17,22 @@ class CodecDecoder : ByteToMessageDecoder() {
         }
 
         val readerIndex = buffer.readerIndex()
-        val size = buffer.getInt(readerIndex)
+        val header = buffer.getInt(readerIndex)
+        val size = header and ENCRYPTED.inv()
 
         if (buffer.readableBytes() < size + Integer.BYTES) {
             return
         }
 
         buffer.skipBytes(Integer.BYTES)
+        if (header and ENCRYPTED != 0) {
+            // encrypted frame is passed as is to decrypt in next handler
+            out.add(buffer.readRetainedSlice(size))
+            return
+        }
         val start = buffer.readerIndex()
         val message: Message
-        val stream = ByteBufInputStream(buffer)
-        message = Codec.anyCodec<Message>().read(stream)
+        message = Codec.compactAnyCodec<Message>().read(buffer)
         val readSize = buffer.readerIndex() - start
         if (readSize < size) {
             logger.warn("error reading message, expected {} read {}, skip bytes", size, readSize)
@@ -38,4 +42,11 @@ class CodecDecoder : ByteToMessageDecoder() {
         }
         out.add(message)
     }
+
+    companion object {
+        /**
+         * Flag of frame size header, set if frame contains encrypted message.
+         */
+        const val ENCRYPTED = Int.MIN_VALUE
+    }
 }
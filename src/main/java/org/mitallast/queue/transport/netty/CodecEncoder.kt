@@ -1,7 +1,7 @@
 package org.mitallast.queue.transport.netty
 
 import io.netty.buffer.ByteBuf
-import io.netty.buffer.ByteBufOutputStream
+import io.netty.buffer.CompositeByteBuf
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.MessageToByteEncoder
 import org.mitallast.queue.common.codec.Codec
@@ -9,13 +9,53 @@ import org.mitallast.queue.common.codec.Message
 
 class CodecEncoder : MessageToByteEncoder<Message>() {
 
+    /**
+     * Frame of message of known size is allocated with exact capacity. Large frame is composite,
+     * it grows by adding components without copy, and byte payloads are added as components.
+     * Frame of encoded message is composite of size header and shared content.
+     */
+    @Throws(Exception::class)
+    override fun allocateBuffer(ctx: ChannelHandlerContext, msg: Message, preferDirect: Boolean): ByteBuf {
+        if (msg is EncodedMessage) {
+            val buffer = ctx.alloc().compositeDirectBuffer(2)
+            buffer.addComponent(ctx.alloc().directBuffer(Integer.BYTES, Integer.BYTES))
+            return buffer
+        }
+        val size = Codec.compactAnyCodec<Message>().size(msg)
+        if (size < 0) {
+            return super.allocateBuffer(ctx, msg, preferDirect)
+        }
+        val frame = Integer.BYTES + size
+        if (frame <= COMPOSITE_THRESHOLD) {
+            return if (preferDirect) ctx.alloc().ioBuffer(frame) else ctx.alloc().heapBuffer(frame)
+        }
+        val buffer = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE)
+        buffer.addComponent(ctx.alloc().directBuffer(COMPOSITE_CHUNK))
+        return buffer
+    }
+
     @Throws(Exception::class)
     public override fun encode(ctx: ChannelHandlerContext, message: Message, out: ByteBuf) {
+        if (message is EncodedMessage) {
+            val content = message.content()
+            out.writeInt(content.readableBytes())
+            if (out is CompositeByteBuf && out.writerIndex() == out.capacity()) {
+                // content is shared by channels of multicast, it is not copied
+                out.addComponent(true, content.retainedDuplicate())
+            } else {
+                out.writeBytes(content, content.readerIndex(), content.readableBytes())
+            }
+            return
+        }
         val sizePos = out.writerIndex()
         out.writerIndex(out.writerIndex() + 4)
-        val stream = ByteBufOutputStream(out)
-        Codec.anyCodec<Message>().write(stream, message)
+        Codec.compactAnyCodec<Message>().write(out, message)
         val size = out.writerIndex() - sizePos - 4
         out.setInt(sizePos, size)
     }
+
+    companion object {
+        const val COMPOSITE_THRESHOLD = 1 shl 20
+        const val COMPOSITE_CHUNK = 1 shl 16
+    }
 }
@@ -1,21 +1,26 @@
 package org.mitallast.queue.transport.netty
 
-import com.google.common.io.ByteStreams
+import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.MessageToMessageDecoder
 import org.mitallast.queue.common.codec.Codec
 import org.mitallast.queue.common.codec.Message
-import org.mitallast.queue.security.ECDHEncrypted
 import org.mitallast.queue.security.ECDHFlow
 
-class ECDHCodecDecoder : MessageToMessageDecoder<Message>() {
-    override fun decode(ctx: ChannelHandlerContext, msg: Message, out: MutableList<Any>) {
-        if (msg is ECDHEncrypted) {
+/**
+ * Decrypts frames passed by [CodecDecoder] and decodes messages, handshake messages are passed as is.
+ */
+class ECDHCodecDecoder : MessageToMessageDecoder<Any>() {
+    override fun decode(ctx: ChannelHandlerContext, msg: Any, out: MutableList<Any>) {
+        if (msg is ByteBuf) {
             val ecdhFlow = ctx.channel().attr(ECDHFlow.key).get()
-            val decrypted = ecdhFlow.decrypt(msg)
-            val input = ByteStreams.newDataInput(decrypted)
-            val decoded = Codec.anyCodec<Message>().read(input)
-            out.add(decoded)
+            val decrypted = ctx.alloc().directBuffer(msg.readableBytes())
+            try {
+                ecdhFlow.decrypt(msg, decrypted)
+                out.add(Codec.compactAnyCodec<Message>().read(decrypted))
+            } finally {
+                decrypted.release()
+            }
         } else {
             out.add(msg)
         }
@@ -1,29 +1,52 @@
 package org.mitallast.queue.transport.netty
 
-import com.google.common.io.ByteStreams
+import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandlerContext
 import io.netty.handler.codec.MessageToMessageEncoder
 import org.mitallast.queue.common.codec.Codec
 import org.mitallast.queue.common.codec.Message
-import org.mitallast.queue.security.ECDHEncrypted
 import org.mitallast.queue.security.ECDHFlow
 import org.mitallast.queue.security.ECDHRequest
 import org.mitallast.queue.security.ECDHResponse
 
+/**
+ * Encrypts messages to frames flagged by [CodecDecoder.ENCRYPTED], frames are passed
+ * through [CodecEncoder] as is. Handshake messages are not encrypted.
+ */
 class ECDHCodecEncoder : MessageToMessageEncoder<Message>() {
     override fun encode(ctx: ChannelHandlerContext, msg: Message, out: MutableList<Any>) {
         when (msg) {
             is ECDHRequest -> out.add(msg)
             is ECDHResponse -> out.add(msg)
-            is ECDHEncrypted -> out.add(msg)
+            is EncodedMessage -> {
+                // plaintext is shared by all channels of multicast, only encryption is per link
+                out.add(encrypt(ctx, msg.content()))
+            }
             else -> {
-                val ecdhFlow = ctx.channel().attr(ECDHFlow.key).get()
-                val output = ByteStreams.newDataOutput()
-                Codec.anyCodec<Message>().write(output, msg)
-                val data = output.toByteArray()
-                val encrypted = ecdhFlow.encrypt(data)
-                out.add(encrypted)
+                val codec = Codec.compactAnyCodec<Message>()
+                val size = codec.size(msg)
+                val plaintext = if (size < 0) ctx.alloc().directBuffer() else ctx.alloc().directBuffer(size)
+                try {
+                    codec.write(plaintext, msg)
+                    out.add(encrypt(ctx, plaintext))
+                } finally {
+                    plaintext.release()
+                }
             }
         }
     }
+
+    private fun encrypt(ctx: ChannelHandlerContext, plaintext: ByteBuf): ByteBuf {
+        val ecdhFlow = ctx.channel().attr(ECDHFlow.key).get()
+        val size = ecdhFlow.encryptedSize(plaintext.readableBytes())
+        val frame = ctx.alloc().directBuffer(Integer.BYTES + size)
+        try {
+            frame.writeInt(size or CodecDecoder.ENCRYPTED)
+            ecdhFlow.encrypt(plaintext, frame)
+        } catch (e: Throwable) {
+            frame.release()
+            throw e
+        }
+        return frame
+    }
 }
@@ -0,0 +1,37 @@
+package org.mitallast.queue.transport.netty
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.DefaultByteBufHolder
+import io.netty.buffer.PooledByteBufAllocator
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
+
+/**
+ * Message serialized once for several channels. Each channel writes retained duplicate
+ * of buffer, encoders of channel release it after write.
+ */
+class EncodedMessage(buffer: ByteBuf) : DefaultByteBufHolder(buffer), Message {
+
+    override fun replace(content: ByteBuf): EncodedMessage {
+        return EncodedMessage(content)
+    }
+
+    override fun retainedDuplicate(): EncodedMessage {
+        return replace(content().retainedDuplicate())
+    }
+
+    companion object {
+        fun encode(message: Message): EncodedMessage {
+            val codec = Codec.compactAnyCodec<Message>()
+            val size = codec.size(message)
+            val buffer = if (size < 0) PooledByteBufAllocator.DEFAULT.buffer() else PooledByteBufAllocator.DEFAULT.buffer(size)
+            try {
+                codec.write(buffer, message)
+            } catch (e: Throwable) {
+                buffer.release()
+                throw e
+            }
+            return EncodedMessage(buffer)
+        }
+    }
+}
@@ -22,6 +22,8 @@ class NettyTransportServer @Inject constructor(
 ) : NettyServer(config, provider, config.getString("transport.host"), config.getInt("transport.port")), TransportServer {
 
     private val discoveryNode: DiscoveryNode = DiscoveryNode(host, port)
+    private val security = TransportSecurity.valueOf(config.getString("transport.security").toUpperCase())
+    private val sslContext = if (security == TransportSecurity.TLS) TransportTls(config).serverContext() else null
 
     override fun localNode(): DiscoveryNode {
         return discoveryNode
@@ -34,10 +36,15 @@ class NettyTransportServer @Inject constructor(
     private inner class TransportServerInitializer : ChannelInitializer<Channel>() {
         override fun initChannel(ch: Channel) {
             val pipeline = ch.pipeline()
+            if (sslContext != null) {
+                pipeline.addLast(sslContext.newHandler(ch.alloc()))
+            }
             pipeline.addLast(CodecDecoder())
             pipeline.addLast(CodecEncoder())
-            pipeline.addLast(ECDHCodecEncoder())
-            pipeline.addLast(ECDHCodecDecoder())
+            if (security == TransportSecurity.ECDH) {
+                pipeline.addLast(ECDHCodecEncoder())
+                pipeline.addLast(ECDHCodecDecoder())
+            }
             pipeline.addLast(TransportServerHandler())
         }
     }
@@ -49,11 +56,14 @@ class NettyTransportServer @Inject constructor(
         }
 
         override fun channelRegistered(ctx: ChannelHandlerContext) {
-            ctx.channel().attr(ECDHFlow.key).set(securityService.ecdh())
+            if (security == TransportSecurity.ECDH) {
+                ctx.channel().attr(ECDHFlow.key).set(securityService.ecdh())
+            }
+            super.channelRegistered(ctx)
         }
 
         override fun channelRead0(ctx: ChannelHandlerContext, message: Message) {
-            if (message is ECDHRequest) {
+            if (message is ECDHRequest && security == TransportSecurity.ECDH) {
                 logger.info("received ecdh request start")
                 val ecdh = ctx.channel().attr(ECDHFlow.key).get()
                 ecdh.keyAgreement(message)
@@ -4,6 +4,7 @@ import com.google.common.base.Preconditions
 import com.google.inject.Inject
 import com.typesafe.config.Config
 import io.netty.channel.*
+import io.netty.util.ReferenceCountUtil
 import io.vavr.collection.HashMap
 import io.vavr.collection.Map
 import org.mitallast.queue.common.codec.Message
@@ -31,27 +32,39 @@ class NettyTransportService @Inject constructor(
 ) : NettyClientBootstrap(config, provider), TransportService {
     private val connectionLock = ReentrantLock()
     private val maxConnections = config.getInt("transport.max_connections")
+    private val security = TransportSecurity.valueOf(config.getString("transport.security").toUpperCase())
+    private val sslContext = if (security == TransportSecurity.TLS) TransportTls(config).clientContext() else null
     @Volatile private var connectedNodes: Map<DiscoveryNode, NodeChannel> = HashMap.empty()
 
     override fun channelInitializer(): ChannelInitializer<Channel> {
         return object : ChannelInitializer<Channel>() {
             override fun initChannel(ch: Channel) {
                 val pipeline = ch.pipeline()
+                if (sslContext != null) {
+                    pipeline.addLast(TransportTls.ConnectHandler(sslContext))
+                }
                 pipeline.addLast(CodecDecoder())
                 pipeline.addLast(CodecEncoder())
-                pipeline.addLast(ECDHCodecEncoder())
-                pipeline.addLast(ECDHCodecDecoder())
+                if (security == TransportSecurity.ECDH) {
+                    pipeline.addLast(ECDHCodecEncoder())
+                    pipeline.addLast(ECDHCodecDecoder())
+                }
                 pipeline.addLast(object : SimpleChannelInboundHandler<Message>(false) {
 
                     override fun channelRegistered(ctx: ChannelHandlerContext) {
-                        logger.info("start ecdh")
-                        ctx.channel().attr(ECDHFlow.key).set(securityService.ecdh())
+                        if (security == TransportSecurity.ECDH) {
+                            logger.info("start ecdh")
+                            ctx.channel().attr(ECDHFlow.key).set(securityService.ecdh())
+                        }
+                        super.channelRegistered(ctx)
                     }
 
                     override fun channelActive(ctx: ChannelHandlerContext) {
-                        logger.info("send ecdh request start")
                         val ecdh = ctx.channel().attr(ECDHFlow.key).get()
-                        ctx.writeAndFlush(ecdh.requestStart())
+                        if (ecdh != null) {
+                            logger.info("send ecdh request start")
+                            ctx.writeAndFlush(ecdh.requestStart())
+                        }
                         super.channelActive(ctx)
                     }
 
@@ -127,6 +140,28 @@ class NettyTransportService @Inject constructor(
 
     }
 
+    /**
+     * Message is serialized once into pooled buffer, each node channel writes retained duplicate.
+     */
+    override fun send(nodes: Iterable<DiscoveryNode>, message: Message) {
+        var encoded: EncodedMessage? = null
+        try {
+            for (node in nodes) {
+                try {
+                    connectToNode(node)
+                    if (encoded == null) {
+                        encoded = EncodedMessage.encode(message)
+                    }
+                    channel(node).send(encoded.retainedDuplicate())
+                } catch (e: Exception) {
+                    logger.error("error send message", e)
+                }
+            }
+        } finally {
+            encoded?.release()
+        }
+    }
+
     private inner class NodeChannel constructor(private val node: DiscoveryNode) : TransportChannel, Closeable {
         private val channelCounter = AtomicLong()
         private val reconnectScheduled = AtomicBoolean()
@@ -178,9 +213,15 @@ class NettyTransportService @Inject constructor(
         }
 
         override fun send(message: Message) {
-            val channel = channel()
+            val channel = try {
+                channel()
+            } catch (e: Exception) {
+                ReferenceCountUtil.release(message)
+                throw e
+            }
+            // tls handler buffers writes until handshake completes
             val ecdh = channel.attr(ECDHFlow.key).get()
-            if (ecdh.isAgreement) {
+            if (ecdh == null || ecdh.isAgreement) {
                 channel.writeAndFlush(message, channel.voidPromise())
             } else {
                 ecdh.agreementFuture().whenComplete { _, _ -> channel.writeAndFlush(message, channel.voidPromise()) }
@@ -0,0 +1,19 @@
+package org.mitallast.queue.transport.netty
+
+/**
+ * Security of transport channels, configured by `transport.security`.
+ */
+enum class TransportSecurity {
+    /**
+     * Key agreement authenticated by `security.rsa` keys, frames encrypted by AES-GCM.
+     */
+    ECDH,
+    /**
+     * TLS with mutual authentication on OpenSSL engine, see [TransportTls].
+     */
+    TLS,
+    /**
+     * No encryption and authentication, for trusted networks only.
+     */
+    PLAINTEXT
+}
@@ -0,0 +1,68 @@
+package org.mitallast.queue.transport.netty
+
+import com.typesafe.config.Config
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import io.netty.handler.ssl.*
+import org.conscrypt.Conscrypt
+import java.io.File
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.util.concurrent.TimeUnit
+
+/**
+ * TLS contexts of transport built on Conscrypt provider, so handshake and AES-GCM record
+ * encryption run in BoringSSL with AES-NI instead of JDK implementation.
+ *
+ * Both sides present certificate signed by trusted certificates. Sessions are cached by
+ * peer host and port, reconnect to the same node resumes session without key exchange.
+ */
+class TransportTls(config: Config) {
+    private val certChain = File(config.getString("transport.tls.cert_chain"))
+    private val key = File(config.getString("transport.tls.key"))
+    private val trust = File(config.getString("transport.tls.trust"))
+    private val ciphers = config.getStringList("transport.tls.ciphers")
+    private val sessionCacheSize = config.getLong("transport.tls.session_cache_size")
+    private val sessionTimeout = config.getDuration("transport.tls.session_timeout", TimeUnit.SECONDS)
+
+    fun serverContext(): SslContext {
+        return SslContextBuilder.forServer(certChain, key)
+            .sslProvider(SslProvider.JDK)
+            .sslContextProvider(Conscrypt.newProvider())
+            .trustManager(trust)
+            .clientAuth(ClientAuth.REQUIRE)
+            .ciphers(ciphers, SupportedCipherSuiteFilter.INSTANCE)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeout)
+            .build()
+    }
+
+    fun clientContext(): SslContext {
+        return SslContextBuilder.forClient()
+            .sslProvider(SslProvider.JDK)
+            .sslContextProvider(Conscrypt.newProvider())
+            .keyManager(certChain, key)
+            .trustManager(trust)
+            .ciphers(ciphers, SupportedCipherSuiteFilter.INSTANCE)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeout)
+            .build()
+    }
+
+    /**
+     * Client channel is initialized before address is known, ssl handler is added on connect
+     * with peer host and port to find cached session.
+     */
+    class ConnectHandler(private val context: SslContext) : ChannelOutboundHandlerAdapter() {
+        override fun connect(ctx: ChannelHandlerContext, remoteAddress: SocketAddress, localAddress: SocketAddress?, promise: ChannelPromise) {
+            val handler = if (remoteAddress is InetSocketAddress) {
+                context.newHandler(ctx.alloc(), remoteAddress.hostString, remoteAddress.port)
+            } else {
+                context.newHandler(ctx.alloc())
+            }
+            ctx.pipeline().replace(this, "ssl", handler)
+            ctx.connect(remoteAddress, localAddress, promise)
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.mitallast.queue.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vavr.collection.Vector;
+import io.vavr.control.Option;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.codec.Codec;
+import org.mitallast.queue.common.codec.VarInt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+public class CodecTest {
+
+    private static final Codec<Vector<Option<String>>> strings =
+        Codec.Companion.vectorCodec(Codec.Companion.optionCodec(Codec.Companion.stringCodec()));
+
+    @Test
+    public void testBufferEncodingEqualsStream() throws Exception {
+        Vector<Option<String>> expected = Vector.of(
+            Option.some("ascii"),
+            Option.none(),
+            Option.some(""),
+            Option.some("nul\u0000"),
+            Option.some("юникод")
+        );
+
+        ByteBuf stream = Unpooled.buffer();
+        strings.write((DataOutput) new ByteBufOutputStream(stream), expected);
+        ByteBuf buffer = Unpooled.buffer();
+        strings.write(buffer, expected);
+        Assert.assertEquals(stream, buffer);
+
+        Assert.assertEquals(expected, strings.read((DataInput) new ByteBufInputStream(buffer.duplicate())));
+        Assert.assertEquals(expected, strings.read(stream));
+        Assert.assertFalse(stream.isReadable());
+
+        stream.release();
+        buffer.release();
+    }
+
+    @Test
+    public void testSizeEqualsEncoded() throws Exception {
+        Vector<Option<String>> value = Vector.of(Option.some("ascii"), Option.none(), Option.some("nul\u0000"), Option.some("юникод €"));
+        ByteBuf buffer = Unpooled.buffer();
+        strings.write(buffer, value);
+        Assert.assertEquals(buffer.readableBytes(), strings.size(value));
+        buffer.clear();
+
+        Codec.Companion.zigZagLongCodec().write(buffer, -300L);
+        Assert.assertEquals(buffer.readableBytes(), Codec.Companion.zigZagLongCodec().size(-300L));
+        buffer.release();
+    }
+
+    @Test
+    public void testVarInt() throws Exception {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 5, 10, 10, 9};
+        ByteBuf buffer = Unpooled.buffer();
+        for (int i = 0; i < values.length; i++) {
+            Codec.Companion.varLongCodec().write(buffer, values[i]);
+            Assert.assertEquals(sizes[i], buffer.readableBytes());
+            Assert.assertEquals(sizes[i], VarInt.INSTANCE.size(values[i]));
+            Assert.assertEquals(values[i], (long) Codec.Companion.varLongCodec().read(buffer));
+
+            Codec.Companion.zigZagLongCodec().write((DataOutput) new ByteBufOutputStream(buffer), values[i]);
+            Assert.assertEquals(values[i], (long) Codec.Companion.zigZagLongCodec().read((DataInput) new ByteBufInputStream(buffer)));
+            buffer.clear();
+        }
+
+        int[] ints = {0, 1, -1, 300, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int value : ints) {
+            Codec.Companion.varIntCodec().write(buffer, value);
+            Assert.assertEquals(value, (int) Codec.Companion.varIntCodec().read(buffer));
+            Codec.Companion.zigZagIntCodec().write(buffer, value);
+            Assert.assertEquals(value, (int) Codec.Companion.zigZagIntCodec().read(buffer));
+        }
+
+        // small negative values are short in zigzag encoding
+        Codec.Companion.zigZagLongCodec().write(buffer, -64L);
+        Assert.assertEquals(1, buffer.readableBytes());
+        buffer.release();
+    }
+
+    @Test
+    public void testByteBufReadIsRetainedSlice() throws Exception {
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeInt(4);
+        buffer.writeInt(42);
+
+        ByteBuf payload = Codec.Companion.byteBufCodec().read(buffer);
+        Assert.assertEquals(42, payload.getInt(0));
+        Assert.assertEquals(2, buffer.refCnt());
+
+        payload.release();
+        buffer.release();
+        Assert.assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void testCompositeWriteAddsComponents() throws Exception {
+        ByteBuf payload = Unpooled.buffer().writeLong(42);
+        byte[] bytes = new byte[]{1, 2, 3};
+
+        CompositeByteBuf composite = Unpooled.compositeBuffer();
+        composite.addComponent(true, Unpooled.buffer(64));
+        Codec.Companion.byteBufCodec().write(composite, payload);
+        Codec.Companion.bytesCodec().write(composite, bytes);
+        Assert.assertFalse(payload.isReadable());
+        Assert.assertEquals(2, payload.refCnt());
+
+        ByteBuf expected = Unpooled.buffer();
+        Codec.Companion.byteBufCodec().write((DataOutput) new ByteBufOutputStream(expected), payload.duplicate().readerIndex(0));
+        Codec.Companion.bytesCodec().write((DataOutput) new ByteBufOutputStream(expected), bytes);
+        Assert.assertEquals(expected, composite);
+
+        composite.release();
+        expected.release();
+        payload.release();
+        Assert.assertEquals(0, payload.refCnt());
+    }
+}
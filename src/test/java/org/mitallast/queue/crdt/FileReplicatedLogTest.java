@@ -14,6 +14,11 @@ import org.mitallast.queue.common.file.FileService;
 import org.mitallast.queue.crdt.log.FileReplicatedLog;
 import org.mitallast.queue.crdt.log.LogEntry;
 
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
 public class FileReplicatedLogTest extends BaseTest {
 
     static {
@@ -78,6 +83,72 @@ public class FileReplicatedLogTest extends BaseTest {
         }
     }
 
+    @Test
+    public void recoverTornTail() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            log.append(i, new TestLong(i));
+        }
+        log.close();
+
+        FileService fileService = new FileService(config);
+        File segment = fileService.resource("crdt/0/log/0", "event.0.log");
+        long valid = segment.length();
+        try (FileOutputStream output = new FileOutputStream(segment, true)) {
+            output.write(new byte[]{0, 0, 0, 64, 1, 2, 3, 4, 0, 0, 0, 1, 42});
+        }
+
+        FileReplicatedLog reopened = new FileReplicatedLog(config, fileService, logEntry -> false, 0, 0);
+        Assert.assertEquals(valid, segment.length());
+        Assert.assertEquals(100, reopened.entriesFrom(0).size());
+        reopened.append(100, new TestLong(100));
+        Assert.assertEquals(101, reopened.entriesFrom(0).size());
+        reopened.close();
+    }
+
+    @Test
+    public void migrateLegacySegment() throws Exception {
+        log.close();
+        FileService fileService = new FileService(config);
+        File segment = fileService.resource("crdt/0/log/0", "event.0.log");
+        // previous versions wrote unframed records in fixed width encoding
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(segment))) {
+            for (int i = 0; i < 10; i++) {
+                LogEntry.Companion.getCodec().write((DataOutput) output, new LogEntry(i + 1, i, new TestLong(i)));
+            }
+        }
+
+        FileReplicatedLog reopened = new FileReplicatedLog(config, fileService, logEntry -> false, 0, 0);
+        Vector<LogEntry> entries = reopened.entriesFrom(0);
+        Assert.assertEquals(10, entries.size());
+        Assert.assertEquals(10, entries.last().getIndex());
+        Assert.assertEquals(9, ((TestLong) entries.last().getEvent()).value());
+        Assert.assertTrue(reopened.append(10, new TestLong(10)).getIndex() > 10);
+        reopened.close();
+
+        FileReplicatedLog framed = new FileReplicatedLog(config, fileService, logEntry -> false, 0, 0);
+        Assert.assertEquals(11, framed.entriesFrom(0).size());
+        framed.close();
+    }
+
+    @Test
+    public void unreadableLegacySegment() throws Exception {
+        log.close();
+        FileService fileService = new FileService(config);
+        File segment = fileService.resource("crdt/0/log/0", "event.0.log");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(segment))) {
+            LogEntry.Companion.getCodec().write((DataOutput) output, new LogEntry(1, 0, new TestLong(0)));
+            output.writeLong(2);
+        }
+        long length = segment.length();
+
+        try {
+            new FileReplicatedLog(config, fileService, logEntry -> false, 0, 0);
+            Assert.fail("unreadable legacy segment should not be opened");
+        } catch (Exception expected) {
+        }
+        Assert.assertEquals(length, segment.length());
+    }
+
     public static class TestLong implements Message {
         public static final Codec<TestLong> codec = Codec.Companion.of(
             TestLong::new,
@@ -0,0 +1,82 @@
+package org.mitallast.queue.crdt.routing.fsm;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.vavr.collection.HashMap;
+import io.vavr.control.Option;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.codec.Message;
+import org.mitallast.queue.common.events.EventBus;
+import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.crdt.routing.RoutingTable;
+import org.mitallast.queue.crdt.routing.event.RoutingTableChanged;
+import org.mitallast.queue.raft.resource.ResourceRegistry;
+import org.mockito.ArgumentCaptor;
+
+import java.io.DataInputStream;
+import java.io.File;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class RoutingTableFSMTest extends BaseTest {
+
+    private EventBus eventBus;
+    private FileService fileService;
+    private ResourceRegistry registry;
+    private RoutingTableFSM fsm;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "node.path", testFolder.getRoot().getAbsolutePath(),
+            "transport.port", 8801
+        ).toJavaMap()).withFallback(ConfigFactory.defaultReference());
+        eventBus = mock(EventBus.class);
+        fileService = new FileService(config);
+        registry = new ResourceRegistry();
+        fsm = new RoutingTableFSM(config, registry, eventBus, fileService);
+        file = fileService.resource("crdt", "routing.bin");
+    }
+
+    @Test
+    public void testFlushRunOnce() throws Exception {
+        for (long index = 1; index <= 10; index++) {
+            Option<Message> response = registry.apply(index, new AddResource(index, ResourceType.GCounter));
+            Assert.assertEquals(Option.some(new AddResourceResponse(ResourceType.GCounter, index, true)), response);
+        }
+        // state is updated in memory only until run is flushed
+        for (long id = 1; id <= 10; id++) {
+            Assert.assertTrue(fsm.get().hasResource(id));
+        }
+        Assert.assertEquals(0, file.length());
+        verify(eventBus, never()).trigger(any());
+
+        registry.flush(10);
+        ArgumentCaptor<RoutingTableChanged> captor = ArgumentCaptor.forClass(RoutingTableChanged.class);
+        verify(eventBus, times(1)).trigger(captor.capture());
+        Assert.assertEquals(10, captor.getValue().getIndex());
+        Assert.assertSame(fsm.get(), captor.getValue().getRoutingTable());
+        try (DataInputStream stream = fileService.input(file)) {
+            RoutingTable persisted = RoutingTable.Companion.getCodec().read(stream);
+            for (long id = 1; id <= 10; id++) {
+                Assert.assertTrue(persisted.hasResource(id));
+            }
+        }
+
+        // run without changes is not written and not published
+        Assert.assertTrue(file.delete());
+        registry.apply(11, new AddResource(1, ResourceType.GCounter));
+        registry.flush(11);
+        Assert.assertFalse(file.exists());
+        verify(eventBus, times(1)).trigger(any());
+    }
+}
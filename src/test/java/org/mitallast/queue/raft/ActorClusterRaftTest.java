@@ -0,0 +1,16 @@
+package org.mitallast.queue.raft;
+
+import org.mitallast.queue.common.ConfigBuilder;
+
+import java.io.IOException;
+
+/**
+ * Runs cluster tests and benchmarks with raft state machine on single thread with mailbox.
+ */
+public class ActorClusterRaftTest extends ClusterRaftTest {
+
+    @Override
+    protected ConfigBuilder config() throws IOException {
+        return super.config().with("raft.execution", "actor");
+    }
+}
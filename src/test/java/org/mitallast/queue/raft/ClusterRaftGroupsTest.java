@@ -0,0 +1,87 @@
+package org.mitallast.queue.raft;
+
+import io.vavr.collection.Vector;
+import io.vavr.control.Option;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseClusterTest;
+import org.mitallast.queue.common.ConfigBuilder;
+import org.mitallast.queue.common.codec.Codec;
+import org.mitallast.queue.common.codec.Message;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.mitallast.queue.raft.RaftState.Leader;
+
+public class ClusterRaftGroupsTest extends BaseClusterTest {
+
+    static {
+        Codec.Companion.register(900200, GroupCommand.class, GroupCommand.codec);
+    }
+
+    private Vector<RaftGroups> groups;
+
+    @Override
+    protected ConfigBuilder config() throws IOException {
+        return super.config()
+            .with("crdt.enabled", false)
+            .with("raft.groups", Arrays.asList("a", "b"));
+    }
+
+    @Before
+    public void setUpNodes() throws Exception {
+        createLeader();
+        createFollower();
+        createFollower();
+        groups = nodes.map(n -> n.injector().getInstance(RaftGroups.class));
+        for (RaftGroups node : groups) {
+            for (RaftGroups.RaftGroup group : node.groups().values()) {
+                group.getRegistry().register(GroupCommand.class, (index, command) ->
+                    Option.some(new GroupCommand(group.getGroup() + ":" + command.value)));
+            }
+        }
+    }
+
+    private Raft awaitGroupLeader(String group) throws Exception {
+        Vector<Raft> raft = groups.map(g -> g.group(group).getRaft());
+        while (true) {
+            Option<Raft> leader = raft.find(r -> r.currentState() == Leader);
+            if (leader.isDefined() && raft.forAll(r -> r.currentMeta().getConfig().getMembers().size() == raft.size())) {
+                return leader.get();
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testGroupsCommitIndependently() throws Exception {
+        awaitElection();
+        Raft leaderA = awaitGroupLeader("a");
+        Raft leaderB = awaitGroupLeader("b");
+
+        Message resultA = leaderA.command(new GroupCommand("x")).get();
+        Message resultB = leaderB.command(new GroupCommand("y")).get();
+        Assert.assertEquals("a:x", ((GroupCommand) resultA).value);
+        Assert.assertEquals("b:y", ((GroupCommand) resultB).value);
+    }
+
+    public static class GroupCommand implements Message {
+        public static final Codec<GroupCommand> codec = Codec.Companion.of(
+            GroupCommand::new,
+            GroupCommand::value,
+            Codec.Companion.stringCodec()
+        );
+
+        private final String value;
+
+        public GroupCommand(String value) {
+            this.value = value;
+        }
+
+        public String value() {
+            return value;
+        }
+    }
+}
@@ -144,6 +144,34 @@ public class ClusterRaftTest extends BaseClusterTest {
         }
     }
 
+    @Test
+    public void benchmarkConcurrent() throws Exception {
+        awaitElection();
+        int leader = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (raft.get(i).currentState() == Leader) {
+                leader = i;
+            }
+        }
+        final RegisterClient leaderClient = client.get(leader);
+
+        for (int t = 0; t < 3; t++) {
+            final int total = 10000;
+            final long start = System.currentTimeMillis();
+            executeConcurrent(() -> {
+                final ArrayList<Future<String>> futures = new ArrayList<>(total);
+                for (int i = 0; i < total; i++) {
+                    futures.add(leaderClient.set("hello world " + i));
+                }
+                for (int i = 0; i < total; i++) {
+                    Assert.assertTrue(futures.get(i).get().startsWith("hello world"));
+                }
+            });
+            final long end = System.currentTimeMillis();
+            printQps("raft command concurrent", total * concurrency(), start, end);
+        }
+    }
+
     @Test
     public void benchmarkAsynchronousByte() throws Exception {
         awaitElection();
@@ -0,0 +1,168 @@
+package org.mitallast.queue.raft;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function0;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.raft.cluster.ClusterDiscovery;
+import org.mitallast.queue.raft.cluster.StableClusterConfiguration;
+import org.mitallast.queue.raft.persistent.FilePersistentService;
+import org.mitallast.queue.raft.protocol.GroupMessage;
+import org.mitallast.queue.raft.protocol.GroupMessages;
+import org.mitallast.queue.raft.protocol.LogEntry;
+import org.mitallast.queue.raft.protocol.VoteCandidate;
+import org.mitallast.queue.transport.DiscoveryNode;
+import org.mitallast.queue.transport.TransportController;
+import org.mitallast.queue.transport.TransportService;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RaftGroupsTest extends BaseTest {
+
+    @Mock
+    private TransportService transportService;
+
+    @Mock
+    private ClusterDiscovery clusterDiscovery;
+
+    private final DiscoveryNode node1 = new DiscoveryNode("localhost", 8801);
+    private final DiscoveryNode node2 = new DiscoveryNode("localhost", 8802);
+    private final DiscoveryNode node3 = new DiscoveryNode("localhost", 8803);
+
+    private final TransportController transportController = new TransportController();
+    private final ExecutorRaftContext context = new ExecutorRaftContext();
+    private RaftGroups groups;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(clusterDiscovery.getSelf()).thenReturn(node1);
+        when(clusterDiscovery.getDiscoveryNodes()).thenReturn(HashSet.empty());
+
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "node.path", testFolder.getRoot().getAbsolutePath(),
+            "transport.port", 8801,
+            "raft.enabled", true,
+            "raft.heartbeat", "10ms",
+            "raft.execution", "actor",
+            "raft.groups", Arrays.asList("a", "b")
+        ).toJavaMap()).withFallback(ConfigFactory.defaultReference());
+        FileService fileService = new FileService(config);
+        for (String group : Arrays.asList("a", "b")) {
+            new FilePersistentService(config, fileService, "raft-groups/" + group).openLog()
+                .append(new LogEntry(1, 1, 0, new StableClusterConfiguration(node1, node2, node3)))
+                .close();
+        }
+        groups = new RaftGroups(config, transportService, transportController, clusterDiscovery, fileService, context);
+        groups.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        groups.stop();
+        context.close();
+    }
+
+    @Test
+    public void testHeartbeatsCoalescedInActorMode() throws Exception {
+        for (String group : Arrays.asList("a", "b")) {
+            Raft raft = groups.group(group).getRaft();
+            context.runTimer(group + "/" + RaftContext.Companion.getELECTION_TIMEOUT());
+            await(() -> raft.currentState() == RaftState.Candidate);
+            long term = raft.currentMeta().getCurrentTerm();
+            transportController.dispatch(new GroupMessage(group, new VoteCandidate(node2, term)));
+            await(() -> raft.currentState() == RaftState.Leader);
+        }
+        // heartbeat round resends entries to followers without response
+        Thread.sleep(50);
+        context.awaitIdle("a/" + RaftContext.Companion.getACTOR());
+        context.awaitIdle("b/" + RaftContext.Companion.getACTOR());
+        clearInvocations(transportService);
+
+        context.runTimer(RaftGroups.Companion.getGROUP_HEARTBEAT());
+
+        verify(transportService, timeout(10000)).send(eq(node2), any(GroupMessages.class));
+        verify(transportService, timeout(10000)).send(eq(node3), any(GroupMessages.class));
+        context.awaitIdle("a/" + RaftContext.Companion.getACTOR());
+        context.awaitIdle("b/" + RaftContext.Companion.getACTOR());
+        verify(transportService, never()).send(eq(node2), any(GroupMessage.class));
+        verify(transportService, never()).send(eq(node3), any(GroupMessage.class));
+    }
+
+    private void await(BooleanSupplier condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("condition is not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Timers are run by test, submitted tasks run on named single thread executors as in node context.
+     */
+    private static class ExecutorRaftContext implements RaftContext {
+        private final ConcurrentHashMap<String, Function0<Unit>> timers = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, ExecutorService> executors = new ConcurrentHashMap<>();
+
+        @Override
+        public void setTimer(String name, long delayMs, Function0<Unit> task) {
+            timers.put(name, task);
+        }
+
+        @Override
+        public void startTimer(String name, long delayMs, long periodMs, Function0<Unit> task) {
+            timers.put(name, task);
+        }
+
+        @Override
+        public void cancelTimer(String name) {
+            timers.remove(name);
+        }
+
+        @Override
+        public void submit(String executor, Function0<Unit> task) {
+            executors.computeIfAbsent(executor, name -> Executors.newSingleThreadExecutor()).execute(task::invoke);
+        }
+
+        void runTimer(String name) {
+            timers.get(name).invoke();
+        }
+
+        void awaitIdle(String executor) throws Exception {
+            CountDownLatch latch = new CountDownLatch(1);
+            submit(executor, () -> {
+                latch.countDown();
+                return Unit.INSTANCE;
+            });
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+
+        void close() {
+            executors.values().forEach(ExecutorService::shutdownNow);
+        }
+    }
+}
@@ -9,7 +9,10 @@ import com.typesafe.config.ConfigFactory;
 import io.vavr.collection.HashMap;
 import io.vavr.collection.HashSet;
 import io.vavr.collection.Vector;
+import io.vavr.concurrent.Future;
 import io.vavr.control.Option;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function0;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -25,6 +28,7 @@ import org.mitallast.queue.raft.cluster.ClusterConfiguration;
 import org.mitallast.queue.raft.cluster.ClusterDiscovery;
 import org.mitallast.queue.raft.cluster.StableClusterConfiguration;
 import org.mitallast.queue.raft.persistent.FilePersistentService;
+import org.mitallast.queue.raft.persistent.LogSyncStats;
 import org.mitallast.queue.raft.persistent.PersistentService;
 import org.mitallast.queue.raft.persistent.ReplicatedLog;
 import org.mitallast.queue.raft.protocol.*;
@@ -32,12 +36,25 @@ import org.mitallast.queue.raft.resource.ResourceRegistry;
 import org.mitallast.queue.transport.DiscoveryNode;
 import org.mitallast.queue.transport.TransportController;
 import org.mitallast.queue.transport.TransportService;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.mitallast.queue.raft.RaftState.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -121,6 +138,12 @@ public class RaftTest extends BaseTest {
             .commit(1);
     }
 
+    private <T extends Message> Vector<T> sent(DiscoveryNode node, Class<T> type) {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(transportService, atLeastOnce()).send(eq(node), captor.capture());
+        return Vector.ofAll(captor.getAllValues()).filter(type::isInstance).map(type::cast);
+    }
+
     private void override(String key, String value) {
         config = ConfigFactory.parseMap(HashMap.of(key, value).toJavaMap()).withFallback(config);
     }
@@ -199,6 +222,51 @@ public class RaftTest extends BaseTest {
         verify(transportService).send(node2, new ClientMessage(Noop.Companion.getINSTANCE(), 0));
     }
 
+    @Test
+    public void testFollowerSendClientMessagesToRecentLeader() throws Exception {
+        appendClusterConf();
+        start();
+        expectFollower();
+        raft.apply(appendEntries(node2, 1, 1, 1, 1));
+
+        ClientMessages batch = new ClientMessages(Vector.of(
+            new ClientMessage(Noop.Companion.getINSTANCE(), 0),
+            new ClientMessage(Noop.Companion.getINSTANCE(), 0)
+        ));
+        raft.apply(batch);
+        Assert.assertEquals(Vector.empty(), raft.currentStashed());
+        verify(transportService).send(node2, batch);
+    }
+
+    @Test
+    public void testFollowerReadIndexFromLeader() throws Exception {
+        appendClusterConf();
+        start();
+        raft.apply(appendEntries(node2, 1, 1, 1, 1));
+
+        Future<Message> read = raft.read(TestFSMMessage.INSTANCE);
+        verify(transportService).send(eq(node2), any(ReadIndex.class));
+        ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+        verify(transportService, atLeastOnce()).send(eq(node2), sent.capture());
+        ReadIndex request = (ReadIndex) Vector.ofAll(sent.getAllValues())
+            .find(message -> message instanceof ReadIndex)
+            .get();
+        Assert.assertEquals(node1, request.getMember());
+        Assert.assertFalse(read.isCompleted());
+
+        raft.apply(new ReadIndexResponse(request.getId(), 1));
+        Assert.assertTrue(read.isCompleted());
+        Assert.assertEquals(TestFSMMessage.INSTANCE, read.get());
+    }
+
+    @Test
+    public void testFollowerRejectReadWithoutLeader() throws Exception {
+        appendClusterConf();
+        start();
+        Future<Message> read = raft.read(TestFSMMessage.INSTANCE);
+        Assert.assertTrue(read.isFailure());
+    }
+
     @Test
     public void testFollowerElectionTimeout() throws Exception {
         appendClusterConf();
@@ -286,6 +354,26 @@ public class RaftTest extends BaseTest {
         Assert.assertFalse(raft.replicatedLog().contains(logEntry));
     }
 
+    @Test
+    public void testFollowerRejectAppendEntriesWithConflictTerm() throws Exception {
+        override("raft.bootstrap", "false");
+        appendClusterConf();
+        log = log.append(noop(2, 2)).append(noop(2, 3));
+        start();
+        raft.apply(appendEntries(node2, 3, 3, 3, 1, noop(3, 4)));
+        verify(transportService).send(node2, new AppendRejected(node1, 3, 3, 3, 2, 2));
+    }
+
+    @Test
+    public void testFollowerRejectAppendEntriesWithConflictIndexIfLogShorter() throws Exception {
+        override("raft.bootstrap", "false");
+        appendClusterConf();
+        log = log.append(noop(2, 2)).append(noop(2, 3));
+        start();
+        raft.apply(appendEntries(node2, 3, 3, 10, 1, noop(3, 11)));
+        verify(transportService).send(node2, new AppendRejected(node1, 3, 10, 3, 0, 4));
+    }
+
     @Test
     public void testFollowerAppendEntriesIfLogEmpty() throws Exception {
         override("raft.bootstrap", "false");
@@ -295,6 +383,32 @@ public class RaftTest extends BaseTest {
         Assert.assertTrue(raft.replicatedLog().contains(logEntry));
     }
 
+    @Test
+    public void testFollowerCommitOnlyMatchedEntries() throws Exception {
+        override("raft.bootstrap", "false");
+        appendClusterConf();
+        // uncommitted entries of old term, not verified by leader yet
+        log = log.append(noop(1, 2)).append(noop(1, 3));
+        start();
+        raft.apply(appendEntries(node2, 2, 1, 1, 3));
+        Assert.assertEquals(1, raft.replicatedLog().committedIndex());
+    }
+
+    @Test
+    public void testFollowerAcceptAppendEntriesBelowCommitIndex() throws Exception {
+        override("raft.bootstrap", "false");
+        appendClusterConf();
+        start();
+        raft.apply(appendEntries(node2, 2, 1, 1, 1, noop(2, 2), noop(2, 3)));
+        raft.apply(appendEntries(node2, 2, 2, 3, 3));
+        Assert.assertEquals(3, raft.replicatedLog().committedIndex());
+
+        // delayed request of pipelined window is matched at commit index
+        raft.apply(appendEntries(node2, 2, 1, 1, 1, noop(2, 2)));
+        verify(transportService, times(3)).send(node2, new AppendSuccessful(node1, 2, 3));
+        verify(transportService, never()).send(eq(node2), any(AppendRejected.class));
+    }
+
     @Test
     public void testFollowerBecameLeaderOnSelfElection() throws Exception {
         appendClustergetSelf();
@@ -315,7 +429,7 @@ public class RaftTest extends BaseTest {
     public void testFollowerIgnoreAppendRejected() throws Exception {
         appendClustergetSelf();
         start();
-        raft.apply(new AppendRejected(node2, 1, 1));
+        raft.apply(new AppendRejected(node2, 1, 1, 1));
         expectFollower();
     }
 
@@ -385,6 +499,21 @@ public class RaftTest extends BaseTest {
         verify(transportService).send(node4, new InstallSnapshotSuccessful(node1, 1, 1));
     }
 
+    @Test
+    public void testFollowerFlushResourcesOnceOnInstallSnapshot() throws Exception {
+        appendClustergetSelf();
+        start();
+        ClusterConfiguration conf = new StableClusterConfiguration(node1);
+        RaftSnapshotMetadata metadata = new RaftSnapshotMetadata(1, 1, conf);
+        RaftSnapshot snapshot = new RaftSnapshot(metadata, Vector.of(TestFSMMessage.INSTANCE, TestFSMMessage.INSTANCE));
+        raft.apply(new InstallSnapshot(node4, 1, snapshot));
+
+        InOrder order = inOrder(registry);
+        order.verify(registry, times(2)).apply(1, TestFSMMessage.INSTANCE);
+        order.verify(registry).flush(1);
+        verify(registry, times(1)).flush(anyLong());
+    }
+
     @Test
     public void testFollowerRejectAddServer() throws Exception {
         appendClustergetSelf();
@@ -420,8 +549,7 @@ public class RaftTest extends BaseTest {
         start();
         electionTimeout();
         expectCandidate();
-        verify(transportService).send(node2, new RequestVote(2, node1, 1, 1));
-        verify(transportService).send(node3, new RequestVote(2, node1, 1, 1));
+        verify(transportService).send(HashSet.of(node2, node3), new RequestVote(2, node1, 1, 1));
 
         raft.apply(new RemoveServer(node3));
         verify(transportService).send(node3, new RemoveServerResponse(RemoveServerResponse.Status.NOT_LEADER, Option
@@ -702,8 +830,7 @@ public class RaftTest extends BaseTest {
         start();
         electionTimeout();
         expectCandidate();
-        verify(transportService).send(node2, new RequestVote(2, node1, 1, 1));
-        verify(transportService).send(node3, new RequestVote(2, node1, 1, 1));
+        verify(transportService).send(HashSet.of(node2, node3), new RequestVote(2, node1, 1, 1));
         voteCandidate(node2, 2);
         voteCandidate(node3, 2);
         expectLeader();
@@ -732,6 +859,24 @@ public class RaftTest extends BaseTest {
         verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
     }
 
+    @Test
+    public void testLeaderCountsItselfAfterDurable() throws Exception {
+        // log of fsync durability invokes sync listeners after group commit
+        HeldSyncPersistentService held = new HeldSyncPersistentService(persistentService);
+        persistentService = held;
+        becameLeader();
+        // entries are sent to followers while local sync is in progress
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
+        long committed = raft.replicatedLog().committedIndex();
+
+        // one follower is not a majority of three until leader entry is durable
+        appendSuccessful(node2, 2, 2);
+        Assert.assertEquals(committed, raft.replicatedLog().committedIndex());
+
+        held.log.release();
+        Assert.assertEquals(2, raft.replicatedLog().committedIndex());
+    }
+
     @Test
     public void testLeaderSendHeartbeatOnSendHeartbeat() throws Exception {
         becameLeader();
@@ -747,6 +892,193 @@ public class RaftTest extends BaseTest {
         verify(transportService).send(node3, appendEntries(node1, 2, 2, 2, 2, noop(2, 3)));
     }
 
+    @Test
+    public void testLeaderPipelineAppendEntries() throws Exception {
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3)));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 3, 2, noop(2, 4)));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 4, 2, noop(2, 5)));
+    }
+
+    @Test
+    public void testLeaderPipelineFallbackOnAppendRejected() throws Exception {
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new AppendRejected(node2, 2, 2, 2));
+
+        // next index is not moved below acknowledged entries
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3), noop(2, 4)));
+    }
+
+    @Test
+    public void testLeaderLimitInflightAppendEntries() throws Exception {
+        override("raft.max-inflight", "1");
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3)));
+        verify(transportService, never()).send(node2, appendEntries(node1, 2, 2, 3, 2, noop(2, 4)));
+
+        raft.apply(new AppendSuccessful(node2, 2, 3));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 3, 2, noop(2, 4)));
+    }
+
+    @Test
+    public void testLeaderAppendClientMessagesInOneBatch() throws Exception {
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        raft.apply(new ClientMessages(Vector.of(
+            new ClientMessage(Noop.Companion.getINSTANCE(), 0),
+            new ClientMessage(Noop.Companion.getINSTANCE(), 0),
+            new ClientMessage(Noop.Companion.getINSTANCE(), 0)
+        )));
+
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3), noop(2, 4), noop(2, 5)));
+        verify(transportService).send(node3, appendEntries(node1, 2, 2, 2, 2, noop(2, 3), noop(2, 4), noop(2, 5)));
+    }
+
+    @Test
+    public void testLeaderFlushCommandBatchAfterLinger() throws Exception {
+        override("raft.batch.linger", "10ms");
+        becameLeader();
+        raft.command(Noop.Companion.getINSTANCE());
+        raft.command(Noop.Companion.getINSTANCE());
+        Assert.assertEquals(2, raft.replicatedLog().lastIndex());
+
+        context.runTimer(RaftContext.Companion.getCLIENT_BATCH());
+        Assert.assertEquals(4, raft.replicatedLog().lastIndex());
+    }
+
+    @Test
+    public void testLeaderFlushFullCommandBatch() throws Exception {
+        override("raft.batch.linger", "10ms");
+        override("raft.batch.size", "2");
+        becameLeader();
+        raft.command(Noop.Companion.getINSTANCE());
+        Assert.assertEquals(2, raft.replicatedLog().lastIndex());
+        raft.command(Noop.Companion.getINSTANCE());
+        Assert.assertEquals(4, raft.replicatedLog().lastIndex());
+    }
+
+    @Test
+    public void testLeaderApplyCommittedCommand() throws Exception {
+        becameLeader();
+        Future<Message> result = raft.command(TestFSMMessage.INSTANCE);
+        Assert.assertEquals(3, raft.replicatedLog().lastIndex());
+        Assert.assertFalse(result.isCompleted());
+
+        raft.apply(new AppendSuccessful(node2, 2, 3));
+        raft.apply(new AppendSuccessful(node3, 2, 3));
+        Assert.assertEquals(3, raft.replicatedLog().committedIndex());
+        Assert.assertEquals(3, raft.appliedIndex());
+        Assert.assertEquals(0, raft.applyLag());
+        Assert.assertTrue(result.isCompleted());
+        Assert.assertEquals(TestFSMMessage.INSTANCE, result.get());
+    }
+
+    @Test
+    public void testLeaderFlushResourcesOnceAfterCommittedRun() throws Exception {
+        becameLeader();
+        when(registry.apply(anyLong(), eq(TestFSMMessage.INSTANCE))).thenReturn(Option.some(TestFSMMessage.INSTANCE));
+        Vector<Future<Message>> results = Vector.of(
+            raft.command(TestFSMMessage.INSTANCE),
+            raft.command(TestFSMMessage.INSTANCE),
+            raft.command(TestFSMMessage.INSTANCE)
+        );
+        Assert.assertEquals(5, raft.replicatedLog().lastIndex());
+        AtomicBoolean completedBeforeFlush = new AtomicBoolean();
+        doAnswer(invocation -> {
+            completedBeforeFlush.set(results.exists(Future::isCompleted));
+            return null;
+        }).when(registry).flush(anyLong());
+
+        appendSuccessful(node2, 2, 5);
+        Assert.assertEquals(5, raft.replicatedLog().committedIndex());
+
+        InOrder order = inOrder(registry);
+        order.verify(registry).apply(3, TestFSMMessage.INSTANCE);
+        order.verify(registry).apply(4, TestFSMMessage.INSTANCE);
+        order.verify(registry).apply(5, TestFSMMessage.INSTANCE);
+        order.verify(registry).flush(5);
+        verify(registry, times(1)).flush(anyLong());
+        // client responses complete after run is flushed
+        Assert.assertFalse(completedBeforeFlush.get());
+        Assert.assertTrue(results.forAll(Future::isCompleted));
+    }
+
+    @Test
+    public void testLeaderReadIndex() throws Exception {
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        Future<Message> read = raft.read(TestFSMMessage.INSTANCE);
+        Assert.assertFalse(read.isCompleted());
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2));
+        verify(transportService).send(node3, appendEntries(node1, 2, 2, 2, 2));
+
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        Assert.assertTrue(read.isCompleted());
+        Assert.assertEquals(TestFSMMessage.INSTANCE, read.get());
+        Assert.assertEquals(2, raft.replicatedLog().lastIndex());
+    }
+
+    @Test
+    public void testLeaderReadIndexWaitCommitInCurrentTerm() throws Exception {
+        becameLeader();
+        Future<Message> read = raft.read(TestFSMMessage.INSTANCE);
+        raft.apply(new AppendRejected(node2, 2, 1, 1));
+        raft.apply(new AppendRejected(node3, 2, 1, 1));
+        Assert.assertFalse(read.isCompleted());
+
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        Assert.assertTrue(read.isCompleted());
+        Assert.assertEquals(TestFSMMessage.INSTANCE, read.get());
+    }
+
+    @Test
+    public void testLeaderLeaseRead() throws Exception {
+        override("raft.read.lease", "true");
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        Future<Message> first = raft.read(TestFSMMessage.INSTANCE);
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        Assert.assertTrue(first.isCompleted());
+
+        Future<Message> second = raft.read(TestFSMMessage.INSTANCE);
+        Assert.assertTrue(second.isCompleted());
+        Assert.assertEquals(TestFSMMessage.INSTANCE, second.get());
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2));
+    }
+
+    @Test
+    public void testLeaderRejectReadOnStepDown() throws Exception {
+        becameLeader();
+        Future<Message> read = raft.read(TestFSMMessage.INSTANCE);
+        raft.apply(new AppendRejected(node2, 3, 1, 1));
+        expectFollower();
+        Assert.assertTrue(read.isFailure());
+    }
+
     @Test
     public void testLeaderRejectAppendEntriesIfTermIsLower() throws Exception {
         becameLeader();
@@ -774,7 +1106,7 @@ public class RaftTest extends BaseTest {
     @Test
     public void testLeaderStepDownOnAppendRejectedIfTermIsNewer() throws Exception {
         becameLeader();
-        raft.apply(new AppendRejected(node2, 3, 1));
+        raft.apply(new AppendRejected(node2, 3, 1, 1));
         expectFollower();
         expectTerm(3);
     }
@@ -782,7 +1114,7 @@ public class RaftTest extends BaseTest {
     @Test
     public void testLeaderIgnoreAppendRejectedIfTermIsOld() throws Exception {
         becameLeader();
-        raft.apply(new AppendRejected(node2, 0, 1));
+        raft.apply(new AppendRejected(node2, 0, 1, 1));
         expectLeader();
         expectTerm(2);
     }
@@ -801,18 +1133,130 @@ public class RaftTest extends BaseTest {
         verify(transportService).send(node2, appendEntries(node1, 2, 1, 3, 0, noop(2, 4)));
         verify(transportService).send(node3, appendEntries(node1, 2, 1, 3, 0, noop(2, 4)));
 
-        raft.apply(new AppendRejected(node2, 2, 4));
-        raft.apply(new AppendRejected(node3, 2, 4));
+        raft.apply(new AppendRejected(node2, 2, 3, 4));
+        raft.apply(new AppendRejected(node3, 2, 3, 4));
+
+        // batch is not cut at term boundary
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 2, 0, noop(1, 3), noop(2, 4)));
+        verify(transportService).send(node3, appendEntries(node1, 2, 1, 2, 0, noop(1, 3), noop(2, 4)));
+
+        raft.apply(new AppendRejected(node2, 2, 2, 4));
+        raft.apply(new AppendRejected(node3, 2, 2, 4));
+
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3), noop(2, 4)));
+        verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3), noop(2, 4)));
+    }
+
+    @Test
+    public void testLeaderIgnoreDuplicateAppendRejected() throws Exception {
+        appendClusterConf();
+        log = log.append(noop(1, 2)).append(noop(1, 3));
+        start();
+        electionTimeout();
+        voteCandidate(node2, 2);
+        voteCandidate(node3, 2);
+
+        raft.apply(new AppendRejected(node2, 2, 3, 4));
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 2, 0, noop(1, 3), noop(2, 4)));
+
+        // reject of request already moved past does not decrement next index again
+        raft.apply(new AppendRejected(node2, 2, 3, 4));
+        raft.apply(new AppendRejected(node2, 2, 3, 4));
+        verify(transportService, never()).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3), noop(2, 4)));
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 2, 0, noop(1, 3), noop(2, 4)));
+    }
+
+    @Test
+    public void testLeaderIgnoreReorderedAppendRejected() throws Exception {
+        becameLeader();
+        raft.apply(new AppendSuccessful(node2, 2, 2));
+        raft.apply(new AppendSuccessful(node3, 2, 2));
+
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3)));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 3, 2, noop(2, 4)));
+
+        // second request is received before first one, its reject is delivered before first success
+        raft.apply(new AppendRejected(node2, 2, 3, 2, 0, 3));
+        verify(transportService, never()).send(node2, appendEntries(node1, 2, 1, 1, 2, noop(2, 2), noop(2, 3), noop(2, 4)));
+        verify(transportService, never()).send(node2, appendEntries(node1, 2, 2, 2, 2, noop(2, 3), noop(2, 4)));
+
+        raft.apply(new AppendSuccessful(node2, 2, 3));
+        Assert.assertEquals(3, raft.replicatedLog().committedIndex());
+
+        // duplicate of reject resends from next index, never below acknowledged entries
+        raft.apply(new AppendRejected(node2, 2, 3, 2, 0, 3));
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 3, 3, noop(2, 4)));
+        verify(transportService, never()).send(node2, appendEntries(node1, 2, 2, 2, 3, noop(2, 3), noop(2, 4)));
+
+        raft.apply(new AppendSuccessful(node2, 2, 4));
+        Assert.assertEquals(4, raft.replicatedLog().committedIndex());
+    }
+
+    @Test
+    public void testLeaderTransferLeadership() throws Exception {
+        becameLeader();
+        appendSuccessful(node2, 2, 2);
+        appendSuccessful(node3, 2, 2);
+
+        Future<Boolean> transfer = raft.transferLeadership(Option.some(node2));
+        verify(transportService).send(node2, new TimeoutNow(2, node1));
+
+        // commands are stashed while leadership is transferred
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        Assert.assertEquals(2, raft.replicatedLog().lastIndex());
+        Assert.assertFalse(transfer.isCompleted());
+
+        raft.apply(new RequestVote(3, node2, 2, 2, true));
+        expectFollower();
+        Assert.assertTrue(transfer.get());
+    }
+
+    @Test
+    public void testLeaderAbortTransferLeadershipOnTimeout() throws Exception {
+        becameLeader();
+        Future<Boolean> transfer = raft.transferLeadership(Option.some(node2));
+        verify(transportService, never()).send(node2, new TimeoutNow(2, node1));
+        raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        Assert.assertEquals(2, raft.replicatedLog().lastIndex());
 
-        // entry 4 does not included because different term
-        verify(transportService).send(node2, appendEntries(node1, 2, 1, 2, 0, noop(1, 3)));
-        verify(transportService).send(node3, appendEntries(node1, 2, 1, 2, 0, noop(1, 3)));
+        context.runTimer(RaftContext.Companion.getLEADERSHIP_TRANSFER());
+        Assert.assertFalse(transfer.get());
+        expectLeader();
+        Assert.assertEquals(3, raft.replicatedLog().lastIndex());
+    }
+
+    @Test
+    public void testFollowerRejectTransferLeadership() throws Exception {
+        appendClusterConf();
+        start();
+        Assert.assertFalse(raft.transferLeadership(Option.none()).get());
+    }
+
+    @Test
+    public void testFollowerStartElectionOnTimeoutNow() throws Exception {
+        appendClusterConf();
+        start();
+        raft.apply(new TimeoutNow(1, node2));
+        expectCandidate();
+        verify(transportService).send(HashSet.of(node2, node3), new RequestVote(2, node1, 1, 1, true));
+    }
+
+    @Test
+    public void testLeaderSkipConflictOnAppendRejected() throws Exception {
+        appendClusterConf();
+        log = log.append(noop(1, 2)).append(noop(1, 3));
+        start();
+        electionTimeout();
+        voteCandidate(node2, 2);
+        voteCandidate(node3, 2);
 
-        raft.apply(new AppendRejected(node2, 2, 4));
-        raft.apply(new AppendRejected(node3, 2, 4));
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 3, 0, noop(2, 4)));
 
-        verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3)));
-        verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3)));
+        // follower log ends at index 1, leader jumps to it instead of decrementing
+        raft.apply(new AppendRejected(node2, 2, 3, 1, 0, 2));
+        verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(1, 2), noop(1, 3), noop(2, 4)));
     }
 
     @Test
@@ -986,24 +1430,76 @@ public class RaftTest extends BaseTest {
 
         verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
         verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
-        // commit index 1
+        // node3 does not respond, commit index 100
         appendSuccessful(node2, 2, 100);
-        appendSuccessful(node3, 2, 100);
 
         ReplicatedLog log = raft.replicatedLog();
         logger.info("log: {}", log);
         Assert.assertTrue(log.hasSnapshot());
         Assert.assertEquals(meta, log.snapshot().getMeta());
 
-        // send install snapshot
-        raft.apply(new AppendRejected(node3, 2, 1));
-        verify(transportService).send(node3, new InstallSnapshot(node1, 2, snapshot));
+        // send install snapshot, node3 log is empty
+        raft.apply(new AppendRejected(node3, 2, 1, 0));
+        Vector<InstallSnapshotChunk> chunks = sent(node3, InstallSnapshotChunk.class);
+        Assert.assertEquals(1, chunks.size());
+        InstallSnapshotChunk chunk = chunks.get(0);
+        Assert.assertEquals(2, chunk.getSnapshotTerm());
+        Assert.assertEquals(100, chunk.getSnapshotIndex());
+        Assert.assertEquals(0, chunk.getOffset());
+        Assert.assertEquals(log.snapshotLength(), chunk.getLength());
+        Assert.assertArrayEquals(log.readSnapshot(0, (int) log.snapshotLength()), chunk.getData());
+    }
+
+    @Test
+    public void testLeaderSendSnapshotChunksInWindow() throws Exception {
+        override("raft.snapshot-chunk-size", "16b");
+        override("raft.snapshot-window", "2");
+        RaftSnapshotMetadata meta = new RaftSnapshotMetadata(2, 100, new StableClusterConfiguration(node1, node2,
+            node3));
+        RaftSnapshot snapshot = new RaftSnapshot(meta, Vector.empty());
+        when(registry.prepareSnapshot(meta)).thenReturn(snapshot);
+
+        becameLeader();
+        for (int i = 0; i < 100; i++) {
+            raft.apply(new ClientMessage(Noop.Companion.getINSTANCE(), 0));
+        }
+        appendSuccessful(node2, 2, 100);
+        ReplicatedLog log = raft.replicatedLog();
+        Assert.assertTrue(log.snapshotLength() > 48);
+
+        raft.apply(new AppendRejected(node3, 2, 1, 0));
+        Assert.assertEquals(Vector.of(0L, 16L), sent(node3, InstallSnapshotChunk.class).map(InstallSnapshotChunk::getOffset));
+
+        raft.apply(new InstallSnapshotChunkAck(node3, 2, 100, 16));
+        Assert.assertEquals(Vector.of(0L, 16L, 32L), sent(node3, InstallSnapshotChunk.class).map(InstallSnapshotChunk::getOffset));
+    }
+
+    @Test
+    public void testFollowerInstallSnapshotChunks() throws Exception {
+        appendClustergetSelf();
+        start();
+        ClusterConfiguration conf = new StableClusterConfiguration(node1);
+        RaftSnapshot snapshot = new RaftSnapshot(new RaftSnapshotMetadata(1, 1, conf), Vector.empty());
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        LogEntry.Companion.getCodec().write(new java.io.DataOutputStream(bytes), snapshot.toEntry());
+        byte[] data = bytes.toByteArray();
+        int half = data.length / 2;
+
+        raft.apply(new InstallSnapshotChunk(node4, 1, 1, 1, data.length, half,
+            java.util.Arrays.copyOfRange(data, half, data.length)));
+        verify(transportService).send(node4, new InstallSnapshotChunkAck(node1, 1, 1, 0));
+        raft.apply(new InstallSnapshotChunk(node4, 1, 1, 1, data.length, 0,
+            java.util.Arrays.copyOfRange(data, 0, half)));
+        verify(transportService).send(node4, new InstallSnapshotSuccessful(node1, 1, 1));
+        Assert.assertEquals(snapshot, raft.replicatedLog().snapshot());
+        expectFollower();
     }
 
     // joint consensus
 
     @Test
     public void testAddServer() throws Exception {
+        override("raft.learner.enabled", "false");
         becameLeader();
         verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
         verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
@@ -1020,8 +1516,57 @@ public class RaftTest extends BaseTest {
         Assert.assertEquals(stable, raft.currentMeta().getConfig());
     }
 
+    @Test
+    public void testAddServerAsLearner() throws Exception {
+        becameLeader();
+        appendSuccessful(node2, 2, 2);
+        appendSuccessful(node3, 2, 2);
+
+        raft.apply(new AddServer(node4));
+        ClusterConfiguration learner = new StableClusterConfiguration(node1, node2, node3)
+            .withLearners(HashSet.of(node4));
+        LogEntry learnerEntry = new LogEntry(2, 3, 0, learner);
+        verify(transportService).send(node2, appendEntries(node1, 2, 2, 2, 2, learnerEntry));
+        verify(transportService).send(node3, appendEntries(node1, 2, 2, 2, 2, learnerEntry));
+        verify(transportService).send(node4, appendEntries(node1, 2, 1, 1, 2, noop(2, 2), learnerEntry));
+        Assert.assertFalse(raft.currentMeta().getConfig().isTransitioning());
+        Assert.assertEquals(HashSet.of(node1, node2, node3), raft.currentMeta().getConfig().getMembers());
+
+        // learner is not counted in majority
+        appendSuccessful(node4, 2, 3);
+        Assert.assertEquals(2, raft.replicatedLog().committedIndex());
+
+        appendSuccessful(node2, 2, 3);
+        appendSuccessful(node3, 2, 3);
+        Assert.assertEquals(3, raft.replicatedLog().committedIndex());
+
+        // promoted once learner configuration is committed
+        appendSuccessful(node4, 2, 3);
+        ClusterConfiguration stable = new StableClusterConfiguration(node1, node2, node3, node4);
+        Assert.assertTrue(raft.currentMeta().getConfig().isTransitioning());
+        verify(transportService).send(node4, appendEntries(node1, 2, 2, 3, 3, new LogEntry(2, 4, 0, stable)));
+
+        appendSuccessful(node2, 2, 4);
+        appendSuccessful(node3, 2, 4);
+        appendSuccessful(node4, 2, 4);
+        Assert.assertEquals(stable, raft.currentMeta().getConfig());
+    }
+
+    @Test
+    public void testFollowerLearnerDoesNotStartElection() throws Exception {
+        override("raft.bootstrap", "false");
+        log = log.append(new LogEntry(1, 1, 0, new StableClusterConfiguration(node2, node3)
+            .withLearners(HashSet.of(node1)))).commit(1);
+        start();
+        electionTimeout();
+        expectFollower();
+        verify(transportService, never()).send(any(DiscoveryNode.class), any(RequestVote.class));
+        verify(transportService, never()).send(any(Iterable.class), any(RequestVote.class));
+    }
+
     @Test
     public void testAddServerInTransitioningState() throws Exception {
+        override("raft.learner.enabled", "false");
         becameLeader();
         verify(transportService).send(node2, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
         verify(transportService).send(node3, appendEntries(node1, 2, 1, 1, 0, noop(2, 2)));
@@ -1176,6 +1721,225 @@ public class RaftTest extends BaseTest {
         }
     }
 
+    /**
+     * Holds sync listeners of log until released, as if local sync is still in progress.
+     */
+    private static class HeldSyncPersistentService implements PersistentService {
+        private final PersistentService delegate;
+        private HeldSyncLog log;
+
+        HeldSyncPersistentService(PersistentService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long currentTerm() {
+            return delegate.currentTerm();
+        }
+
+        @Override
+        public Option<DiscoveryNode> votedFor() {
+            return delegate.votedFor();
+        }
+
+        @Override
+        public void updateState(long newTerm, Option<DiscoveryNode> node) {
+            delegate.updateState(newTerm, node);
+        }
+
+        @Override
+        public ReplicatedLog openLog() {
+            log = new HeldSyncLog(delegate.openLog());
+            return log;
+        }
+    }
+
+    private static class HeldSyncLog implements ReplicatedLog {
+        private final ReplicatedLog log;
+        private final List<Function0<Unit>> listeners = new ArrayList<>();
+
+        HeldSyncLog(ReplicatedLog log) {
+            this.log = log;
+        }
+
+        void release() {
+            List<Function0<Unit>> released = new ArrayList<>(listeners);
+            listeners.clear();
+            released.forEach(Function0::invoke);
+        }
+
+        @Override
+        public boolean sync(Function0<Unit> listener) {
+            listeners.add(listener);
+            return false;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return log.isEmpty();
+        }
+
+        @Override
+        public boolean contains(LogEntry entry) {
+            return log.contains(entry);
+        }
+
+        @Override
+        public Vector<LogEntry> entries() {
+            return log.entries();
+        }
+
+        @Override
+        public int committedEntries() {
+            return log.committedEntries();
+        }
+
+        @Override
+        public long committedIndex() {
+            return log.committedIndex();
+        }
+
+        @Override
+        public boolean containsMatchingEntry(long otherPrevTerm, long otherPrevIndex) {
+            return log.containsMatchingEntry(otherPrevTerm, otherPrevIndex);
+        }
+
+        @Override
+        public Option<Long> lastTerm() {
+            return log.lastTerm();
+        }
+
+        @Override
+        public long lastIndex() {
+            return log.lastIndex();
+        }
+
+        @Override
+        public long prevIndex() {
+            return log.prevIndex();
+        }
+
+        @Override
+        public long nextIndex() {
+            return log.nextIndex();
+        }
+
+        @Override
+        public ReplicatedLog commit(long committedIndex) {
+            log.commit(committedIndex);
+            return this;
+        }
+
+        @Override
+        public ReplicatedLog append(LogEntry entry) {
+            log.append(entry);
+            return this;
+        }
+
+        @Override
+        public ReplicatedLog append(Vector<LogEntry> entries) {
+            log.append(entries);
+            return this;
+        }
+
+        @Override
+        public ReplicatedLog compactWith(RaftSnapshot snapshot) {
+            log.compactWith(snapshot);
+            return this;
+        }
+
+        @Override
+        public File writeSnapshot(RaftSnapshot snapshot) {
+            return log.writeSnapshot(snapshot);
+        }
+
+        @Override
+        public ReplicatedLog compactWith(RaftSnapshot snapshot, File file) {
+            log.compactWith(snapshot, file);
+            return this;
+        }
+
+        @Override
+        public Vector<LogEntry> entriesBatchFrom(long fromIncluding, int howMany) {
+            return log.entriesBatchFrom(fromIncluding, howMany);
+        }
+
+        @Override
+        public Vector<LogEntry> entriesBatchFrom(long fromIncluding, int howMany, long maxBytes) {
+            return log.entriesBatchFrom(fromIncluding, howMany, maxBytes);
+        }
+
+        @Override
+        public Vector<LogEntry> slice(long from, long until) {
+            return log.slice(from, until);
+        }
+
+        @Override
+        public boolean containsEntryAt(long index) {
+            return log.containsEntryAt(index);
+        }
+
+        @Override
+        public long termAt(long index) {
+            return log.termAt(index);
+        }
+
+        @Override
+        public long firstIndexOfTerm(long index) {
+            return log.firstIndexOfTerm(index);
+        }
+
+        @Override
+        public long lastIndexOfTerm(long term) {
+            return log.lastIndexOfTerm(term);
+        }
+
+        @Override
+        public Option<ClusterConfiguration> lastConfiguration() {
+            return log.lastConfiguration();
+        }
+
+        @Override
+        public boolean hasSnapshot() {
+            return log.hasSnapshot();
+        }
+
+        @Override
+        public RaftSnapshot snapshot() {
+            return log.snapshot();
+        }
+
+        @Override
+        public long snapshotLength() {
+            return log.snapshotLength();
+        }
+
+        @Override
+        public byte[] readSnapshot(long offset, int length) {
+            return log.readSnapshot(offset, length);
+        }
+
+        @Override
+        public long receiveSnapshot(long term, long index, long length, long offset, byte[] data) {
+            return log.receiveSnapshot(term, index, length, offset, data);
+        }
+
+        @Override
+        public RaftSnapshot installSnapshot() {
+            return log.installSnapshot();
+        }
+
+        @Override
+        public LogSyncStats syncStats() {
+            return log.syncStats();
+        }
+
+        @Override
+        public void close() {
+            log.close();
+        }
+    }
+
     private class TestRaftModule extends AbstractModule {
         @Override
         protected void configure() {
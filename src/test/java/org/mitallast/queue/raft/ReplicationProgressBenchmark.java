@@ -0,0 +1,58 @@
+package org.mitallast.queue.raft;
+
+import io.vavr.collection.HashSet;
+import org.mitallast.queue.raft.cluster.StableClusterConfiguration;
+import org.mitallast.queue.transport.DiscoveryNode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Threads(1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplicationProgressBenchmark {
+
+    @Param({"3", "5", "7"})
+    private int members;
+
+    private StableClusterConfiguration config;
+    private ReplicationProgress progress;
+    private DiscoveryNode[] nodes;
+    private long index = 0;
+    private int i = 0;
+
+    @Setup
+    public void setUp() {
+        nodes = new DiscoveryNode[members];
+        for (int n = 0; n < members; n++) {
+            nodes[n] = new DiscoveryNode("localhost", 8800 + n);
+        }
+        config = new StableClusterConfiguration(HashSet.of(nodes));
+        progress = new ReplicationProgress(nodes[0], 1);
+    }
+
+    /**
+     * Append successful from one follower: resolve ordinal, update match index and find index on majority.
+     */
+    @Benchmark
+    public void appendSuccessful(Blackhole blackhole) {
+        i = (i + 1) % members;
+        index++;
+        int ordinal = progress.ordinal(nodes[i]);
+        progress.matchIfGreater(ordinal, index);
+        blackhole.consume(progress.consensusForIndex(config));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(ReplicationProgressBenchmark.class.getSimpleName())
+            .build();
+        new Runner(options).run();
+    }
+}
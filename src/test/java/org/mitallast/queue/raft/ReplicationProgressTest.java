@@ -0,0 +1,107 @@
+package org.mitallast.queue.raft;
+
+import io.vavr.collection.HashSet;
+import org.junit.Test;
+import org.mitallast.queue.raft.cluster.ClusterConfiguration;
+import org.mitallast.queue.raft.cluster.JointConsensusClusterConfiguration;
+import org.mitallast.queue.raft.cluster.StableClusterConfiguration;
+import org.mitallast.queue.transport.DiscoveryNode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicationProgressTest {
+    private DiscoveryNode node1 = new DiscoveryNode("localhost", 8801);
+    private DiscoveryNode node2 = new DiscoveryNode("localhost", 8802);
+    private DiscoveryNode node3 = new DiscoveryNode("localhost", 8803);
+    private DiscoveryNode node4 = new DiscoveryNode("localhost", 8804);
+    private DiscoveryNode node5 = new DiscoveryNode("localhost", 8805);
+
+    @Test
+    public void testConsensusForIndexOf3() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 1);
+        StableClusterConfiguration config = new StableClusterConfiguration(node1, node2, node3);
+        progress.matchIfGreater(progress.ordinal(node1), 10);
+        assertEquals(0, progress.consensusForIndex(config));
+        progress.matchIfGreater(progress.ordinal(node3), 7);
+        assertEquals(7, progress.consensusForIndex(config));
+        progress.matchIfGreater(progress.ordinal(node2), 9);
+        assertEquals(9, progress.consensusForIndex(config));
+        progress.matchIfGreater(progress.ordinal(node2), 5);
+        assertEquals(9, progress.consensusForIndex(config));
+    }
+
+    @Test
+    public void testConsensusForIndexOf5() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 1);
+        StableClusterConfiguration config = new StableClusterConfiguration(node1, node2, node3, node4, node5);
+        progress.matchIfGreater(progress.ordinal(node1), 10);
+        progress.matchIfGreater(progress.ordinal(node2), 4);
+        progress.matchIfGreater(progress.ordinal(node3), 8);
+        progress.matchIfGreater(progress.ordinal(node4), 2);
+        assertEquals(4, progress.consensusForIndex(config));
+        progress.matchIfGreater(progress.ordinal(node5), 9);
+        assertEquals(8, progress.consensusForIndex(config));
+    }
+
+    @Test
+    public void testConsensusForIndexInJointConsensus() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 1);
+        JointConsensusClusterConfiguration config = new JointConsensusClusterConfiguration(
+            HashSet.of(node1, node2, node3),
+            HashSet.of(node1, node4, node5)
+        );
+        progress.matchIfGreater(progress.ordinal(node1), 10);
+        progress.matchIfGreater(progress.ordinal(node2), 10);
+        progress.matchIfGreater(progress.ordinal(node3), 10);
+        assertEquals(0, progress.consensusForIndex(config));
+        progress.matchIfGreater(progress.ordinal(node4), 6);
+        assertEquals(6, progress.consensusForIndex(config));
+    }
+
+    @Test
+    public void testReplicasIncludeLearners() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 1);
+        ClusterConfiguration config = new StableClusterConfiguration(node1, node2, node3)
+            .withLearners(HashSet.of(node4));
+        int[] replicas = progress.replicas(config);
+        assertEquals(3, replicas.length);
+        for (int replica : replicas) {
+            assertFalse(progress.member(replica).equals(node1));
+        }
+    }
+
+    @Test
+    public void testNewMemberStartsAtDefaultNext() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 42);
+        int ordinal = progress.ordinal(node2);
+        assertEquals(ordinal, progress.ordinal(node2));
+        assertEquals(42, progress.next(ordinal));
+        assertEquals(42, progress.send(ordinal));
+        assertEquals(0, progress.match(ordinal));
+    }
+
+    @Test
+    public void testConfirmedByMajorityAfterSent() throws Exception {
+        ReplicationProgress progress = new ReplicationProgress(node1, 1);
+        StableClusterConfiguration config = new StableClusterConfiguration(node1, node2, node3);
+        int follower2 = progress.ordinal(node2);
+        int follower3 = progress.ordinal(node3);
+        progress.acked(follower2);
+        long[] sent = progress.sentCounts();
+        progress.sent(follower2);
+        progress.sent(follower3);
+        assertFalse(progress.confirmed(config, sent));
+        progress.acked(follower3);
+        assertTrue(progress.confirmed(config, sent));
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        long[] values = new long[]{5, 1, 4, 2, 3, 0, 0};
+        assertEquals(1, ReplicationProgress.Companion.select(values.clone(), 5, 0));
+        assertEquals(3, ReplicationProgress.Companion.select(values.clone(), 5, 2));
+        assertEquals(5, ReplicationProgress.Companion.select(values.clone(), 5, 4));
+    }
+}
@@ -20,7 +20,7 @@ public class PersistentTest extends BaseTest {
             "node.path", testFolder.getRoot().getAbsolutePath(),
             "raft.enabled", true,
             "transport.port", 8900
-        ).toJavaMap());
+        ).toJavaMap()).withFallback(ConfigFactory.defaultReference());
     }
 
     private FileService fileService() throws Exception {
@@ -28,7 +28,7 @@ public class PersistentTest extends BaseTest {
     }
 
     private PersistentService persistent() throws Exception {
-        return new FilePersistentService(fileService());
+        return new FilePersistentService(config(), fileService());
     }
 
     @Test
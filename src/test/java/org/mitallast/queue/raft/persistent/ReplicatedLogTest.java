@@ -2,7 +2,10 @@ package org.mitallast.queue.raft.persistent;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vavr.collection.HashMap;
+import io.vavr.collection.HashSet;
 import io.vavr.collection.Vector;
 import io.vavr.control.Option;
 import org.junit.Assert;
@@ -11,12 +14,26 @@ import org.mitallast.queue.common.BaseTest;
 import org.mitallast.queue.common.codec.Codec;
 import org.mitallast.queue.common.codec.Message;
 import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.common.file.RecordFrame;
 import org.mitallast.queue.raft.cluster.StableClusterConfiguration;
 import org.mitallast.queue.raft.protocol.LogEntry;
 import org.mitallast.queue.raft.protocol.RaftSnapshot;
 import org.mitallast.queue.raft.protocol.RaftSnapshotMetadata;
+import org.mitallast.queue.transport.DiscoveryNode;
 
+import kotlin.Unit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ReplicatedLogTest extends BaseTest {
@@ -51,7 +68,7 @@ public class ReplicatedLogTest extends BaseTest {
             "node.path", testFolder.getRoot().getAbsolutePath(),
             "raft.enabled", true,
             "transport.port", 8800
-        ).toJavaMap());
+        ).toJavaMap()).withFallback(ConfigFactory.defaultReference());
     }
 
     private FileService fileService() throws Exception {
@@ -59,7 +76,7 @@ public class ReplicatedLogTest extends BaseTest {
     }
 
     private ReplicatedLog log() throws Exception {
-        return new FilePersistentService(fileService()).openLog();
+        return new FilePersistentService(config(), fileService()).openLog();
     }
 
     @Test
@@ -85,9 +102,363 @@ public class ReplicatedLogTest extends BaseTest {
             .map(Path::toString)
             .collect(Collectors.toList()));
         logger.info("files: {}", files);
-        Assert.assertEquals(2, files.size());
+        Assert.assertEquals(4, files.size());
         Assert.assertTrue(files.contains("state.bin"));
-        Assert.assertTrue(files.contains("2.log"));
+        Assert.assertTrue(files.contains("snapshot.bin"));
+        Assert.assertTrue(files.contains("1.log"));
+        Assert.assertTrue(files.contains("1.idx"));
+    }
+
+    @Test
+    public void testRollSegments() throws Exception {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "raft.log.segment-size", 1024,
+            "raft.log.index-interval", 4
+        ).toJavaMap()).withFallback(config());
+        Vector<LogEntry> entries = Vector.range(1, 1001).map(i -> new LogEntry(term, i, 0, new AppendWord("word " + i)));
+
+        ReplicatedLog origin = new FilePersistentService(config, fileService()).openLog().append(entries);
+        Assert.assertEquals(entries, origin.entries());
+        Assert.assertEquals(entries.slice(499, 600), origin.slice(500, 600));
+        origin.close();
+
+        ReplicatedLog reopened = new FilePersistentService(config, fileService()).openLog();
+        Assert.assertEquals(entries, reopened.entries());
+        Assert.assertEquals(1000, reopened.lastIndex());
+        Assert.assertTrue(reopened.containsEntryAt(777));
+
+        reopened = reopened.append(new LogEntry(term2, 500, 0, new AppendWord("rewrite")));
+        Assert.assertEquals(500, reopened.lastIndex());
+        Assert.assertEquals(entries.slice(0, 499), reopened.slice(1, 499));
+    }
+
+    @Test
+    public void testCompactDeletesSegments() throws Exception {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "raft.log.segment-size", 1024
+        ).toJavaMap()).withFallback(config());
+        Vector<LogEntry> entries = Vector.range(1, 1001).map(i -> new LogEntry(term, i, 0, new AppendWord("word " + i)));
+        ReplicatedLog log = new FilePersistentService(config, fileService()).openLog().append(entries).commit(600);
+
+        long segmentsBefore = fileService().resources("raft", "glob:*.log").count();
+        RaftSnapshot snapshot = new RaftSnapshot(new RaftSnapshotMetadata(term, 600, clusterConf), Vector.empty());
+        log = log.compactWith(snapshot);
+        long segmentsAfter = fileService().resources("raft", "glob:*.log").count();
+        Assert.assertTrue(segmentsAfter < segmentsBefore);
+
+        Assert.assertEquals(snapshot, log.snapshot());
+        Assert.assertFalse(log.containsEntryAt(599));
+        Assert.assertEquals(entries.slice(600, 1000), log.slice(601, 1000));
+        log.close();
+
+        ReplicatedLog reopened = new FilePersistentService(config, fileService()).openLog();
+        Assert.assertEquals(snapshot, reopened.snapshot());
+        Assert.assertEquals(entries.slice(600, 1000).prepend(snapshot.toEntry()), reopened.entries());
+    }
+
+    @Test
+    public void testCompactWithWrittenSnapshot() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).commit(2);
+        File file = log.writeSnapshot(snapshot2);
+        // log accepts appends while snapshot is written
+        log = log.append(entry3).compactWith(snapshot2, file);
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(snapshot2, log.snapshot());
+        Assert.assertEquals(Vector.of(snapshotEntry2, entry3), log.entries());
+
+        File stale = log.writeSnapshot(snapshot1);
+        log = log.compactWith(snapshot1, stale);
+        Assert.assertFalse(stale.exists());
+        Assert.assertEquals(snapshot2, log.snapshot());
+        log.close();
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(snapshotEntry2, entry3), reopened.entries());
+    }
+
+    @Test
+    public void testReceiveSnapshotChunksOutOfOrder() throws Exception {
+        RaftSnapshot snapshot = new RaftSnapshot(new RaftSnapshotMetadata(term, 3, clusterConf),
+            Vector.of(new AppendWord("first"), new AppendWord("second")));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LogEntry.Companion.getCodec().write(new DataOutputStream(bytes), snapshot.toEntry());
+        byte[] data = bytes.toByteArray();
+        int half = data.length / 2;
+
+        ReplicatedLog log = log().append(entry1).append(entry2).commit(1);
+        Assert.assertEquals(0, log.receiveSnapshot(term, 3, data.length, half,
+            Arrays.copyOfRange(data, half, data.length)));
+        Assert.assertEquals(data.length, log.receiveSnapshot(term, 3, data.length, 0,
+            Arrays.copyOfRange(data, 0, half)));
+        Assert.assertEquals(snapshot, log.installSnapshot());
+        Assert.assertEquals(snapshot, log.snapshot());
+        Assert.assertEquals(data.length, log.snapshotLength());
+        Assert.assertArrayEquals(data, log.readSnapshot(0, data.length));
+        log.close();
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(snapshot, reopened.snapshot());
+        Assert.assertEquals(3, reopened.lastIndex());
+    }
+
+    @Test
+    public void testTruncateAndReopen() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(entry3)
+            .append(rewriteEntry2)
+            .append(new LogEntry(term2, 3, 0, new AppendWord("rewrite")));
+        log.close();
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(entry1, rewriteEntry2, new LogEntry(term2, 3, 0, new AppendWord("rewrite"))), reopened.entries());
+    }
+
+    @Test
+    public void testSyncFlush() throws Exception {
+        ReplicatedLog log = log().append(entry1);
+        Assert.assertTrue(log.sync(() -> {
+            Assert.fail("listener should not be invoked");
+            return Unit.INSTANCE;
+        }));
+    }
+
+    @Test
+    public void testSyncGroupCommit() throws Exception {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "raft.log.durability", "fsync"
+        ).toJavaMap()).withFallback(config());
+        ReplicatedLog log = new FilePersistentService(config, fileService()).openLog();
+
+        final int total = 1000;
+        CountDownLatch latch = new CountDownLatch(total);
+        for (int i = 1; i <= total; i++) {
+            log.append(new LogEntry(term, i, 0, new AppendWord("word " + i)));
+            Assert.assertFalse(log.sync(() -> {
+                latch.countDown();
+                return Unit.INSTANCE;
+            }));
+        }
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+
+        LogSyncStats stats = log.syncStats();
+        logger.info("sync stats: {}", stats);
+        Assert.assertEquals(total, stats.getAppends());
+        Assert.assertTrue(stats.getSyncs() <= total);
+        log.close();
+    }
+
+    @Test
+    public void testLastConfiguration() throws Exception {
+        StableClusterConfiguration conf1 = new StableClusterConfiguration(HashSet.of(new DiscoveryNode("localhost", 8801)));
+        StableClusterConfiguration conf2 = new StableClusterConfiguration(HashSet.of(new DiscoveryNode("localhost", 8802)));
+        ReplicatedLog log = log();
+        Assert.assertTrue(log.lastConfiguration().isEmpty());
+
+        log.append(new LogEntry(term, 1, 0, conf1)).append(entry2).close();
+        log = log();
+        Assert.assertEquals(Option.some(conf1), log.lastConfiguration());
+
+        log.append(new LogEntry(term, 3, 0, conf2));
+        Assert.assertEquals(Option.some(conf2), log.lastConfiguration());
+        // truncated configuration is replaced by previous one
+        log.append(rewriteEntry3);
+        Assert.assertEquals(Option.some(conf1), log.lastConfiguration());
+
+        // configuration compacted to snapshot
+        RaftSnapshot snapshot = new RaftSnapshot(new RaftSnapshotMetadata(term2, 3, conf2), Vector.empty());
+        log.commit(3).compactWith(snapshot);
+        Assert.assertEquals(Option.some(conf2), log.lastConfiguration());
+        log.close();
+        Assert.assertEquals(Option.some(conf2), log().lastConfiguration());
+    }
+
+    @Test
+    public void testDeleteSegment() throws Exception {
+        File file = testFolder.newFile("segment.log");
+        File index = testFolder.newFile("segment.idx");
+        LogSegment segment = new LogSegment(1, file, index, 1024, 4);
+        ByteBuf payload = Unpooled.buffer();
+        LogEntry.Companion.getCompactCodec().write(payload, entry1);
+        segment.append(payload);
+        payload.release();
+        Assert.assertEquals(entry1, segment.read(0));
+
+        segment.delete();
+        Assert.assertFalse(file.exists());
+        Assert.assertFalse(index.exists());
+        // pending sync of deleted segment is ignored
+        segment.force();
+        segment.delete();
+        try {
+            segment.read(0);
+            Assert.fail("deleted segment should not be readable");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testTruncateSegmentsWithGroupCommit() throws Exception {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "raft.log.durability", "fsync",
+            "raft.log.segment-size", 1024
+        ).toJavaMap()).withFallback(config());
+        ReplicatedLog log = new FilePersistentService(config, fileService()).openLog();
+
+        final int total = 200;
+        CountDownLatch latch = new CountDownLatch(total * 2);
+        for (int i = 1; i <= total; i++) {
+            log.append(new LogEntry(term, i, 0, new AppendWord("word " + i)));
+            log.sync(() -> {
+                latch.countDown();
+                return Unit.INSTANCE;
+            });
+        }
+        // rewrite drops segments which may have pending sync
+        for (int i = 2; i <= total + 1; i++) {
+            log.append(new LogEntry(term2, i, 0, new AppendWord("rewrite " + i)));
+            log.sync(() -> {
+                latch.countDown();
+                return Unit.INSTANCE;
+            });
+        }
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(total + 1, log.lastIndex());
+        log.close();
+
+        ReplicatedLog reopened = new FilePersistentService(config, fileService()).openLog();
+        Assert.assertEquals(total + 1, reopened.lastIndex());
+        Assert.assertEquals(term2, reopened.termAt(total + 1));
+    }
+
+    @Test
+    public void testRecoverCorruptedTail() throws Exception {
+        log().append(entry1).append(entry2).append(entry3).close();
+
+        // corrupt payload of the last record
+        File segment = fileService().resource("raft", "1.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            int position = 0;
+            int last = 0;
+            int frame;
+            while ((frame = RecordFrame.INSTANCE.validate(buffer, position, buffer.capacity())) > 0) {
+                last = position;
+                position += frame;
+            }
+            Assert.assertTrue(position > 0);
+            int offset = last + RecordFrame.HEADER_SIZE + buffer.getInt(last) - 1;
+            buffer.put(offset, (byte) (buffer.get(offset) ^ 0xFF));
+            buffer.force();
+        }
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(entry1, entry2), reopened.entries());
+        Assert.assertEquals(Vector.of(entry1, entry2, rewriteEntry3), reopened.append(rewriteEntry3).entries());
+    }
+
+    @Test
+    public void testReadFixedWidthRecords() throws Exception {
+        log().append(entry1).close();
+
+        // replace compact record with fixed width records written by previous versions
+        File segment = fileService().resource("raft", "1.log");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            int position = writeFixedWidthRecord(buffer, 0, entry1);
+            writeFixedWidthRecord(buffer, position, entry2);
+            buffer.force();
+        }
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(entry1, entry2), reopened.entries());
+        Assert.assertEquals(term, reopened.termAt(2));
+        reopened.append(rewriteEntry3).close();
+
+        ReplicatedLog mixed = log();
+        Assert.assertEquals(Vector.of(entry1, entry2, rewriteEntry3), mixed.entries());
+        Assert.assertEquals(term2, mixed.termAt(3));
+        Assert.assertEquals(3, mixed.lastIndexOfTerm(term2));
+    }
+
+    @Test
+    public void testMigrateLegacySegment() throws Exception {
+        // previous versions kept snapshot as the first entry of unframed segment named by state segment
+        try (DataOutputStream stream = fileService().output(fileService().resource("raft", "state.bin"), false)) {
+            stream.writeLong(2);
+            stream.writeLong(term);
+            stream.writeBoolean(false);
+        }
+        writeLegacySegment("2.log", snapshotEntry2, entry3);
+
+        ReplicatedLog migrated = log();
+        Assert.assertEquals(snapshot2, migrated.snapshot());
+        Assert.assertEquals(Vector.of(snapshotEntry2, entry3), migrated.entries());
+        migrated.append(rewriteEntry4).close();
+
+        Vector<String> files = Vector.ofAll(fileService()
+            .resources("raft")
+            .map(Path::toString)
+            .collect(Collectors.toList()));
+        Assert.assertFalse(files.contains("2.log"));
+        Assert.assertTrue(files.contains("snapshot.bin"));
+        Assert.assertTrue(files.contains("3.log"));
+        Assert.assertTrue(files.contains("3.idx"));
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(snapshotEntry2, entry3, rewriteEntry4), reopened.entries());
+    }
+
+    @Test
+    public void testMigrateLegacySegmentWithoutSnapshot() throws Exception {
+        writeLegacySegment("1.log", entry1, entry2);
+
+        ReplicatedLog migrated = log();
+        Assert.assertFalse(migrated.hasSnapshot());
+        Assert.assertEquals(Vector.of(entry1, entry2), migrated.entries());
+        Assert.assertEquals(Vector.of(entry1, entry2, entry3), migrated.append(entry3).entries());
+    }
+
+    @Test
+    public void testUnreadableLegacySegment() throws Exception {
+        File file = writeLegacySegment("1.log", entry1, entry2);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+        long length = file.length();
+
+        try {
+            log();
+            Assert.fail("unreadable legacy segment should not be opened");
+        } catch (java.io.IOError expected) {
+        }
+        // legacy data is not treated as torn tail
+        Assert.assertEquals(length, file.length());
+        Assert.assertFalse(new File(file.getParentFile(), "1.idx").exists());
+    }
+
+    private File writeLegacySegment(String name, LogEntry... entries) throws Exception {
+        File file = fileService().resource("raft", name);
+        try (DataOutputStream stream = fileService().output(file, false)) {
+            for (LogEntry entry : entries) {
+                LogEntry.Companion.getCodec().write(stream, entry);
+            }
+        }
+        return file;
+    }
+
+    private int writeFixedWidthRecord(ByteBuffer buffer, int position, LogEntry entry) {
+        ByteBuf payload = Unpooled.buffer();
+        LogEntry.Companion.getCodec().write(payload, entry);
+        int size = payload.readableBytes();
+        ByteBuffer data = buffer.duplicate();
+        data.position(position + RecordFrame.HEADER_SIZE);
+        data.put(payload.nioBuffer());
+        payload.release();
+        buffer.putInt(position + RecordFrame.TYPE_OFFSET, RecordFrame.TYPE_ENTRY);
+        data.position(position + RecordFrame.TYPE_OFFSET);
+        data.limit(position + RecordFrame.HEADER_SIZE + size);
+        buffer.putInt(position + RecordFrame.CHECKSUM_OFFSET, RecordFrame.INSTANCE.checksum(data));
+        buffer.putInt(position + RecordFrame.LENGTH_OFFSET, size);
+        return position + RecordFrame.HEADER_SIZE + size;
     }
 
     @Test
@@ -175,6 +546,45 @@ public class ReplicatedLogTest extends BaseTest {
         Assert.assertEquals(Vector.empty(), log().append(entry1).append(entry2).append(entry3).entriesBatchFrom(4, 3));
     }
 
+    @Test
+    public void testNextEntriesBatchContainsDifferentTerms() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(rewriteEntry3).append(rewriteEntry4);
+        Assert.assertEquals(Vector.of(entry2, rewriteEntry3, rewriteEntry4), log.entriesBatchFrom(2, 10, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testNextEntriesBatchLimitedByCount() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(entry3);
+        Assert.assertEquals(Vector.of(entry1, entry2), log.entriesBatchFrom(1, 2, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testNextEntriesBatchLimitedBySize() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(entry3);
+        Assert.assertEquals(Vector.of(entry1), log.entriesBatchFrom(1, 10, 1));
+        Assert.assertEquals(Vector.of(entry2), log.entriesBatchFrom(2, 10, 1));
+    }
+
+    @Test
+    public void testFirstIndexOfTerm() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(rewriteEntry3).append(rewriteEntry4);
+        Assert.assertEquals(1, log.firstIndexOfTerm(2));
+        Assert.assertEquals(3, log.firstIndexOfTerm(4));
+    }
+
+    @Test
+    public void testLastIndexOfTerm() throws Exception {
+        ReplicatedLog log = log().append(entry1).append(entry2).append(rewriteEntry3).append(rewriteEntry4);
+        Assert.assertEquals(2, log.lastIndexOfTerm(term));
+        Assert.assertEquals(4, log.lastIndexOfTerm(term2));
+        Assert.assertEquals(0, log.lastIndexOfTerm(term2 + 1));
+    }
+
+    @Test
+    public void testLastIndexOfTermIfEmpty() throws Exception {
+        Assert.assertEquals(0, log().lastIndexOfTerm(term));
+    }
+
     @Test
     public void testContainsMatchingEntry0IfEmpty() throws Exception {
         Assert.assertTrue(log().containsMatchingEntry(term0, 0));
@@ -0,0 +1,29 @@
+package org.mitallast.queue.raft.resource;
+
+import io.vavr.control.Option;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.raft.protocol.Noop;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ResourceRegistryTest {
+
+    @Test
+    public void testFlushBatchResourcesOnly() throws Exception {
+        ResourceFSM resource = mock(ResourceFSM.class);
+        BatchResourceFSM batch = mock(BatchResourceFSM.class);
+        ResourceRegistry registry = new ResourceRegistry();
+        registry.register(resource);
+        registry.register(batch);
+        registry.register(Noop.class, (index, noop) -> Option.some(noop));
+
+        Assert.assertEquals(Option.some(Noop.Companion.getINSTANCE()), registry.apply(1, Noop.Companion.getINSTANCE()));
+        registry.flush(1);
+
+        verify(batch).flush(1);
+        verifyZeroInteractions(resource);
+    }
+}
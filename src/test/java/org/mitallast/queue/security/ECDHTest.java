@@ -2,10 +2,15 @@ package org.mitallast.queue.security;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mitallast.queue.common.BaseTest;
 
+import javax.crypto.AEADBadTagException;
+
 public class ECDHTest extends BaseTest {
     @Test
     public void testFlow() throws Exception {
@@ -17,15 +22,56 @@ public class ECDHTest extends BaseTest {
         bob.keyAgreement(alice.requestStart());
         alice.keyAgreement(bob.responseStart());
 
-        byte[] source = randomBytes(1024);
-        ECDHEncrypted encrypted = bob.encrypt(source);
+        for (int i = 0; i < 3; i++) {
+            byte[] source = randomBytes(1024);
+            ByteBuf encrypted = Unpooled.directBuffer();
+            bob.encrypt(Unpooled.wrappedBuffer(source), encrypted);
+            Assert.assertEquals(bob.encryptedSize(source.length), encrypted.readableBytes());
+
+            ByteBuf decrypted = Unpooled.directBuffer();
+            alice.decrypt(encrypted, decrypted);
+            Assert.assertArrayEquals(source, ByteBufUtil.getBytes(decrypted));
+        }
+    }
+
+    @Test
+    public void testBothDirections() throws Exception {
+        Config config = ConfigFactory.defaultReference();
+        SecurityService securityService = new SecurityService(config);
+        ECDHFlow alice = securityService.ecdh();
+        ECDHFlow bob = securityService.ecdh();
+
+        bob.keyAgreement(alice.requestStart());
+        alice.keyAgreement(bob.responseStart());
+
+        byte[] source = randomBytes(256);
+        ByteBuf fromAlice = Unpooled.directBuffer();
+        ByteBuf fromBob = Unpooled.directBuffer();
+        alice.encrypt(Unpooled.wrappedBuffer(source), fromAlice);
+        bob.encrypt(Unpooled.wrappedBuffer(source), fromBob);
+        // same counter in both directions does not produce same ciphertext
+        Assert.assertNotEquals(fromAlice, fromBob);
+
+        ByteBuf decrypted = Unpooled.directBuffer();
+        bob.decrypt(fromAlice, decrypted);
+        alice.decrypt(fromBob, decrypted);
+        Assert.assertEquals(source.length * 2, decrypted.readableBytes());
+    }
 
-        byte[] decrypted = alice.decrypt(encrypted);
-        Assert.assertArrayEquals(source, decrypted);
-        decrypted = alice.decrypt(encrypted);
-        Assert.assertArrayEquals(source, decrypted);
-        decrypted = alice.decrypt(encrypted);
-        Assert.assertArrayEquals(source, decrypted);
+    @Test(expected = AEADBadTagException.class)
+    public void testReplayRejected() throws Exception {
+        Config config = ConfigFactory.defaultReference();
+        SecurityService securityService = new SecurityService(config);
+        ECDHFlow alice = securityService.ecdh();
+        ECDHFlow bob = securityService.ecdh();
+
+        bob.keyAgreement(alice.requestStart());
+        alice.keyAgreement(bob.responseStart());
+
+        ByteBuf encrypted = Unpooled.directBuffer();
+        bob.encrypt(Unpooled.wrappedBuffer(randomBytes(256)), encrypted);
+        alice.decrypt(encrypted.duplicate(), Unpooled.directBuffer());
+        alice.decrypt(encrypted.duplicate(), Unpooled.directBuffer());
     }
 
     @Test
@@ -63,20 +109,23 @@ public class ECDHTest extends BaseTest {
         bob.keyAgreement(alice.requestStart());
         alice.keyAgreement(bob.responseStart());
 
-        byte[] source = randomBytes(256);
-        ECDHEncrypted encrypted = bob.encrypt(source);
-        int total = 10000;
+        ByteBuf source = Unpooled.directBuffer(256).writeBytes(randomBytes(256));
+        int total = 100000;
+        ByteBuf encrypted = Unpooled.directBuffer(total * bob.encryptedSize(256));
         long start = System.currentTimeMillis();
         for (int i = 0; i < total; i++) {
-            encrypted = bob.encrypt(source);
+            bob.encrypt(source, encrypted);
         }
         long end = System.currentTimeMillis();
         printQps("encrypt", total, start, end);
 
+        int size = bob.encryptedSize(256);
+        ByteBuf decrypted = Unpooled.directBuffer(256);
         start = System.currentTimeMillis();
         for (int i = 0; i < total; i++) {
-            byte[] decrypted = alice.decrypt(encrypted);
-            assert decrypted.length == source.length;
+            decrypted.clear();
+            alice.decrypt(encrypted.readSlice(size), decrypted);
+            assert decrypted.readableBytes() == 256;
         }
         end = System.currentTimeMillis();
         printQps("decrypt", total, start, end);
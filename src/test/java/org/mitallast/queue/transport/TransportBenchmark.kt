@@ -7,6 +7,8 @@ import org.junit.Before
 import org.junit.Test
 import org.mitallast.queue.common.BaseIntegrationTest
 import org.mitallast.queue.common.BaseQueueTest
+import org.mitallast.queue.common.codec.Codec
+import org.mitallast.queue.common.codec.Message
 import java.util.concurrent.CountDownLatch
 
 class TransportBenchmark : BaseQueueTest() {
@@ -39,6 +41,9 @@ class TransportBenchmark : BaseQueueTest() {
         transportController.registerMessageHandler(BaseIntegrationTest.TestStreamable::class.java) { _ ->
             countDownLatch!!.countDown()
         }
+        transportController.registerMessageHandler(TestPayload::class.java) { _ ->
+            countDownLatch!!.countDown()
+        }
 
         member = transportServer.localNode()
         transportService!!.connectToNode(member)
@@ -60,6 +65,26 @@ class TransportBenchmark : BaseQueueTest() {
         }
     }
 
+    /**
+     * Throughput of encrypted frames with payload of replication batch size.
+     */
+    @Test
+    @Throws(Exception::class)
+    fun testPayload() {
+        val payload = TestPayload(randomBytes(4096))
+        for (e in 0..9) {
+            countDownLatch = CountDownLatch(total())
+            val start = System.currentTimeMillis()
+            for (i in 0 until total()) {
+                transportService!!.send(member, payload)
+            }
+            countDownLatch!!.await()
+            val end = System.currentTimeMillis()
+            printQps("send 4k", total().toLong(), start, end)
+            printQps("send 4k bytes", total().toLong() * payload.data.size, start, end)
+        }
+    }
+
     @Test
     @Throws(Exception::class)
     fun testConcurrent() {
@@ -78,4 +103,20 @@ class TransportBenchmark : BaseQueueTest() {
             printQps("send concurrent", total().toLong(), start, end)
         }
     }
+
+    class TestPayload(val data: ByteArray) : Message {
+        companion object {
+            val codec = Codec.of(
+                ::TestPayload,
+                TestPayload::data,
+                Codec.bytesCodec()
+            )
+        }
+    }
+
+    companion object {
+        init {
+            Codec.register(900300, TestPayload::class.java, TestPayload.codec)
+        }
+    }
 }
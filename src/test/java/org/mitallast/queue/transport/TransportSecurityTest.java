@@ -0,0 +1,65 @@
+package org.mitallast.queue.transport;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.vavr.collection.HashMap;
+import kotlin.Unit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.mitallast.queue.common.BaseQueueTest;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(Parameterized.class)
+public class TransportSecurityTest extends BaseQueueTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> security() {
+        return Arrays.asList(new Object[][]{{"ecdh"}, {"tls"}, {"plaintext"}});
+    }
+
+    @Parameterized.Parameter
+    public String security;
+
+    @Override
+    protected Config config() throws Exception {
+        HashMap<String, Object> config = HashMap.of(
+            "rest.enabled", false,
+            "raft.enabled", false,
+            "crdt.enabled", false,
+            "transport.security", security
+        );
+        if (security.equals("tls")) {
+            SelfSignedCertificate certificate = new SelfSignedCertificate();
+            config = config
+                .put("transport.tls.cert_chain", certificate.certificate().getAbsolutePath())
+                .put("transport.tls.key", certificate.privateKey().getAbsolutePath())
+                .put("transport.tls.trust", certificate.certificate().getAbsolutePath());
+        }
+        return ConfigFactory.parseMap(config.toJavaMap()).withFallback(super.config());
+    }
+
+    @Test
+    public void testSend() throws Exception {
+        int total = 100;
+        CountDownLatch latch = new CountDownLatch(total);
+        node().injector().getInstance(TransportController.class)
+            .registerMessageHandler(TestStreamable.class, message -> {
+                latch.countDown();
+                return Unit.INSTANCE;
+            });
+
+        DiscoveryNode member = node().injector().getInstance(TransportServer.class).localNode();
+        TransportService transportService = node().injector().getInstance(TransportService.class);
+        for (int i = 0; i < total; i++) {
+            transportService.send(member, new TestStreamable(i));
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+}
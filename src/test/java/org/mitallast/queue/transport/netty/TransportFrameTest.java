@@ -1,7 +1,10 @@
 package org.mitallast.queue.transport.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mitallast.queue.common.BaseTest;
@@ -10,10 +13,14 @@ import org.mitallast.queue.common.codec.Message;
 
 import java.util.ArrayList;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 public class TransportFrameTest extends BaseTest {
 
     static {
         Codec.Companion.register(123, TestStreamable.class, TestStreamable.codec);
+        Codec.Companion.register(124, TestPayload.class, TestPayload.codec);
     }
 
     @Test
@@ -32,6 +39,88 @@ public class TransportFrameTest extends BaseTest {
         Assert.assertEquals(123123, message.value);
     }
 
+    @Test
+    public void testEncodedMessage() throws Exception {
+        CodecEncoder encoder = new CodecEncoder();
+        CodecDecoder decoder = new CodecDecoder();
+
+        EncodedMessage encoded = EncodedMessage.Companion.encode(new TestStreamable(123123));
+        ByteBuf buffer = Unpooled.buffer();
+        for (int i = 0; i < 3; i++) {
+            EncodedMessage duplicate = encoded.retainedDuplicate();
+            encoder.encode(null, duplicate, buffer);
+            duplicate.release();
+        }
+        encoded.release();
+        Assert.assertEquals(0, encoded.refCnt());
+
+        ArrayList<Object> output = new ArrayList<>();
+        decoder.decode(null, buffer, output);
+        decoder.decode(null, buffer, output);
+        decoder.decode(null, buffer, output);
+        Assert.assertEquals(3, output.size());
+        for (Object message : output) {
+            Assert.assertEquals(123123, ((TestStreamable) message).value);
+        }
+    }
+
+    @Test
+    public void testEncodedMessageIsNotCopied() throws Exception {
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+        CodecEncoder encoder = new CodecEncoder();
+        CodecDecoder decoder = new CodecDecoder();
+
+        EncodedMessage encoded = EncodedMessage.Companion.encode(new TestStreamable(123123));
+        ByteBuf buffer = encoder.allocateBuffer(ctx, encoded, true);
+        encoder.encode(ctx, encoded, buffer);
+        encoded.release();
+        // frame holds the only reference to shared content
+        Assert.assertEquals(1, encoded.refCnt());
+
+        ArrayList<Object> output = new ArrayList<>();
+        decoder.decode(null, buffer, output);
+        Assert.assertEquals(123123, ((TestStreamable) output.get(0)).value);
+        buffer.release();
+        Assert.assertEquals(0, encoded.refCnt());
+    }
+
+    @Test
+    public void testAllocateExactSize() throws Exception {
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+        CodecEncoder encoder = new CodecEncoder();
+
+        TestStreamable message = new TestStreamable(123123);
+        ByteBuf buffer = encoder.allocateBuffer(ctx, message, true);
+        encoder.encode(ctx, message, buffer);
+        Assert.assertEquals(buffer.capacity(), buffer.readableBytes());
+        buffer.release();
+    }
+
+    @Test
+    public void testLargeMessageComposite() throws Exception {
+        ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+        CodecEncoder encoder = new CodecEncoder();
+        CodecDecoder decoder = new CodecDecoder();
+
+        byte[] data = new byte[CodecEncoder.COMPOSITE_THRESHOLD];
+        random.nextBytes(data);
+        TestPayload message = new TestPayload(data, 123123);
+        ByteBuf buffer = encoder.allocateBuffer(ctx, message, true);
+        Assert.assertTrue(buffer instanceof CompositeByteBuf);
+        encoder.encode(ctx, message, buffer);
+
+        ArrayList<Object> output = new ArrayList<>();
+        decoder.decode(null, buffer, output);
+        Assert.assertEquals(1, output.size());
+        TestPayload decoded = (TestPayload) output.get(0);
+        Assert.assertArrayEquals(data, decoded.data);
+        Assert.assertEquals(123123, decoded.value);
+        buffer.release();
+    }
+
     @Test
     public void testMessageEncodeBenchmark() throws Exception {
         CodecEncoder encoder = new CodecEncoder();
@@ -72,6 +161,32 @@ public class TransportFrameTest extends BaseTest {
         printQps("decode", max, start, end);
     }
 
+    public static class TestPayload implements Message {
+        public static final Codec<TestPayload> codec = Codec.Companion.of(
+            TestPayload::new,
+            TestPayload::data,
+            TestPayload::value,
+            Codec.Companion.bytesCodec(),
+            Codec.Companion.longCodec()
+        );
+
+        private final byte[] data;
+        private final long value;
+
+        public TestPayload(byte[] data, long value) {
+            this.data = data;
+            this.value = value;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+
+        public long value() {
+            return value;
+        }
+    }
+
     public static class TestStreamable implements Message {
         public static final Codec<TestStreamable> codec = Codec.Companion.of(
             TestStreamable::new,